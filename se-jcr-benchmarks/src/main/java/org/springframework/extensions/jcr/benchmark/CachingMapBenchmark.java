@@ -0,0 +1,85 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.jcr.util.ConcurrentCachingMap;
+
+/**
+ * Contended lookups of an already cached value, as done by CacheableSessionHolderProviderManager for every
+ * session, through the synchronized {@link org.springframework.extensions.jcr.util.CachingMapDecorator} and the
+ * {@link ConcurrentCachingMap}. The deprecated class is referenced by its qualified name since a deprecated
+ * import can not be suppressed.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+@SuppressWarnings("deprecation")
+public class CachingMapBenchmark {
+
+    private final Object key = new Object();
+
+    private org.springframework.extensions.jcr.util.CachingMapDecorator<Object, Object> synchronizedMap;
+
+    private ConcurrentCachingMap<Object, Object> concurrentMap;
+
+    @Setup
+    public void setUp() {
+        synchronizedMap = new org.springframework.extensions.jcr.util.CachingMapDecorator<Object, Object>(true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Object create(Object key) {
+                return new Object();
+            }
+        };
+        concurrentMap = new ConcurrentCachingMap<Object, Object>(true) {
+            @Override
+            protected Object create(Object key) {
+                return new Object();
+            }
+        };
+    }
+
+    @Benchmark
+    public Object synchronizedLookup() {
+        return synchronizedMap.get(key);
+    }
+
+    @Benchmark
+    public Object concurrentLookup() {
+        return concurrentMap.get(key);
+    }
+}
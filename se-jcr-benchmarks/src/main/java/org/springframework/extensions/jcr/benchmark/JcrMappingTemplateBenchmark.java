@@ -0,0 +1,139 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.ocm.mapper.impl.annotation.AnnotationMapperImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.jcr.JcrCallback;
+import org.springframework.extensions.jcr.SessionFactory;
+import org.springframework.extensions.jcr.SessionHolder;
+import org.springframework.extensions.jcr.jackrabbit.ocm.JcrMappingTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * {@link JcrMappingTemplate} insert (followed by a save) and getObject on a thread-bound session. The inserted
+ * documents are removed after every iteration so the parent node does not keep growing.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JcrMappingTemplateBenchmark {
+
+    private SessionFactory sessionFactory;
+
+    private Session session;
+
+    private JcrMappingTemplate template;
+
+    private String parentPath;
+
+    private String documentPath;
+
+    private long counter;
+
+    @Setup
+    public void setUp(RepositoryState repositoryState) throws Exception {
+        sessionFactory = repositoryState.getSessionFactory();
+        session = sessionFactory.getSession();
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+
+        // AnnotationMapperImpl takes a list of raw classes
+        @SuppressWarnings("rawtypes")
+        List<Class> classes = new ArrayList<Class>();
+        classes.add(BenchmarkDocument.class);
+        template = new JcrMappingTemplate(sessionFactory, new AnnotationMapperImpl(classes));
+
+        final String name = "ocm-" + Thread.currentThread().getId() + "-" + System.nanoTime();
+        parentPath = template.execute(new JcrCallback<String>() {
+            @Override
+            public String doInJcr(Session session) throws IOException, RepositoryException {
+                Node node = session.getRootNode().addNode(name);
+                session.save();
+                return node.getPath();
+            }
+        });
+
+        documentPath = parentPath + "/read";
+        template.insert(newDocument(documentPath));
+        template.save();
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeInserted() {
+        template.execute(new JcrCallback<Object>() {
+            @Override
+            public Object doInJcr(Session session) throws IOException, RepositoryException {
+                for (NodeIterator it = session.getNode(parentPath).getNodes("doc*"); it.hasNext();) {
+                    it.nextNode().remove();
+                }
+                session.save();
+                return null;
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        TransactionSynchronizationManager.unbindResource(sessionFactory);
+        session.logout();
+    }
+
+    @Benchmark
+    public void insert() {
+        template.insert(newDocument(parentPath + "/doc" + counter++));
+        template.save();
+    }
+
+    @Benchmark
+    public Object getObject() {
+        return template.getObject(documentPath);
+    }
+
+    private static BenchmarkDocument newDocument(String path) {
+        BenchmarkDocument document = new BenchmarkDocument();
+        document.setPath(path);
+        document.setTitle("benchmark");
+        document.setContent("Lorem ipsum dolor sit amet, consectetur adipiscing elit");
+        return document;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.dao.DataAccessException;
+import org.springframework.extensions.jcr.JcrCallback;
+import org.springframework.extensions.jcr.JcrTemplate;
+import org.springframework.extensions.jcr.SessionFactory;
+import org.springframework.extensions.jcr.SessionFactoryUtils;
+import org.springframework.extensions.jcr.SessionHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Measures the overhead JcrTemplate.execute() adds around a trivial callback on a thread-bound session.
+ * <ul>
+ * <li><code>reflectiveProxy</code> - the former implementation: two synchronization manager lookups and a
+ * new <code>java.lang.reflect.Proxy</code> per call</li>
+ * <li><code>delegatingSession</code> - the current implementation: a single lookup and the logout
+ * suppressing wrapper cached on the SessionHolder</li>
+ * <li><code>nativeSession</code> - lower bound, the native session is exposed</li>
+ * </ul>
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JcrTemplateExecuteBenchmark {
+
+    private static final JcrCallback<String> CALLBACK = new JcrCallback<String>() {
+        @Override
+        public String doInJcr(Session session) throws IOException, RepositoryException {
+            return session.getUserID();
+        }
+    };
+
+    private SessionFactory sessionFactory;
+
+    private Session session;
+
+    private JcrTemplate template;
+
+    private JcrTemplate legacyTemplate;
+
+    @Setup
+    public void setUp(RepositoryState repositoryState) throws Exception {
+        sessionFactory = repositoryState.getSessionFactory();
+        session = sessionFactory.getSession();
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+
+        template = new JcrTemplate(sessionFactory);
+        legacyTemplate = new ReflectiveProxyJcrTemplate(sessionFactory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        TransactionSynchronizationManager.unbindResource(sessionFactory);
+        session.logout();
+    }
+
+    @Benchmark
+    public String reflectiveProxy() {
+        return legacyTemplate.execute(CALLBACK, false);
+    }
+
+    @Benchmark
+    public String delegatingSession() {
+        return template.execute(CALLBACK, false);
+    }
+
+    @Benchmark
+    public String nativeSession() {
+        return template.execute(CALLBACK, true);
+    }
+
+    /**
+     * Replica of the execute() implementation based on a per-call reflective proxy, kept as baseline.
+     */
+    static class ReflectiveProxyJcrTemplate extends JcrTemplate {
+
+        ReflectiveProxyJcrTemplate(SessionFactory sessionFactory) {
+            super(sessionFactory);
+        }
+
+        @Override
+        public <T> T execute(JcrCallback<T> action, boolean exposeNativeSession) throws DataAccessException {
+            Session session = getSession();
+            boolean existingTransaction = SessionFactoryUtils.isSessionThreadBound(session, getSessionFactory());
+            try {
+                Session sessionToExpose = (exposeNativeSession ? session : createSessionProxy(session));
+                return action.doInJcr(sessionToExpose);
+            } catch (RepositoryException ex) {
+                throw convertJcrAccessException(ex);
+            } catch (IOException ex) {
+                throw convertJcrAccessException(ex);
+            } finally {
+                if (!existingTransaction)
+                    SessionFactoryUtils.releaseSession(session, getSessionFactory());
+            }
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected Session createSessionProxy(final Session session) {
+            return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Session.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getName().equals("equals")) {
+                                return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
+                            } else if (method.getName().equals("hashCode")) {
+                                return hashCode();
+                            } else if (method.getName().equals("logout")) {
+                                return null;
+                            }
+                            try {
+                                return method.invoke(session, args);
+                            } catch (InvocationTargetException ex) {
+                                throw ex.getTargetException();
+                            }
+                        }
+                    });
+        }
+    }
+}
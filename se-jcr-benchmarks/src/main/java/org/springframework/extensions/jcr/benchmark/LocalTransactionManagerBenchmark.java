@@ -0,0 +1,167 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.jcr.JcrCallback;
+import org.springframework.extensions.jcr.JcrTemplate;
+import org.springframework.extensions.jcr.PooledJcrSessionFactory;
+import org.springframework.extensions.jcr.SessionFactory;
+import org.springframework.extensions.jcr.jackrabbit.LocalTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Commit throughput of {@link LocalTransactionManager}: an empty transaction, a transaction updating a
+ * single property and a property read inside a read-write and a read-only transaction, with and without the
+ * one-phase commit optimization. The transactions either log into the repository or borrow their session
+ * from a {@link PooledJcrSessionFactory}. Every benchmark thread works on its own node so the threads do not
+ * contend on item locks; run with <code>-t</code> to measure concurrent commits.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalTransactionManagerBenchmark {
+
+    @Param({ "true", "false" })
+    private boolean onePhaseCommit;
+
+    @Param({ "false", "true" })
+    private boolean pooled;
+
+    private PooledJcrSessionFactory pooledSessionFactory;
+
+    private TransactionTemplate transactionTemplate;
+
+    private TransactionTemplate readOnlyTransactionTemplate;
+
+    private JcrTemplate template;
+
+    private String nodePath;
+
+    private long counter;
+
+    @Setup
+    public void setUp(RepositoryState repositoryState) throws Exception {
+        SessionFactory sessionFactory = repositoryState.getSessionFactory();
+        if (pooled) {
+            pooledSessionFactory = new PooledJcrSessionFactory(sessionFactory);
+            pooledSessionFactory.afterPropertiesSet();
+            sessionFactory = pooledSessionFactory;
+        }
+        LocalTransactionManager transactionManager = new LocalTransactionManager(sessionFactory);
+        transactionManager.setOnePhaseCommit(onePhaseCommit);
+        transactionManager.afterPropertiesSet();
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTransactionTemplate.setReadOnly(true);
+        template = new JcrTemplate(sessionFactory);
+        template.setAllowCreate(true);
+
+        final String name = "tx-" + Thread.currentThread().getId() + "-" + System.nanoTime();
+        nodePath = template.execute(new JcrCallback<String>() {
+            @Override
+            public String doInJcr(Session session) throws IOException, RepositoryException {
+                Node node = session.getRootNode().addNode(name);
+                node.setProperty("counter", 0L);
+                session.save();
+                return node.getPath();
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (pooledSessionFactory != null)
+            pooledSessionFactory.destroy();
+    }
+
+    @Benchmark
+    public Object emptyCommit() {
+        return transactionTemplate.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                return null;
+            }
+        });
+    }
+
+    @Benchmark
+    public Object propertyUpdateCommit() {
+        final long value = counter++;
+        return transactionTemplate.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                return template.execute(new JcrCallback<Object>() {
+                    @Override
+                    public Object doInJcr(Session session) throws IOException, RepositoryException {
+                        ((Node) session.getItem(nodePath)).setProperty("counter", value);
+                        session.save();
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    @Benchmark
+    public Object propertyRead() {
+        return transactionTemplate.execute(new PropertyReadCallback());
+    }
+
+    @Benchmark
+    public Object readOnlyPropertyRead() {
+        return readOnlyTransactionTemplate.execute(new PropertyReadCallback());
+    }
+
+    private class PropertyReadCallback implements TransactionCallback<Object> {
+
+        @Override
+        public Object doInTransaction(TransactionStatus status) {
+            return template.execute(new JcrCallback<Object>() {
+                @Override
+                public Object doInJcr(Session session) throws IOException, RepositoryException {
+                    return ((Node) session.getItem(nodePath)).getProperty("counter").getLong();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.jcr.JcrCallback;
+import org.springframework.extensions.jcr.JcrTemplate;
+import org.springframework.extensions.jcr.support.OpenSessionInViewFilter;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.StaticWebApplicationContext;
+
+/**
+ * Request processing through {@link OpenSessionInViewFilter} compared with the same request handled without
+ * the filter. The request handler issues <code>templateCalls</code> JcrTemplate calls; without the filter each
+ * of them opens and closes its own session.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenSessionInViewFilterBenchmark {
+
+    private static final JcrCallback<String> CALLBACK = new JcrCallback<String>() {
+        @Override
+        public String doInJcr(Session session) throws IOException, RepositoryException {
+            return session.getRootNode().getIdentifier();
+        }
+    };
+
+    @Param({ "1", "5" })
+    private int templateCalls;
+
+    private StaticWebApplicationContext webApplicationContext;
+
+    private OpenSessionInViewFilter filter;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    private FilterChain handler;
+
+    @Setup
+    public void setUp(RepositoryState repositoryState) throws Exception {
+        MockServletContext servletContext = new MockServletContext();
+        webApplicationContext = new StaticWebApplicationContext();
+        webApplicationContext.setServletContext(servletContext);
+        webApplicationContext.getBeanFactory().registerSingleton(
+                OpenSessionInViewFilter.DEFAULT_JCR_SESSION_FACTORY_FACTORY_BEAN_NAME,
+                repositoryState.getSessionFactory());
+        webApplicationContext.refresh();
+        servletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, webApplicationContext);
+
+        filter = new OpenSessionInViewFilter();
+        filter.init(new MockFilterConfig(servletContext));
+
+        request = new MockHttpServletRequest(servletContext);
+        response = new MockHttpServletResponse();
+
+        final JcrTemplate template = new JcrTemplate(repositoryState.getSessionFactory());
+        template.setAllowCreate(true);
+        handler = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                for (int i = 0; i < templateCalls; i++) {
+                    template.execute(CALLBACK);
+                }
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.destroy();
+        webApplicationContext.close();
+    }
+
+    @Benchmark
+    public void withFilter() throws Exception {
+        filter.doFilter(request, response, handler);
+    }
+
+    @Benchmark
+    public void withoutFilter() throws Exception {
+        handler.doFilter(request, response);
+    }
+}
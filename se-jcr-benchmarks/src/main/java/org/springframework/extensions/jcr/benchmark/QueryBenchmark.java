@@ -0,0 +1,134 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.jcr.JcrCallback;
+import org.springframework.extensions.jcr.JcrTemplate;
+import org.springframework.extensions.jcr.SessionFactory;
+import org.springframework.extensions.jcr.SessionHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Latency of {@link JcrTemplate#query(String)} (XPath) and {@link JcrTemplate#query(String, String)} (JCR-SQL2)
+ * over a flat tree of <code>nodes</code> children, a tenth of which match the query. The session is bound to
+ * the benchmark thread (as inside a transaction or OpenSessionInView) so the results can be iterated after
+ * the template returns.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({ "100", "1000" })
+    private int nodes;
+
+    private SessionFactory sessionFactory;
+
+    private Session session;
+
+    private JcrTemplate template;
+
+    private String root;
+
+    private String xpath;
+
+    private String sql2;
+
+    @Setup
+    public void setUp(RepositoryState repositoryState) throws Exception {
+        sessionFactory = repositoryState.getSessionFactory();
+        session = sessionFactory.getSession();
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+        template = new JcrTemplate(sessionFactory);
+
+        root = "query-" + Thread.currentThread().getId() + "-" + System.nanoTime();
+        template.execute(new JcrCallback<Object>() {
+            @Override
+            public Object doInJcr(Session session) throws IOException, RepositoryException {
+                Node parent = session.getRootNode().addNode(root);
+                for (int i = 0; i < nodes; i++) {
+                    Node child = parent.addNode("node" + i);
+                    child.setProperty("category", (i % 10 == 0 ? "match" : "other"));
+                }
+                session.save();
+                return null;
+            }
+        });
+        xpath = "/jcr:root/" + root + "/*[@category='match']";
+        sql2 = "SELECT * FROM [nt:unstructured] AS n WHERE ISCHILDNODE(n, '/" + root + "') AND n.category = 'match'";
+    }
+
+    @TearDown
+    public void tearDown() {
+        template.execute(new JcrCallback<Object>() {
+            @Override
+            public Object doInJcr(Session session) throws IOException, RepositoryException {
+                session.getNode("/" + root).remove();
+                session.save();
+                return null;
+            }
+        });
+        TransactionSynchronizationManager.unbindResource(sessionFactory);
+        session.logout();
+    }
+
+    @Benchmark
+    public long xpathQuery() throws RepositoryException {
+        return count(template.query(xpath));
+    }
+
+    @Benchmark
+    public long sql2Query() throws RepositoryException {
+        return count(template.query(sql2, Query.JCR_SQL2));
+    }
+
+    private static long count(QueryResult result) throws RepositoryException {
+        // iterate so lazily loaded results are actually fetched
+        long count = 0;
+        for (NodeIterator it = result.getNodes(); it.hasNext(); it.nextNode()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.core.TransientRepository;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.extensions.jcr.JcrSessionFactory;
+import org.springframework.extensions.jcr.jackrabbit.ocm.OcmJackrabbitSessionFactory;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Shared benchmark state: a Jackrabbit {@link TransientRepository} living in a temporary directory and a
+ * {@link JcrSessionFactory} on top of it (the OCM flavour, so the mapping benchmarks find the <code>ocm</code>
+ * namespace registered). A keep-alive session prevents the transient repository from shutting down between
+ * invocations.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Benchmark)
+public class RepositoryState {
+
+    private File home;
+
+    private TransientRepository repository;
+
+    private Session keepAliveSession;
+
+    private JcrSessionFactory sessionFactory;
+
+    @Setup
+    public void setUp() throws Exception {
+        home = createTempDir();
+        repository = new TransientRepository(home);
+        keepAliveSession = repository.login(credentials());
+
+        OcmJackrabbitSessionFactory ocmSessionFactory = new OcmJackrabbitSessionFactory();
+        ocmSessionFactory.setRepository(repository);
+        ocmSessionFactory.setCredentials(credentials());
+        ocmSessionFactory.afterPropertiesSet();
+        sessionFactory = ocmSessionFactory;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sessionFactory.destroy();
+        keepAliveSession.logout();
+        repository.shutdown();
+        FileSystemUtils.deleteRecursively(home);
+    }
+
+    public TransientRepository getRepository() {
+        return repository;
+    }
+
+    public JcrSessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    static SimpleCredentials credentials() {
+        return new SimpleCredentials("admin", "admin".toCharArray());
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("se-jcr-benchmark", "");
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException("could not create repository home " + dir);
+        return dir;
+    }
+}
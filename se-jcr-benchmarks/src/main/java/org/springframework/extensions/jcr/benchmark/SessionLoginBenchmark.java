@@ -0,0 +1,85 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.jcr.PooledJcrSessionFactory;
+
+/**
+ * Cost of obtaining and releasing a session, either straight from the JcrSessionFactory (a full
+ * <code>Repository.login()</code>) or through a {@link PooledJcrSessionFactory}.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionLoginBenchmark {
+
+    private RepositoryState repositoryState;
+
+    private PooledJcrSessionFactory pooledSessionFactory;
+
+    @Setup
+    public void setUp(RepositoryState repositoryState) throws Exception {
+        this.repositoryState = repositoryState;
+        pooledSessionFactory = new PooledJcrSessionFactory(repositoryState.getSessionFactory());
+        pooledSessionFactory.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pooledSessionFactory.destroy();
+    }
+
+    @Benchmark
+    public String loginLogout() throws Exception {
+        Session session = repositoryState.getSessionFactory().getSession();
+        try {
+            return session.getUserID();
+        } finally {
+            session.logout();
+        }
+    }
+
+    @Benchmark
+    public String pooledLoginLogout() throws Exception {
+        Session session = pooledSessionFactory.getSession();
+        try {
+            return session.getUserID();
+        } finally {
+            session.logout();
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.util.ClassUtils;
+
+/**
+ * EventListener which delivers the events to another listener asynchronously, so that slow listeners do not
+ * hold up the observation thread of the repository (and the delivery to every other listener). It is used by
+ * wrapping the listener of an {@link EventListenerDefinition}:
+ * 
+ * <pre>
+ * &lt;bean class=&quot;org.springframework.extensions.jcr.EventListenerDefinition&quot;&gt;
+ *   &lt;property name=&quot;listener&quot;&gt;
+ *     &lt;bean class=&quot;org.springframework.extensions.jcr.AsyncEventListener&quot;&gt;
+ *       &lt;property name=&quot;listener&quot; ref=&quot;slowListener&quot;/&gt;
+ *       &lt;property name=&quot;coalescingWindow&quot; value=&quot;200&quot;/&gt;
+ *     &lt;/bean&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * Events are put into a bounded queue and delivered in batches (of at most <code>maxBatchSize</code> events)
+ * on the configured executor, or on a dedicated daemon thread if none is set. What happens when the queue is
+ * full is decided by the {@link OverflowPolicy}; by default the observation thread blocks until there is
+ * room, so no event is lost.
+ * <p/>
+ * With a coalescing window, events are held in the queue for up to that many milliseconds and an event of the
+ * same type and path as one still queued replaces it, so that a node changed over and over again is reported
+ * once per window. The replacing event moves to the end of the queue, after the events queued in the
+ * meantime, so the last event for a path is always delivered last (a node added, removed and added again is
+ * reported as removed, then added). The listener must not rely on receiving every event in
+ * that case.
+ * <p/>
+ * When metrics are configured, the time the events spend in the queue, the queue size and the number of
+ * merged and discarded events are published, tagged with the name of the listener.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class AsyncEventListener implements EventListener, InitializingBean, DisposableBean {
+
+    /**
+     * What to do with an event arriving while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * wait for the listener to catch up, holding up the observation thread (backpressure).
+         */
+        BLOCK,
+        /**
+         * discard the arriving event.
+         */
+        DISCARD_NEWEST,
+        /**
+         * discard the oldest queued event to make room for the arriving one.
+         */
+        DISCARD_OLDEST
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncEventListener.class);
+
+    private EventListener listener;
+
+    private String name;
+
+    private Executor executor;
+
+    /**
+     * executor created when none is set - shut down on destroy.
+     */
+    private ExecutorService dispatchThread;
+
+    private int capacity = 10000;
+
+    private int maxBatchSize = 1000;
+
+    private long coalescingWindow = 0;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * metrics - optional.
+     */
+    private JcrMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final Condition destroyed = lock.newCondition();
+
+    // all the fields below are guarded by the lock
+    /**
+     * queued events in arrival order, keyed by their coalescing key (or by themselves if they have none).
+     */
+    private final LinkedHashMap<Object, QueuedEvent> queue = new LinkedHashMap<Object, QueuedEvent>();
+
+    private boolean dispatching;
+
+    private boolean active = true;
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (listener == null)
+            throw new IllegalArgumentException("listener is required");
+        if (name == null)
+            name = ClassUtils.getShortName(listener.getClass());
+        if (executor == null) {
+            dispatchThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jcr-event-dispatcher-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor = dispatchThread;
+        }
+        if (metrics != null) {
+            metrics.registerGauge(JcrMetrics.EVENTS_QUEUED, new JcrMetrics.Gauge() {
+                @Override
+                public double value() {
+                    return getQueueSize();
+                }
+            }, JcrMetrics.TAG_LISTENER, name);
+        }
+    }
+
+    /**
+     * Delivers the queued events (without waiting for the coalescing window) and stops the dedicated thread,
+     * if any. Events arriving afterwards are ignored.
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    @Override
+    public void destroy() throws Exception {
+        lock.lock();
+        try {
+            active = false;
+            notFull.signalAll();
+            destroyed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (dispatchThread != null)
+            dispatchThread.shutdown();
+    }
+
+    /**
+     * Queues the given events; called on the observation thread of the repository.
+     * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+     */
+    @Override
+    public void onEvent(EventIterator events) {
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            // the key is computed outside the lock as it might need the repository
+            String key = (coalescingWindow > 0 ? getKey(event) : null);
+            boolean startDispatch = false;
+            boolean queued;
+            lock.lock();
+            try {
+                queued = enqueue(event, key);
+                if (queued && !dispatching) {
+                    dispatching = true;
+                    startDispatch = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            // started right away, as the rest of the batch might have to wait for the queue to drain
+            if (startDispatch)
+                startDispatch();
+            if (!queued)
+                break;
+        }
+    }
+
+    /**
+     * @return false if no more events should be queued
+     */
+    private boolean enqueue(Event event, String key) {
+        if (!active)
+            return false;
+        if (key != null) {
+            QueuedEvent replaced = queue.remove(key);
+            if (replaced != null) {
+                // appended as the newest event, but delivered within the window of the replaced one
+                queue.put(key, new QueuedEvent(event, key, replaced.queuedAt));
+                count(coalescedCount, JcrMetrics.EVENTS_COALESCED);
+                return true;
+            }
+        }
+        while (queue.size() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.DISCARD_NEWEST) {
+                count(droppedCount, JcrMetrics.EVENTS_DROPPED);
+                return true;
+            }
+            if (overflowPolicy == OverflowPolicy.DISCARD_OLDEST) {
+                poll();
+                count(droppedCount, JcrMetrics.EVENTS_DROPPED);
+                continue;
+            }
+            try {
+                notFull.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LOG.warn("interrupted while waiting for " + name + " to catch up; discarding events");
+                count(droppedCount, JcrMetrics.EVENTS_DROPPED);
+                return false;
+            }
+            if (!active)
+                return false;
+        }
+        QueuedEvent queued = new QueuedEvent(event, key, System.nanoTime());
+        queue.put(queued.getKey(), queued);
+        return true;
+    }
+
+    private void startDispatch() {
+        try {
+            executor.execute(dispatcher);
+        } catch (RejectedExecutionException ex) {
+            lock.lock();
+            try {
+                dispatching = false;
+            } finally {
+                lock.unlock();
+            }
+            LOG.error("cannot dispatch events to " + name, ex);
+        }
+    }
+
+    /**
+     * Delivers batches of events until the queue is empty.
+     */
+    private void dispatch() {
+        while (true) {
+            List<QueuedEvent> batch;
+            lock.lock();
+            try {
+                QueuedEvent oldest = (queue.isEmpty() ? null : queue.values().iterator().next());
+                if (oldest == null) {
+                    dispatching = false;
+                    return;
+                }
+                if (coalescingWindow > 0 && active) {
+                    long wait = oldest.queuedAt + TimeUnit.MILLISECONDS.toNanos(coalescingWindow) - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            destroyed.awaitNanos(wait);
+                        } catch (InterruptedException ex) {
+                            // the remaining events are dispatched with the next ones
+                            dispatching = false;
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                batch = new ArrayList<QueuedEvent>(Math.min(queue.size(), maxBatchSize));
+                while (batch.size() < maxBatchSize && !queue.isEmpty())
+                    batch.add(poll());
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            deliver(batch);
+        }
+    }
+
+    private void deliver(List<QueuedEvent> batch) {
+        if (metrics != null)
+            metrics.recordTime(JcrMetrics.EVENT_LAG, System.nanoTime() - batch.get(0).queuedAt,
+                    JcrMetrics.TAG_LISTENER, name);
+        List<Event> events = new ArrayList<Event>(batch.size());
+        for (QueuedEvent queued : batch)
+            events.add(queued.event);
+        try {
+            listener.onEvent(new ListEventIterator(events));
+        } catch (RuntimeException ex) {
+            LOG.error("listener " + name + " failed to process " + events.size() + " events", ex);
+        }
+    }
+
+    private QueuedEvent poll() {
+        Iterator<QueuedEvent> it = queue.values().iterator();
+        QueuedEvent oldest = it.next();
+        it.remove();
+        return oldest;
+    }
+
+    private void count(AtomicLong counter, String metric) {
+        counter.incrementAndGet();
+        if (metrics != null)
+            metrics.incrementCounter(metric, JcrMetrics.TAG_LISTENER, name);
+    }
+
+    /**
+     * @return the coalescing key of the event or null if it can't be merged with other events
+     */
+    private static String getKey(Event event) {
+        try {
+            String path = event.getPath();
+            return (path == null ? null : event.getType() + ":" + path);
+        } catch (RepositoryException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of queued events
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of events merged into queued ones
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return the number of events discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Returns the listener.
+     */
+    public EventListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener The listener to set.
+     */
+    public void setListener(EventListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return Returns the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name used for the dispatch thread and as metrics tag (the short class name of the listener by
+     * default).
+     * @param name The name to set.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return Returns the executor.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor delivering the events. At most one task runs at a time per listener, so the events
+     * are delivered in order; while a coalescing window is set, the task also waits for the window on the
+     * executor. A dedicated daemon thread is used if no executor is set.
+     * @param executor The executor to set.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return Returns the capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity The maximum number of queued events to set (10000 by default).
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return Returns the maxBatchSize.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize The maximum number of events delivered in one onEvent call to set (1000 by default).
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0)
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return Returns the coalescingWindow.
+     */
+    public long getCoalescingWindow() {
+        return coalescingWindow;
+    }
+
+    /**
+     * @param coalescingWindow The time in milliseconds events are held for being merged to set (0, i.e. no
+     *            merging, by default).
+     */
+    public void setCoalescingWindow(long coalescingWindow) {
+        if (coalescingWindow < 0)
+            throw new IllegalArgumentException("coalescingWindow can't be negative");
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    /**
+     * @return Returns the overflowPolicy.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy The overflowPolicy to set.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("overflowPolicy can't be null");
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return Returns the metrics.
+     */
+    public JcrMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics The metrics to set.
+     */
+    public void setMetrics(JcrMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Event waiting for delivery.
+     */
+    private static class QueuedEvent {
+
+        private final String key;
+
+        private final long queuedAt;
+
+        private final Event event;
+
+        public QueuedEvent(Event event, String key, long queuedAt) {
+            this.event = event;
+            this.key = key;
+            this.queuedAt = queuedAt;
+        }
+
+        public Object getKey() {
+            return (key != null ? key : this);
+        }
+    }
+}
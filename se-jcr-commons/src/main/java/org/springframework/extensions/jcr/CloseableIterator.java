@@ -0,0 +1,34 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.Iterator;
+
+/**
+ * Iterator holding on to a resource (usually a JCR session) which has to be released once the iteration
+ * ends. The resource is released automatically when the iterator is exhausted; callers that stop earlier have
+ * to call {@link #close()}, typically in a finally block.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public interface CloseableIterator<T> extends Iterator<T> {
+
+    /**
+     * Releases the underlying resources. Calling this method more than once has no effect.
+     */
+    public void close();
+}
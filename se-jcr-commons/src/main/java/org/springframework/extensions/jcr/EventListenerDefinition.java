@@ -32,6 +32,13 @@ import org.springframework.beans.factory.InitializingBean;
  * <li>nodeTypeName = null</li>
  * <li>noLocal = false</li>
  * </ol>
+ * The listener is called on the observation thread of the repository; wrap it in an {@link AsyncEventListener}
+ * to deliver the events asynchronously.
+ * <p>
+ * {@link JcrSessionFactory} registers the listeners with its own observation session, which never modifies
+ * content. <code>noLocal</code> refers to that session and therefore filters nothing: events caused through
+ * the sessions handed out by the factory are delivered as well. The factory logs a warning for definitions
+ * that set it.
  * @see javax.jcr.observation.ObservationManager#addEventListener(javax.jcr.observation.EventListener, int,
  *      java.lang.String, boolean, java.lang.String[], java.lang.String[], boolean)
  * @author Costin Leau
@@ -128,6 +135,8 @@ public class EventListenerDefinition implements InitializingBean {
     }
 
     /**
+     * Note that, once registered by {@link JcrSessionFactory}, the flag has no effect (see the class
+     * description).
      * @param noLocal The noLocal to set.
      */
     public void setNoLocal(boolean noLocal) {
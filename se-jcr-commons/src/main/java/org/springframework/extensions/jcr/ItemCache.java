@@ -0,0 +1,125 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Least recently used cache of the nodes resolved through a transactional session, keyed by path and by
+ * identifier. Node handles are tied to the session that resolved them, so one cache is kept per transaction (as
+ * an attribute of the SessionHolder) and it is discarded on completion. Not thread-safe, as the SessionHolders
+ * are bound to a single thread.
+ * <p/>
+ * Entries are checked before being returned: a node that has been removed or moved (even without going through
+ * the template) is dropped from the cache and resolved again.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+class ItemCache {
+
+    /**
+     * SessionHolder attribute key.
+     */
+    static final String ATTRIBUTE_NAME = ItemCache.class.getName();
+
+    private final Map<String, Node> nodesByPath;
+
+    private final Map<String, Node> nodesByIdentifier;
+
+    ItemCache(int maxSize) {
+        this.nodesByPath = createMap(maxSize);
+        this.nodesByIdentifier = createMap(maxSize);
+    }
+
+    private static Map<String, Node> createMap(final int maxSize) {
+        return new LinkedHashMap<String, Node>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the node with the given path or null if it is not cached (anymore)
+     */
+    Node getByPath(String absPath) {
+        Node node = nodesByPath.get(absPath);
+        if (node != null && !absPath.equals(getPath(node))) {
+            nodesByPath.remove(absPath);
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * @return the node with the given identifier or null if it is not cached (anymore)
+     */
+    Node getByIdentifier(String id) {
+        Node node = nodesByIdentifier.get(id);
+        if (node != null && getPath(node) == null) {
+            nodesByIdentifier.remove(id);
+            return null;
+        }
+        return node;
+    }
+
+    void put(Node node) throws RepositoryException {
+        nodesByPath.put(node.getPath(), node);
+        nodesByIdentifier.put(node.getIdentifier(), node);
+    }
+
+    /**
+     * Drops the entries for the given path and its descendants. Entries by identifier stay valid, as a moved
+     * node keeps its identifier and a removed one fails the check done on lookup.
+     */
+    void evict(String absPath) {
+        String prefix = (absPath.endsWith("/") ? absPath : absPath + '/');
+        for (Iterator<String> it = nodesByPath.keySet().iterator(); it.hasNext();) {
+            String path = it.next();
+            if (path.equals(absPath) || path.startsWith(prefix))
+                it.remove();
+        }
+    }
+
+    void clear() {
+        nodesByPath.clear();
+        nodesByIdentifier.clear();
+    }
+
+    int size() {
+        return nodesByPath.size();
+    }
+
+    /**
+     * @return the current path of the node or null if the node is no longer valid
+     */
+    private static String getPath(Node node) {
+        try {
+            return node.getPath();
+        } catch (RepositoryException ex) {
+            return null;
+        }
+    }
+}
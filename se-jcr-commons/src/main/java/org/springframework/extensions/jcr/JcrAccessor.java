@@ -21,6 +21,7 @@ import javax.jcr.RepositoryException;
 
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.DataAccessException;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
 
 /**
  * Base class for JcrTemplate and JcrInterceptor, defining common properties like JcrSessionFactory. The
@@ -37,6 +38,11 @@ public abstract class JcrAccessor implements InitializingBean {
 
     private SessionFactory sessionFactory;
 
+    /**
+     * metrics - optional.
+     */
+    private JcrMetrics metrics;
+
     /**
      * Eagerly initialize the session holder provider, creating a default one if one is not set.
      */
@@ -95,4 +101,19 @@ public abstract class JcrAccessor implements InitializingBean {
     public void setSessionFactory(SessionFactory sessionFactory) {
         this.sessionFactory = sessionFactory;
     }
+
+    /**
+     * @return Returns the metrics.
+     */
+    public JcrMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the (optional) metrics the accessor publishes to. No metrics are collected by default.
+     * @param metrics The metrics to set.
+     */
+    public void setMetrics(JcrMetrics metrics) {
+        this.metrics = metrics;
+    }
 }
@@ -132,6 +132,71 @@ public interface JcrModel1Operations {
      */
     public QueryResult query(String statement, String language);
 
+    /**
+     * Execute a query with the given strings and bind variables (see {@link PreparedQuery#execute(Map)}).
+     * @see javax.jcr.query.Query#bindValue(java.lang.String, javax.jcr.Value)
+     * @param statement query statement
+     * @param language language statement (null defaults to XPATH)
+     * @param bindVariables bind variable values keyed by name; null if the statement has no bind variables
+     * @return query result
+     */
+    public QueryResult query(String statement, String language, Map<String, ?> bindVariables);
+
+    /**
+     * Prepare a query for repeated execution with different bind variables. The statement is parsed when the
+     * query is first executed; on a thread-bound session (inside a transaction or OpenSessionInView) the
+     * parsed query is cached and reused by the following executions.
+     * @param statement query statement
+     * @param language language statement (null defaults to XPATH)
+     * @return prepared query
+     */
+    public PreparedQuery prepareQuery(String statement, String language);
+
+    /**
+     * Execute a query and map one page of its rows. The offset and limit are pushed down to the repository
+     * through {@link javax.jcr.query.Query#setOffset(long)} and {@link javax.jcr.query.Query#setLimit(long)}.
+     * @param statement query statement
+     * @param language language statement (null defaults to XPATH)
+     * @param bindVariables bind variable values keyed by name; null if the statement has no bind variables
+     * @param offset index of the first row returned
+     * @param limit maximum number of rows returned
+     * @param rowMapper row mapper
+     * @return mapped rows
+     */
+    public <T> List<T> queryForPage(String statement, String language, Map<String, ?> bindVariables, long offset,
+            long limit, JcrRowMapper<T> rowMapper);
+
+    /**
+     * Execute a query and map one page of its result nodes.
+     * @see #queryForPage(String, String, Map, long, long, JcrRowMapper)
+     * @param nodeMapper node mapper
+     * @return mapped nodes
+     */
+    public <T> List<T> queryForPage(String statement, String language, Map<String, ?> bindVariables, long offset,
+            long limit, JcrNodeMapper<T> nodeMapper);
+
+    /**
+     * Execute a query and return an iterator which maps the rows lazily, as they are consumed. The session
+     * used by the query is kept open until the iterator is exhausted or closed, so callers have to close the
+     * iterator when they do not consume it completely.
+     * @param statement query statement
+     * @param language language statement (null defaults to XPATH)
+     * @param bindVariables bind variable values keyed by name; null if the statement has no bind variables
+     * @param rowMapper row mapper
+     * @return iterator over the mapped rows
+     */
+    public <T> CloseableIterator<T> queryForIterator(String statement, String language, Map<String, ?> bindVariables,
+            JcrRowMapper<T> rowMapper);
+
+    /**
+     * Execute a query and return an iterator which maps the result nodes lazily.
+     * @see #queryForIterator(String, String, Map, JcrRowMapper)
+     * @param nodeMapper node mapper
+     * @return iterator over the mapped nodes
+     */
+    public <T> CloseableIterator<T> queryForIterator(String statement, String language, Map<String, ?> bindVariables,
+            JcrNodeMapper<T> nodeMapper);
+
     /**
      * Default method for doing multiple queries. It assumes the language is XPATH and that errors will not be
      * ignored.
@@ -154,4 +219,30 @@ public interface JcrModel1Operations {
      */
     public Map<String, QueryResult> query(final List<String> list, final String language, final boolean ignoreErrors);
 
+    /**
+     * Execute a list of independent queries and map their rows. When the implementation is configured with an
+     * executor and no session is bound to the calling thread, the statements are executed in parallel, each
+     * one in its own session; otherwise they run one after another in the current session. Since a
+     * QueryResult can not be used once its session is closed, the rows are mapped inside the worker.
+     * @param list list of queries
+     * @param language language of the queries. If null XPATH is assumed.
+     * @param ignoreErrors if true the statements which fail to execute are mapped to null
+     * @param rowMapper maps every row of a result
+     * @return a map containing the queries as keys (in the order of the list) and the mapped rows as values
+     */
+    public <T> Map<String, List<T>> query(List<String> list, String language, boolean ignoreErrors,
+            JcrRowMapper<T> rowMapper);
+
+    /**
+     * Execute a list of independent queries and map their result nodes.
+     * @see #query(List, String, boolean, JcrRowMapper)
+     * @param list list of queries
+     * @param language language of the queries. If null XPATH is assumed.
+     * @param ignoreErrors if true the statements which fail to execute are mapped to null
+     * @param nodeMapper maps every node of a result
+     * @return a map containing the queries as keys (in the order of the list) and the mapped nodes as values
+     */
+    public <T> Map<String, List<T>> query(List<String> list, String language, boolean ignoreErrors,
+            JcrNodeMapper<T> nodeMapper);
+
 }
\ No newline at end of file
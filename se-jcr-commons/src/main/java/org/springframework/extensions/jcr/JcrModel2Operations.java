@@ -51,6 +51,11 @@ public interface JcrModel2Operations extends JcrModel1Operations {
      */
     public void move(String srcAbsPath, String destAbsPath);
 
+    /**
+     * @see javax.jcr.Session#removeItem(java.lang.String)
+     */
+    public void removeItem(String absPath);
+
     /**
      * @see javax.jcr.Session#save()
      */
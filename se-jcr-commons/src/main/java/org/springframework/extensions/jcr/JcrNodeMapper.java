@@ -0,0 +1,39 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Interface used by {@link JcrTemplate} for mapping the nodes of a query result to objects, one node at a
+ * time.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public interface JcrNodeMapper<T> {
+
+    /**
+     * Maps the given node. Implementations should not keep a reference to the node, which is only valid
+     * while the session is open.
+     * @param node current node
+     * @param nodeNum number of the node (zero based, relative to the first returned node)
+     * @return the object for the node (can be null)
+     * @throws RepositoryException
+     */
+    public T mapNode(Node node, int nodeNum) throws RepositoryException;
+}
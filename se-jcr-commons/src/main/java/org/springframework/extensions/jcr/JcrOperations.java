@@ -60,6 +60,19 @@ public interface JcrOperations extends JcrOptionalOperations {
      */
     public String dump(Node node);
 
+    /**
+     * Dump the contents of the given node to the given output, as it walks the tree. Unlike
+     * {@link #dump(Node)}, no intermediate strings are built, so the memory used does not depend on the size
+     * of the tree. The output format is the same as the one of {@link #dump(Node)}.
+     * @param node node to be dumped (null is equivalent to the root node)
+     * @param out output the dump is written to (for example a <code>Writer</code>); it is not flushed nor
+     *            closed
+     * @param maxDepth how many levels under the node are dumped - 0 dumps just the node, a negative value
+     *            dumps the whole tree
+     * @param propertyFilter selects the properties to dump (null dumps all properties)
+     */
+    public void dump(Node node, Appendable out, int maxDepth, PropertyFilter propertyFilter);
+
     /**
      * Renames a node (with the given name)
      * @param node node to rename
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method (or all the methods of a class) whose invocation is retried by {@link JcrRetryInterceptor}
+ * when it fails because of a concurrent modification of the repository content. The method is re-invoked as
+ * a whole, so when it is transactional every attempt runs in a new transaction, provided the interceptor is
+ * applied outside of the transaction interceptor.
+ * @see JcrRetryInterceptor
+ * @see JcrRetryPolicy
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@Target({ ElementType.METHOD, ElementType.TYPE })
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Documented
+public @interface JcrRetry {
+
+    /**
+     * @return the maximum number of attempts (including the first one); a value smaller than 1 uses the
+     *         policy of the interceptor
+     */
+    int maxAttempts() default -1;
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.extensions.jcr.metrics.JcrMetricsUtils;
+import org.springframework.extensions.jcr.util.ConcurrentCachingMap;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Interceptor re-invoking the intercepted method when it fails with an exception classified as retryable by
+ * its {@link JcrRetryPolicy} (by default the concurrency failures such as
+ * <code>InvalidItemStateException</code> or <code>LockException</code>), waiting between the attempts as
+ * defined by the policy. The number of attempts can be customized per method or class through the
+ * {@link JcrRetry} annotation.
+ * <p>
+ * The interceptor has to be applied outside of the transaction (and {@link JcrInterceptor}) boundaries so
+ * that every attempt runs in a new transaction and session: when it is invoked while a transaction is
+ * already active, the method is invoked only once as the transaction could not be used anymore. A typical
+ * configuration applies it to the methods annotated with {@link JcrRetry}:
+ * 
+ * <pre>
+ * &lt;bean class=&quot;org.springframework.aop.support.DefaultPointcutAdvisor&quot;&gt;
+ *   &lt;property name=&quot;order&quot; value=&quot;0&quot;/&gt;
+ *   &lt;property name=&quot;pointcut&quot;&gt;
+ *     &lt;bean class=&quot;org.springframework.aop.support.annotation.AnnotationMatchingPointcut&quot;
+ *         factory-method=&quot;forMethodAnnotation&quot;&gt;
+ *       &lt;constructor-arg value=&quot;org.springframework.extensions.jcr.JcrRetry&quot;/&gt;
+ *     &lt;/bean&gt;
+ *   &lt;/property&gt;
+ *   &lt;property name=&quot;advice&quot;&gt;
+ *     &lt;bean class=&quot;org.springframework.extensions.jcr.JcrRetryInterceptor&quot;/&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * If metrics are configured, every retry is counted as {@link JcrMetrics#RETRY} and every invocation which
+ * still fails after the last attempt as {@link JcrMetrics#RETRY_EXHAUSTED}, tagged with the method (as
+ * <code>Class.method</code>) and the exception which caused the retry.
+ * @see RetryingJcrTemplate
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class JcrRetryInterceptor implements MethodInterceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JcrRetryInterceptor.class);
+
+    private JcrRetryPolicy retryPolicy = new JcrRetryPolicy();
+
+    /**
+     * metrics - optional.
+     */
+    private JcrMetrics metrics;
+
+    /**
+     * retry policy per (most specific) method, based on the JcrRetry annotation.
+     */
+    private final ConcurrentCachingMap<Method, JcrRetryPolicy> policies = new PolicyCache();
+
+    /**
+     * @see org.aopalliance.intercept.MethodInterceptor#invoke(org.aopalliance.intercept.MethodInvocation)
+     */
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            LOG.debug("Transaction already active; not retrying");
+            return invocation.proceed();
+        }
+        if (!(invocation instanceof ProxyMethodInvocation)) {
+            LOG.debug("Method invocation can not be repeated; not retrying");
+            return invocation.proceed();
+        }
+
+        Class<?> targetClass = (invocation.getThis() != null ? AopUtils.getTargetClass(invocation.getThis())
+                : null);
+        Method method = ClassUtils.getMostSpecificMethod(invocation.getMethod(), targetClass);
+        JcrRetryPolicy policy = policies.get(method);
+
+        for (int attempt = 1;; attempt++) {
+            try {
+                return ((ProxyMethodInvocation) invocation).invocableClone().proceed();
+            } catch (Throwable ex) {
+                Throwable cause = policy.getRetryableCause(ex);
+                if (cause == null)
+                    throw ex;
+                if (attempt >= policy.getMaxAttempts()) {
+                    if (metrics != null)
+                        metrics.incrementCounter(JcrMetrics.RETRY_EXHAUSTED, JcrMetrics.TAG_OPERATION,
+                                operationName(method), JcrMetrics.TAG_EXCEPTION,
+                                JcrMetricsUtils.exceptionName(cause));
+                    throw ex;
+                }
+                if (metrics != null)
+                    metrics.incrementCounter(JcrMetrics.RETRY, JcrMetrics.TAG_OPERATION, operationName(method),
+                            JcrMetrics.TAG_EXCEPTION, JcrMetricsUtils.exceptionName(cause));
+
+                long backOff = policy.getBackOff(attempt);
+                if (LOG.isDebugEnabled())
+                    LOG.debug("attempt " + attempt + " of " + method + " failed with " + cause + "; retrying in "
+                            + backOff + " ms");
+                try {
+                    Thread.sleep(backOff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private static String operationName(Method method) {
+        return ClassUtils.getShortName(method.getDeclaringClass()) + "." + method.getName();
+    }
+
+    /**
+     * @return Returns the retryPolicy.
+     */
+    public JcrRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy used for the methods which do not customize it through {@link JcrRetry}.
+     * @param retryPolicy The retryPolicy to set.
+     */
+    public void setRetryPolicy(JcrRetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("retryPolicy can't be null");
+        this.retryPolicy = retryPolicy;
+        policies.clear();
+    }
+
+    /**
+     * @return Returns the metrics.
+     */
+    public JcrMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the (optional) metrics used for counting the retries. No metrics are collected by default.
+     * @param metrics The metrics to set.
+     */
+    public void setMetrics(JcrMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Resolves the retry policy of a method from its (or its class) JcrRetry annotation.
+     */
+    private class PolicyCache extends ConcurrentCachingMap<Method, JcrRetryPolicy> {
+
+        @Override
+        protected JcrRetryPolicy create(Method method) {
+            JcrRetry retry = AnnotationUtils.findAnnotation(method, JcrRetry.class);
+            if (retry == null)
+                retry = AnnotationUtils.findAnnotation(method.getDeclaringClass(), JcrRetry.class);
+            return (retry != null && retry.maxAttempts() > 0 ? retryPolicy.withMaxAttempts(retry.maxAttempts())
+                    : retryPolicy);
+        }
+    }
+}
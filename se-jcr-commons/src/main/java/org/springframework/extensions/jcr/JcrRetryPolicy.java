@@ -0,0 +1,254 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.lock.LockException;
+
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Decides whether a failed JCR operation is retried and how long to wait before the next attempt. Used by
+ * {@link RetryingJcrTemplate} and {@link JcrRetryInterceptor}.
+ * <p/>
+ * An exception is classified by walking its cause chain: the deepest exception which is assignable to one of
+ * the configured exception types decides (so the original JCR exception takes precedence over the Spring
+ * exception it has been translated to), using the most specific matching type. By default
+ * <code>InvalidItemStateException</code>, <code>LockException</code> and their Spring counterpart
+ * <code>ConcurrencyFailureException</code> (see {@link SessionFactoryUtils#translateException}) are
+ * retryable.
+ * <p/>
+ * The delay between attempts grows exponentially: <code>initialInterval * multiplier^(attempt - 1)</code>,
+ * capped by maxInterval. A random jitter (a fraction of the delay, 0.5 by default) is subtracted so that
+ * concurrent writers which failed together do not retry together.
+ * <p/>
+ * The policy is immutable once configured and can be shared between threads.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class JcrRetryPolicy {
+
+    private static final Random RANDOM = new Random();
+
+    private int maxAttempts = 3;
+
+    private long initialInterval = 50;
+
+    private double multiplier = 2.0;
+
+    private long maxInterval = 1000;
+
+    private double jitter = 0.5;
+
+    private Map<Class<? extends Throwable>, Boolean> retryableExceptions;
+
+    /**
+     * Create a new policy using the default settings.
+     */
+    public JcrRetryPolicy() {
+        retryableExceptions = new LinkedHashMap<Class<? extends Throwable>, Boolean>();
+        retryableExceptions.put(InvalidItemStateException.class, Boolean.TRUE);
+        retryableExceptions.put(LockException.class, Boolean.TRUE);
+        retryableExceptions.put(ConcurrencyFailureException.class, Boolean.TRUE);
+    }
+
+    /**
+     * Indicates whether the operation which failed with the given exception can be attempted once more.
+     * @param ex failure of the last attempt
+     * @param attempt number of attempts made so far (starting with 1)
+     * @return true if the operation should be retried
+     */
+    public boolean canRetry(Throwable ex, int attempt) {
+        return attempt < maxAttempts && isRetryable(ex);
+    }
+
+    /**
+     * @param ex
+     * @return true if the given exception (or one of its causes) is classified as retryable
+     */
+    public boolean isRetryable(Throwable ex) {
+        return getRetryableCause(ex) != null;
+    }
+
+    /**
+     * Returns the exception which classifies the given one as retryable, used for reporting the retries.
+     * @param ex
+     * @return the exception (either the given one or one of its causes) or null if the given exception is
+     *         not retryable
+     */
+    public Throwable getRetryableCause(Throwable ex) {
+        Throwable decisive = null;
+        Boolean retryable = null;
+        Throwable current = ex;
+        while (current != null) {
+            Boolean classification = classify(current.getClass());
+            if (classification != null) {
+                decisive = current;
+                retryable = classification;
+            }
+            Throwable cause = current.getCause();
+            current = (cause == current ? null : cause);
+        }
+        return (retryable != null && retryable.booleanValue() ? decisive : null);
+    }
+
+    private Boolean classify(Class<?> exceptionClass) {
+        Class<?> bestMatch = null;
+        Boolean result = null;
+        for (Map.Entry<Class<? extends Throwable>, Boolean> entry : retryableExceptions.entrySet()) {
+            Class<?> candidate = entry.getKey();
+            if (candidate.isAssignableFrom(exceptionClass)
+                    && (bestMatch == null || bestMatch.isAssignableFrom(candidate))) {
+                bestMatch = candidate;
+                result = entry.getValue();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns how long to wait before the next attempt.
+     * @param attempt number of attempts made so far (starting with 1)
+     * @return the delay in milliseconds
+     */
+    public long getBackOff(int attempt) {
+        double delay = initialInterval * Math.pow(multiplier, Math.max(0, attempt - 1));
+        delay = Math.min(delay, maxInterval);
+        if (jitter > 0)
+            delay -= delay * jitter * RANDOM.nextDouble();
+        return Math.max(0, (long) delay);
+    }
+
+    /**
+     * Returns a copy of this policy allowing the given number of attempts.
+     * @param maxAttempts
+     * @return new policy
+     */
+    public JcrRetryPolicy withMaxAttempts(int maxAttempts) {
+        JcrRetryPolicy policy = new JcrRetryPolicy();
+        policy.initialInterval = initialInterval;
+        policy.multiplier = multiplier;
+        policy.maxInterval = maxInterval;
+        policy.jitter = jitter;
+        policy.retryableExceptions = retryableExceptions;
+        policy.setMaxAttempts(maxAttempts);
+        return policy;
+    }
+
+    /**
+     * @return Returns the maxAttempts.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts The maximum number of attempts (including the first one) to set. Default is 3.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts has to be positive");
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return Returns the initialInterval.
+     */
+    public long getInitialInterval() {
+        return initialInterval;
+    }
+
+    /**
+     * @param initialInterval The delay (in milliseconds) before the first retry to set. Default is 50.
+     */
+    public void setInitialInterval(long initialInterval) {
+        if (initialInterval < 0)
+            throw new IllegalArgumentException("initialInterval can't be negative");
+        this.initialInterval = initialInterval;
+    }
+
+    /**
+     * @return Returns the multiplier.
+     */
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * @param multiplier The factor applied to the delay after every retry to set. Default is 2.
+     */
+    public void setMultiplier(double multiplier) {
+        if (multiplier < 1)
+            throw new IllegalArgumentException("multiplier can't be smaller than 1");
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * @return Returns the maxInterval.
+     */
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * @param maxInterval The maximum delay (in milliseconds) between two attempts to set. Default is 1000.
+     */
+    public void setMaxInterval(long maxInterval) {
+        if (maxInterval < 0)
+            throw new IllegalArgumentException("maxInterval can't be negative");
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * @return Returns the jitter.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param jitter The fraction of the delay which is randomized to set, between 0 (no jitter) and 1. Default
+     *            is 0.5.
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("jitter has to be between 0 and 1");
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return Returns the retryableExceptions.
+     */
+    public Map<Class<? extends Throwable>, Boolean> getRetryableExceptions() {
+        return retryableExceptions;
+    }
+
+    /**
+     * Sets the exception types (and their subclasses) which are retryable (true) or not (false). The most
+     * specific type matching an exception decides; exceptions matching no type are not retried.
+     * @param retryableExceptions The retryableExceptions to set.
+     */
+    public void setRetryableExceptions(Map<Class<? extends Throwable>, Boolean> retryableExceptions) {
+        if (retryableExceptions == null)
+            throw new IllegalArgumentException("retryableExceptions can't be null");
+        this.retryableExceptions = new LinkedHashMap<Class<? extends Throwable>, Boolean>(retryableExceptions);
+    }
+}
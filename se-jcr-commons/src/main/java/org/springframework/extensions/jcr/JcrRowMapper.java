@@ -0,0 +1,39 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Row;
+
+/**
+ * Interface used by {@link JcrTemplate} for mapping the rows of a query result to objects, one row at a time.
+ * Similar to Spring's JDBC <code>RowMapper</code>.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public interface JcrRowMapper<T> {
+
+    /**
+     * Maps the given row. Implementations should not keep a reference to the row, which is only valid while
+     * the session is open.
+     * @param row current row
+     * @param rowNum number of the row (zero based, relative to the first returned row)
+     * @return the object for the row (can be null)
+     * @throws RepositoryException
+     */
+    public T mapRow(Row row, int rowNum) throws RepositoryException;
+}
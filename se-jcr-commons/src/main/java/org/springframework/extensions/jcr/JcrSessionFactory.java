@@ -16,9 +16,16 @@
 package org.springframework.extensions.jcr;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Credentials;
 import javax.jcr.NamespaceRegistry;
@@ -32,6 +39,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.extensions.jcr.metrics.JcrMetricsUtils;
 import org.springframework.extensions.jcr.support.GenericSessionHolderProvider;
 import org.springframework.util.Assert;
 
@@ -42,8 +51,13 @@ import org.springframework.util.Assert;
  * is done.
  * 
  * <p/>
- * The session factory is able to add event listener definitions for each
- * session and some utility methods.<br/>
+ * The session factory is able to register event listener definitions and
+ * some utility methods. The listeners are registered once, with a
+ * long-lived observation session opened by the factory, so that the
+ * sessions returned by {@link #getSession()} carry no observation overhead
+ * and every event is delivered only once. The observation session is
+ * checked periodically and reopened if it died (events which occurred in
+ * the meantime are lost).<br/>
  * Note that for added functionality (like JackRabbit SessionListener) you can
  * use the decorators package (available from JackRabbit).
  * 
@@ -102,6 +116,33 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
      */
     private SessionHolderProvider sessionHolderProvider;
 
+    /**
+     * metrics - optional.
+     */
+    private JcrMetrics metrics;
+
+    /**
+     * long-lived session the event listeners are registered with - null if there are no listeners.
+     */
+    private volatile Session observationSession;
+
+    private final Object observationMonitor = new Object();
+
+    private long observationCheckInterval = 5000;
+
+    private boolean multiplexEventListeners = false;
+
+    /**
+     * checks the observation session periodically - created only if there are listeners.
+     */
+    private ScheduledExecutorService observationWatchdog;
+
+    /**
+     * sessions handed out by this factory - tracked only when metrics are enabled.
+     */
+    private final Set<Session> openSessions = Collections.newSetFromMap(Collections
+            .synchronizedMap(new WeakHashMap<Session, Boolean>()));
+
     /**
      * Constructor with all the required fields.
      * @param repository
@@ -139,6 +180,14 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
         if (eventListeners != null && eventListeners.length > 0 && !JcrUtils.supportsObservation(getRepository()))
             throw new IllegalArgumentException("repository " + getRepositoryInfo() + " does NOT support Observation; remove Listener definitions");
 
+        // the shared observation session never writes, so there are no local events to leave out
+        for (int i = 0; eventListeners != null && i < eventListeners.length; i++) {
+            if (eventListeners[i].isNoLocal())
+                LOG.warn("noLocal is set for listener " + eventListeners[i].getListener()
+                        + " but has no effect: listeners are registered with the observation session, which does not "
+                        + "modify content, so events caused by the other sessions of the factory are still delivered");
+        }
+
         registerNamespaces();
         registerNodeTypes();
 
@@ -149,6 +198,98 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
             sessionHolderProvider = new GenericSessionHolderProvider();
         } else
             sessionHolderProvider = sessionHolderProviderManager.getSessionProvider(getRepository());
+
+        if (metrics != null) {
+            metrics.registerGauge(JcrMetrics.SESSIONS_OPEN, new JcrMetrics.Gauge() {
+                @Override
+                public double value() {
+                    return getOpenSessionCount();
+                }
+            }, JcrMetrics.TAG_WORKSPACE, (workspaceName != null ? workspaceName : JcrMetricsUtils.DEFAULT_WORKSPACE));
+        }
+
+        startObservation();
+    }
+
+    /**
+     * Registers the event listeners with a new observation session and starts checking the session.
+     * @throws RepositoryException
+     */
+    private void startObservation() throws RepositoryException {
+        if (eventListeners == null || eventListeners.length == 0)
+            return;
+        synchronized (observationMonitor) {
+            observationSession = openObservationSession();
+        }
+        if (observationCheckInterval > 0) {
+            ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jcr-observation-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            watchdog.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkObservationSession();
+                }
+            }, observationCheckInterval, observationCheckInterval, TimeUnit.MILLISECONDS);
+            observationWatchdog = watchdog;
+        }
+    }
+
+    private Session openObservationSession() throws RepositoryException {
+        Session session = getBareSession();
+        try {
+            return addListeners(session);
+        } catch (RepositoryException ex) {
+            session.logout();
+            throw ex;
+        } catch (RuntimeException ex) {
+            session.logout();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens a new observation session (registering the listeners again) if the current one is no longer live.
+     * Failures are logged and the session is checked again on the next run.
+     * @return true if the observation session has been reopened
+     */
+    boolean checkObservationSession() {
+        synchronized (observationMonitor) {
+            Session session = observationSession;
+            if (session == null || session.isLive())
+                return false;
+            LOG.warn("observation session " + session + " is no longer live; registering the event listeners again");
+            try {
+                observationSession = openObservationSession();
+                return true;
+            } catch (RepositoryException ex) {
+                LOG.warn("cannot reopen the observation session; retrying in " + observationCheckInterval + " ms", ex);
+            } catch (RuntimeException ex) {
+                LOG.warn("cannot reopen the observation session; retrying in " + observationCheckInterval + " ms", ex);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stops checking the observation session and logs it out, which unregisters the event listeners.
+     */
+    private void stopObservation() {
+        if (observationWatchdog != null) {
+            observationWatchdog.shutdownNow();
+            observationWatchdog = null;
+        }
+        synchronized (observationMonitor) {
+            Session session = observationSession;
+            observationSession = null;
+            if (session != null && session.isLive())
+                session.logout();
+        }
     }
 
     /**
@@ -238,6 +379,7 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
      */
     @Override
     public void destroy() throws Exception {
+        stopObservation();
         unregisterNodeTypes();
         unregisterNamespaces();
     }
@@ -281,8 +423,52 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
      */
     @Override
     public Session getSession() throws RepositoryException {
-        Session session = repository.login(credentials, workspaceName);
-        return addListeners(session);
+        Session session;
+        if (metrics == null) {
+            session = repository.login(credentials, workspaceName);
+        } else {
+            session = instrumentedLogin();
+        }
+        return session;
+    }
+
+    private Session instrumentedLogin() throws RepositoryException {
+        long start = System.nanoTime();
+        Session session = null;
+        Throwable failure = null;
+        try {
+            session = repository.login(credentials, workspaceName);
+            openSessions.add(session);
+            return session;
+        } catch (RepositoryException ex) {
+            failure = ex;
+            throw ex;
+        } catch (RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            String workspace = (session != null ? JcrMetricsUtils.workspaceName(session) : (workspaceName != null ? workspaceName
+                    : JcrMetricsUtils.DEFAULT_WORKSPACE));
+            metrics.recordTime(JcrMetrics.SESSION_LOGIN, System.nanoTime() - start, JcrMetrics.TAG_WORKSPACE, workspace,
+                    JcrMetrics.TAG_OPERATION, "login", JcrMetrics.TAG_EXCEPTION,
+                    JcrMetricsUtils.exceptionName(failure));
+        }
+    }
+
+    /**
+     * Returns the number of sessions obtained through {@link #getSession()} which are still live. The
+     * sessions are tracked only if metrics are enabled; otherwise 0 is returned.
+     * @return number of live sessions
+     */
+    public int getOpenSessionCount() {
+        int count = 0;
+        synchronized (openSessions) {
+            for (Session session : openSessions) {
+                if (session.isLive())
+                    count++;
+            }
+        }
+        return count;
     }
 
     /**
@@ -294,7 +480,8 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
     }
 
     /**
-     * Hook for adding listeners to the newly returned session. We have to treat exceptions manually and can't
+     * Hook for adding the listeners to the observation session, called once the factory is initialized and
+     * whenever the observation session has to be reopened. We have to treat exceptions manually and can't
      * reply on the template.
      * @param session JCR session
      * @return the listened session
@@ -307,6 +494,12 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
             if (LOG.isDebugEnabled())
                 LOG.debug("adding listeners " + Arrays.asList(eventListeners).toString() + " for session " + session);
 
+            if (multiplexEventListeners) {
+                MultiplexingEventListener listener = createMultiplexingEventListener(session, eventListeners);
+                manager.addEventListener(listener, listener.getEventTypes(), "/", true, null, null, false);
+                return session;
+            }
+
             for (int i = 0; i < eventListeners.length; i++) {
                 manager.addEventListener(eventListeners[i].getListener(), eventListeners[i].getEventTypes(), eventListeners[i].getAbsPath(),
                         eventListeners[i].isDeep(), eventListeners[i].getUuid(), eventListeners[i].getNodeTypeName(), eventListeners[i].isNoLocal());
@@ -315,6 +508,19 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
         return session;
     }
 
+    /**
+     * Creates the listener registered instead of the individual definitions when
+     * {@link #setMultiplexEventListeners(boolean) multiplexing} is enabled. Subclasses can return a listener
+     * reading the event details from the repository implementation.
+     * @param session observation session
+     * @param definitions listener definitions
+     * @return multiplexing listener
+     */
+    protected MultiplexingEventListener createMultiplexingEventListener(Session session,
+            EventListenerDefinition[] definitions) {
+        return new MultiplexingEventListener(session, definitions);
+    }
+
     /**
      * @return Returns the repository.
      */
@@ -372,6 +578,22 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
         return result;
     }
 
+    /**
+     * @return Returns the metrics.
+     */
+    public JcrMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the (optional) metrics used for publishing the login latency and the number of open sessions. No
+     * metrics are collected by default.
+     * @param metrics The metrics to set.
+     */
+    public void setMetrics(JcrMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * @see java.lang.Object#toString()
      */
@@ -385,6 +607,41 @@ public class JcrSessionFactory implements InitializingBean, DisposableBean, Sess
         return buffer.toString();
     }
 
+    /**
+     * @return Returns the observationCheckInterval.
+     */
+    public long getObservationCheckInterval() {
+        return observationCheckInterval;
+    }
+
+    /**
+     * Sets how often (in milliseconds) the observation session is checked and reopened if it died; 5 seconds
+     * by default. 0 disables the check.
+     * @param observationCheckInterval The observationCheckInterval to set.
+     */
+    public void setObservationCheckInterval(long observationCheckInterval) {
+        if (observationCheckInterval < 0)
+            throw new IllegalArgumentException("observationCheckInterval can't be negative");
+        this.observationCheckInterval = observationCheckInterval;
+    }
+
+    /**
+     * @return Returns the multiplexEventListeners.
+     */
+    public boolean isMultiplexEventListeners() {
+        return multiplexEventListeners;
+    }
+
+    /**
+     * Indicates whether the event listeners are registered with the repository through a single
+     * {@link MultiplexingEventListener} which routes the events to the interested definitions, instead of one
+     * registration per definition. Recommended for large numbers of definitions; false by default.
+     * @param multiplexEventListeners The multiplexEventListeners to set.
+     */
+    public void setMultiplexEventListeners(boolean multiplexEventListeners) {
+        this.multiplexEventListeners = multiplexEventListeners;
+    }
+
     /**
      * @return Returns the eventListenerDefinitions.
      */
@@ -17,13 +17,19 @@ package org.springframework.extensions.jcr;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
@@ -37,10 +43,17 @@ import javax.jcr.ValueFactory;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.extensions.jcr.metrics.JcrMetricsUtils;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.xml.sax.ContentHandler;
 
 /**
@@ -60,6 +73,14 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
 
     private boolean exposeNativeSession = false;
 
+    private int queryCacheSize = 32;
+
+    private int itemCacheSize = 0;
+
+    private Executor queryExecutor;
+
+    private QueryResultCache queryResultCache;
+
     /**
      */
     public JcrTemplate() {
@@ -79,28 +100,58 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
      */
     @Override
     public <T> T execute(JcrCallback<T> action, boolean exposeNativeSession) throws DataAccessException {
-        Session session = getSession();
-        boolean existingTransaction = SessionFactoryUtils.isSessionThreadBound(session, getSessionFactory());
-        if (existingTransaction) {
+        // a single lookup gives both the session and its binding state
+        SessionHolder sessionHolder = SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory());
+        Session session;
+        if (sessionHolder != null) {
             LOG.debug("Found thread-bound Session for JcrTemplate");
+            checkDeadline(sessionHolder);
+            session = sessionHolder.getSession();
+        } else {
+            session = getSession();
+            sessionHolder = getNewlyBoundSessionHolder();
         }
+        boolean existingTransaction = (sessionHolder != null);
+
+        JcrMetrics metrics = getMetrics();
+        long start = (metrics != null ? System.nanoTime() : 0);
+        Throwable failure = null;
 
         try {
-            Session sessionToExpose = (exposeNativeSession ? session : createSessionProxy(session));
+            Session sessionToExpose;
+            if (exposeNativeSession) {
+                sessionToExpose = session;
+            } else if (existingTransaction) {
+                sessionToExpose = sessionHolder.getLogoutSuppressingSession();
+            } else {
+                sessionToExpose = createSessionProxy(session);
+            }
             T result = action.doInJcr(sessionToExpose);
             // TODO: does flushing (session.refresh) should work here?
             // flushIfNecessary(session, existingTransaction);
             return result;
         } catch (RepositoryException ex) {
+            failure = ex;
             throw convertJcrAccessException(ex);
             // IOException are not converted here
         } catch (IOException ex) {
+            failure = ex;
             // use method to decouple the static call
             throw convertJcrAccessException(ex);
         } catch (RuntimeException ex) {
+            failure = ex;
             // Callback code threw application exception...
             throw convertJcrAccessException(ex);
+        } catch (Error err) {
+            failure = err;
+            throw err;
         } finally {
+            if (metrics != null) {
+                metrics.recordTime(JcrMetrics.TEMPLATE_EXECUTE, System.nanoTime() - start,
+                        JcrMetrics.TAG_WORKSPACE, JcrMetricsUtils.workspaceName(session),
+                        JcrMetrics.TAG_OPERATION, getOperationName(action),
+                        JcrMetrics.TAG_EXCEPTION, JcrMetricsUtils.exceptionName(failure));
+            }
             if (existingTransaction) {
                 LOG.debug("Not closing pre-bound Jcr Session after JcrTemplate");
             } else {
@@ -109,6 +160,30 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
         }
     }
 
+    /**
+     * Returns the holder a session just obtained from {@link #getSession()} has been bound with, which happens
+     * only if it joined a synchronized transaction. Since no session was bound before, the bound one (if any)
+     * is the new one; the lookup is only paid by calls which open a session anyway.
+     * @return the holder of the new session or null if the session is not bound to the thread
+     */
+    private SessionHolder getNewlyBoundSessionHolder() {
+        return SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory());
+    }
+
+    /**
+     * Fails fast, marking the transaction rollback-only, once the deadline of the transaction the session holder
+     * belongs to has passed.
+     * @param sessionHolder thread-bound session holder
+     * @throws TransactionTimedOutException if the deadline has passed
+     */
+    private static void checkDeadline(SessionHolder sessionHolder) {
+        if (sessionHolder.hasTimeout() && sessionHolder.getDeadline().getTime() <= System.currentTimeMillis()) {
+            sessionHolder.setRollbackOnly();
+            throw new TransactionTimedOutException("Transaction timed out: deadline was "
+                    + sessionHolder.getDeadline());
+        }
+    }
+
     /**
      * @see org.springframework.extensions.jcr.JcrOperations#execute(org.springframework.extensions.jcr.JcrCallback)
      */
@@ -117,9 +192,23 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
         return execute(callback, isExposeNativeSession());
     }
 
+    /**
+     * Returns the name under which the given callback is reported to the metrics. Subclasses that wrap
+     * callbacks can override this method to report the wrapped callback instead.
+     * @param action callback
+     * @return operation name
+     * @see JcrMetricsUtils#operationName(Object)
+     */
+    protected String getOperationName(JcrCallback<?> action) {
+        return JcrMetricsUtils.operationName(action);
+    }
+
     /**
      * Return a Session for use by this template. A pre-bound Session in case of "allowCreate" turned off and
      * a pre-bound or new Session else (new only if no transactional or otherwise pre-bound Session exists).
+     * <p>
+     * The template itself uses a thread-bound Session directly and calls this method only to obtain a new
+     * one; subclasses can override it to customize how that Session is opened.
      * @see SessionFactoryUtils#getSession
      * @see #setAllowCreate
      * @return
@@ -209,7 +298,16 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
              */
             @Override
             public Item doInJcr(Session session) throws RepositoryException {
-                return session.getItem(absPath);
+                ItemCache cache = getItemCache(session);
+                if (cache == null)
+                    return session.getItem(absPath);
+                Node node = cache.getByPath(absPath);
+                if (node != null)
+                    return node;
+                Item item = session.getItem(absPath);
+                if (item.isNode())
+                    cache.put((Node) item);
+                return item;
             }
         }, true);
     }
@@ -306,8 +404,16 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
              */
             @Override
             public Node doInJcr(Session session) throws RepositoryException {
-                return session.getNodeByIdentifier(id);
+                ItemCache cache = getItemCache(session);
+                if (cache == null)
+                    return session.getNodeByIdentifier(id);
                 //                return session.getNodeByUUID(uuid);
+                Node node = cache.getByIdentifier(id);
+                if (node == null) {
+                    node = session.getNodeByIdentifier(id);
+                    cache.put(node);
+                }
+                return node;
             }
         }, true);
     }
@@ -408,6 +514,9 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
              */
             @Override
             protected void doInJcrWithoutResult(Session session) throws RepositoryException {
+                ItemCache cache = getItemCache(session);
+                if (cache != null)
+                    cache.clear();
                 session.refresh(keepChanges);
             }
         }, true);
@@ -441,7 +550,11 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
              */
             @Override
             protected void doInJcrWithoutResult(Session session) throws RepositoryException {
-                session.move(node.getPath(), node.getParent().getPath() + "/" + newName);
+                String srcAbsPath = node.getPath();
+                ItemCache cache = getItemCache(session);
+                if (cache != null)
+                    cache.evict(srcAbsPath);
+                session.move(srcAbsPath, node.getParent().getPath() + "/" + newName);
             }
         }, true);
     }
@@ -506,11 +619,35 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
              */
             @Override
             protected void doInJcrWithoutResult(Session session) throws RepositoryException {
+                ItemCache cache = getItemCache(session);
+                if (cache != null) {
+                    cache.evict(srcAbsPath);
+                    cache.evict(destAbsPath);
+                }
                 session.move(srcAbsPath, destAbsPath);
             }
         }, true);
     }
 
+    /**
+     * @see org.springframework.extensions.jcr.JcrOperations#removeItem(java.lang.String)
+     */
+    @Override
+    public void removeItem(final String absPath) {
+        execute(new JcrCallbackWithoutResult() {
+            /**
+             * @see org.springframework.extensions.jcr.JcrCallbackWithoutResult#doInJcrwithoutResult(javax.jcr.Session)
+             */
+            @Override
+            protected void doInJcrWithoutResult(Session session) throws RepositoryException {
+                ItemCache cache = getItemCache(session);
+                if (cache != null)
+                    cache.evict(absPath);
+                session.removeItem(absPath);
+            }
+        }, true);
+    }
+
     /**
      * @see org.springframework.extensions.jcr.JcrOperations#save()
      */
@@ -552,41 +689,107 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
     }
 
     /**
-     * Recursive method for dumping a node. This method is separate to avoid the overhead of searching and
+     * @see org.springframework.extensions.jcr.JcrOperations#dump(javax.jcr.Node, java.lang.Appendable, int,
+     *      org.springframework.extensions.jcr.PropertyFilter)
+     */
+    @Override
+    public void dump(final Node node, final Appendable out, final int maxDepth, final PropertyFilter propertyFilter) {
+        if (out == null)
+            throw new IllegalArgumentException("out can't be null");
+
+        execute(new JcrCallback<Void>() {
+            /**
+             * @see JcrCallback#doInJcr(javax.jcr.Session)
+             */
+            @Override
+            public Void doInJcr(Session session) throws IOException, RepositoryException {
+                Node nd = node;
+
+                if (nd == null)
+                    nd = session.getRootNode();
+
+                dumpNode(nd, out, maxDepth, propertyFilter);
+                return null;
+            }
+
+        }, true);
+    }
+
+    /**
+     * Method for dumping a node. This method is separate to avoid the overhead of searching and
      * opening/closing JCR sessions.
      * @param node
      * @return
      * @throws RepositoryException
      */
     protected String dumpNode(Node node) throws RepositoryException {
-        StringBuffer buffer = new StringBuffer();
-        buffer.append(node.getPath());
+        StringBuilder buffer = new StringBuilder();
+        try {
+            dumpNode(node, buffer, -1, null);
+        } catch (IOException ex) {
+            // StringBuilder does not throw IOExceptions
+            throw new IllegalStateException(ex);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Writes the given node and its descendants (in document order) to the output. The tree is walked
+     * iteratively, keeping only the child iterators of the nodes on the current path.
+     * @param node
+     * @param out
+     * @param maxDepth maximum depth (relative to the given node); negative for no limit
+     * @param propertyFilter can be null
+     * @throws RepositoryException
+     * @throws IOException
+     */
+    protected void dumpNode(Node node, Appendable out, int maxDepth, PropertyFilter propertyFilter)
+            throws RepositoryException, IOException {
+        dumpNodeContent(node, out, propertyFilter);
+        if (maxDepth == 0)
+            return;
+
+        Deque<NodeIterator> path = new ArrayDeque<NodeIterator>();
+        path.push(node.getNodes());
+        while (!path.isEmpty()) {
+            NodeIterator nodes = path.peek();
+            if (!nodes.hasNext()) {
+                path.pop();
+                continue;
+            }
+            Node child = nodes.nextNode();
+            dumpNodeContent(child, out, propertyFilter);
+            if (maxDepth < 0 || path.size() < maxDepth)
+                path.push(child.getNodes());
+        }
+    }
+
+    /**
+     * Writes the path and the properties of a single node.
+     */
+    private void dumpNodeContent(Node node, Appendable out, PropertyFilter propertyFilter) throws RepositoryException,
+            IOException {
+        out.append(node.getPath());
 
         PropertyIterator properties = node.getProperties();
         while (properties.hasNext()) {
             Property property = properties.nextProperty();
-            buffer.append(property.getPath()).append("=");
+            if (propertyFilter != null && !propertyFilter.accept(property))
+                continue;
+            out.append(property.getPath()).append("=");
             if (property.getDefinition().isMultiple()) {
                 Value[] values = property.getValues();
                 for (int i = 0; i < values.length; i++) {
                     if (i > 0) {
-                        buffer.append(",");
+                        out.append(",");
                     }
-                    buffer.append(values[i].getString());
+                    out.append(values[i].getString());
                 }
             } else {
-                buffer.append(property.getString());
+                out.append(property.getString());
             }
-            buffer.append("\n");
-        }
-
-        NodeIterator nodes = node.getNodes();
-        while (nodes.hasNext()) {
-            Node child = nodes.nextNode();
-            buffer.append(dumpNode(child));
+            out.append("\n");
         }
-        return buffer.toString();
-
     }
 
     /**
@@ -633,6 +836,15 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
      */
     @Override
     public QueryResult query(final String statement, final String language) {
+        return query(statement, language, null);
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#query(java.lang.String, java.lang.String,
+     *      java.util.Map)
+     */
+    @Override
+    public QueryResult query(final String statement, final String language, final Map<String, ?> bindVariables) {
 
         if (statement == null)
             throw new IllegalArgumentException("statement can't be null");
@@ -647,22 +859,320 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
                 String lang = language;
                 if (lang == null)
                     lang = Query.XPATH;
-                boolean debug = LOG.isDebugEnabled();
 
-                // get query manager
-                QueryManager manager = session.getWorkspace().getQueryManager();
-                if (debug)
-                    LOG.debug("retrieved manager " + manager);
+                QueryResultCache cache = queryResultCache;
+                if (cache == null || !isQueryResultCacheable(session)) {
+                    Query query = createQuery(session, statement, lang, bindVariables);
+                    return query.execute();
+                }
 
-                Query query = manager.createQuery(statement, lang);
-                if (debug)
-                    LOG.debug("created query " + query);
+                Object key = cache.createKey(statement, lang, bindVariables);
+                QueryResultSnapshot snapshot = cache.get(key);
+                if (snapshot == null) {
+                    long generation = cache.getGeneration();
+                    QueryResult result = createQuery(session, statement, lang, bindVariables).execute();
+                    RowIterator rows = result.getRows();
+                    snapshot = QueryResultSnapshot.create(result, rows, cache.getMaxRows());
+                    // the rows can only be obtained once, so the caller reads them from the same iterator
+                    if (snapshot == null)
+                        return QueryResultSnapshot.wrap(result, rows);
+                    cache.put(key, statement, lang, snapshot, generation, session);
+                }
+                return snapshot.toQueryResult(session);
+            }
+        }, true);
+    }
 
-                return query.execute();
+    /**
+     * Results read inside a transaction or with pending changes might not be visible to other sessions, so
+     * they are neither taken from nor put into the query result cache.
+     */
+    private boolean isQueryResultCacheable(Session session) throws RepositoryException {
+        return !TransactionSynchronizationManager.isActualTransactionActive() && !session.hasPendingChanges();
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#prepareQuery(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public PreparedQuery prepareQuery(String statement, String language) {
+        if (statement == null)
+            throw new IllegalArgumentException("statement can't be null");
+        return new TemplatePreparedQuery(statement, (language == null ? Query.XPATH : language));
+    }
+
+    /**
+     * Returns the query for the given statement, with the bind variables bound. When the session is bound to
+     * the thread, the parsed query is looked up in (or added to) the query cache kept by its SessionHolder.
+     * @param session
+     * @param statement
+     * @param language
+     * @param bindVariables can be null
+     * @return the query ready to be executed
+     * @throws RepositoryException
+     */
+    protected Query createQuery(Session session, String statement, String language, Map<String, ?> bindVariables)
+            throws RepositoryException {
+        return createQuery(session, statement, language, bindVariables, -1, -1);
+    }
+
+    /**
+     * Same as {@link #createQuery(Session, String, String, Map)} but also applies the given offset and limit.
+     * @param session
+     * @param statement
+     * @param language
+     * @param bindVariables can be null
+     * @param offset first row; negative if the query is not paged
+     * @param limit maximum number of rows; must be positive for paged queries
+     * @return the query ready to be executed
+     * @throws RepositoryException
+     */
+    protected Query createQuery(Session session, String statement, String language, Map<String, ?> bindVariables,
+            long offset, long limit) throws RepositoryException {
+        boolean debug = LOG.isDebugEnabled();
+        boolean paged = (offset >= 0 || limit > 0);
+
+        QueryCache cache = getQueryCache(session);
+        Query query = (cache != null ? cache.get(statement, language, paged) : null);
+        boolean cached = (query != null);
+        if (!cached) {
+            // get query manager
+            QueryManager manager = session.getWorkspace().getQueryManager();
+            if (debug)
+                LOG.debug("retrieved manager " + manager);
+
+            query = manager.createQuery(statement, language);
+            if (debug)
+                LOG.debug("created query " + query);
+            if (cache != null)
+                cache.put(statement, language, paged, query);
+        } else if (debug)
+            LOG.debug("reusing cached query " + query);
+
+        // a reused query keeps the values of its previous execution so all variables are always rebound
+        if (bindVariables != null || cached)
+            bindVariables(session, query, bindVariables);
+        if (paged) {
+            query.setOffset(Math.max(offset, 0));
+            if (limit > 0)
+                query.setLimit(limit);
+        }
+        return query;
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#queryForPage(java.lang.String,
+     *      java.lang.String, java.util.Map, long, long, org.springframework.extensions.jcr.JcrRowMapper)
+     */
+    @Override
+    public <T> List<T> queryForPage(final String statement, final String language, final Map<String, ?> bindVariables,
+            final long offset, final long limit, final JcrRowMapper<T> rowMapper) {
+        if (rowMapper == null)
+            throw new IllegalArgumentException("rowMapper can't be null");
+        checkPage(statement, offset, limit);
+
+        return execute(new JcrCallback<List<T>>() {
+            /**
+             * @see org.springframework.extensions.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+             */
+            @Override
+            public List<T> doInJcr(Session session) throws RepositoryException {
+                Query query = createQuery(session, statement, (language == null ? Query.XPATH : language),
+                        bindVariables, offset, limit);
+                RowIterator rows = query.execute().getRows();
+                List<T> page = new ArrayList<T>((int) Math.min(limit, 1024));
+                for (int i = 0; rows.hasNext(); i++) {
+                    page.add(rowMapper.mapRow(rows.nextRow(), i));
+                }
+                return page;
             }
         }, true);
     }
 
+    /**
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#queryForPage(java.lang.String,
+     *      java.lang.String, java.util.Map, long, long, org.springframework.extensions.jcr.JcrNodeMapper)
+     */
+    @Override
+    public <T> List<T> queryForPage(final String statement, final String language, final Map<String, ?> bindVariables,
+            final long offset, final long limit, final JcrNodeMapper<T> nodeMapper) {
+        if (nodeMapper == null)
+            throw new IllegalArgumentException("nodeMapper can't be null");
+        checkPage(statement, offset, limit);
+
+        return execute(new JcrCallback<List<T>>() {
+            /**
+             * @see org.springframework.extensions.jcr.JcrCallback#doInJcr(javax.jcr.Session)
+             */
+            @Override
+            public List<T> doInJcr(Session session) throws RepositoryException {
+                Query query = createQuery(session, statement, (language == null ? Query.XPATH : language),
+                        bindVariables, offset, limit);
+                NodeIterator nodes = query.execute().getNodes();
+                List<T> page = new ArrayList<T>((int) Math.min(limit, 1024));
+                for (int i = 0; nodes.hasNext(); i++) {
+                    page.add(nodeMapper.mapNode(nodes.nextNode(), i));
+                }
+                return page;
+            }
+        }, true);
+    }
+
+    private static void checkPage(String statement, long offset, long limit) {
+        if (statement == null)
+            throw new IllegalArgumentException("statement can't be null");
+        if (offset < 0)
+            throw new IllegalArgumentException("offset can't be negative");
+        // a limit of 0 is treated as 'no limit' by some repositories
+        if (limit <= 0)
+            throw new IllegalArgumentException("limit has to be positive");
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#queryForIterator(java.lang.String,
+     *      java.lang.String, java.util.Map, org.springframework.extensions.jcr.JcrRowMapper)
+     */
+    @Override
+    public <T> CloseableIterator<T> queryForIterator(String statement, String language, Map<String, ?> bindVariables,
+            final JcrRowMapper<T> rowMapper) {
+        if (rowMapper == null)
+            throw new IllegalArgumentException("rowMapper can't be null");
+        return openIterator(statement, language, bindVariables, new ResultIteratorFactory<T>() {
+            @Override
+            public CloseableIterator<T> createIterator(QueryResult result, Session session, boolean releaseSession)
+                    throws RepositoryException {
+                return QueryResultIterator.forRows(result.getRows(), rowMapper, JcrTemplate.this, session,
+                        releaseSession);
+            }
+        });
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#queryForIterator(java.lang.String,
+     *      java.lang.String, java.util.Map, org.springframework.extensions.jcr.JcrNodeMapper)
+     */
+    @Override
+    public <T> CloseableIterator<T> queryForIterator(String statement, String language, Map<String, ?> bindVariables,
+            final JcrNodeMapper<T> nodeMapper) {
+        if (nodeMapper == null)
+            throw new IllegalArgumentException("nodeMapper can't be null");
+        return openIterator(statement, language, bindVariables, new ResultIteratorFactory<T>() {
+            @Override
+            public CloseableIterator<T> createIterator(QueryResult result, Session session, boolean releaseSession)
+                    throws RepositoryException {
+                return QueryResultIterator.forNodes(result.getNodes(), nodeMapper, JcrTemplate.this, session,
+                        releaseSession);
+            }
+        });
+    }
+
+    /**
+     * Executes the query outside of {@link #execute(JcrCallback, boolean)} since the session has to outlive
+     * the call; the iterator takes over the responsibility of releasing it.
+     */
+    private <T> CloseableIterator<T> openIterator(String statement, String language, Map<String, ?> bindVariables,
+            ResultIteratorFactory<T> factory) {
+        if (statement == null)
+            throw new IllegalArgumentException("statement can't be null");
+
+        SessionHolder sessionHolder = SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory());
+        Session session;
+        if (sessionHolder != null) {
+            session = sessionHolder.getSession();
+        } else {
+            session = getSession();
+            sessionHolder = getNewlyBoundSessionHolder();
+        }
+        boolean releaseSession = (sessionHolder == null);
+        try {
+            Query query = createQuery(session, statement, (language == null ? Query.XPATH : language), bindVariables);
+            return factory.createIterator(query.execute(), session, releaseSession);
+        } catch (RepositoryException ex) {
+            if (releaseSession)
+                SessionFactoryUtils.releaseSession(session, getSessionFactory());
+            throw convertJcrAccessException(ex);
+        } catch (RuntimeException ex) {
+            if (releaseSession)
+                SessionFactoryUtils.releaseSession(session, getSessionFactory());
+            throw convertJcrAccessException(ex);
+        }
+    }
+
+    /**
+     * Creates the iterator over a query result (rows or nodes).
+     */
+    private interface ResultIteratorFactory<T> {
+
+        CloseableIterator<T> createIterator(QueryResult result, Session session, boolean releaseSession)
+                throws RepositoryException;
+    }
+
+    private void bindVariables(Session session, Query query, Map<String, ?> bindVariables)
+            throws RepositoryException {
+        String[] names = query.getBindVariableNames();
+        int bound = 0;
+        ValueFactory valueFactory = null;
+        for (String name : names) {
+            if (bindVariables == null || !bindVariables.containsKey(name))
+                throw new InvalidDataAccessApiUsageException("no value given for bind variable [" + name
+                        + "] of query [" + query.getStatement() + "]");
+            if (valueFactory == null)
+                valueFactory = session.getValueFactory();
+            try {
+                query.bindValue(name, JcrUtils.createValue(valueFactory, bindVariables.get(name)));
+            } catch (IllegalArgumentException ex) {
+                throw new InvalidDataAccessApiUsageException("invalid value for bind variable [" + name + "]", ex);
+            }
+            bound++;
+        }
+        if (bindVariables != null && bound < bindVariables.size())
+            throw new InvalidDataAccessApiUsageException("query [" + query.getStatement()
+                    + "] only declares the bind variables " + Arrays.asList(names) + " but got "
+                    + bindVariables.keySet());
+    }
+
+    private QueryCache getQueryCache(Session session) {
+        if (queryCacheSize <= 0)
+            return null;
+        SessionHolder sessionHolder = SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory());
+        if (sessionHolder == null || sessionHolder.getSession() != session)
+            return null;
+        QueryCache cache = (QueryCache) sessionHolder.getAttribute(QueryCache.ATTRIBUTE_NAME);
+        if (cache == null) {
+            cache = new QueryCache(queryCacheSize);
+            sessionHolder.setAttribute(QueryCache.ATTRIBUTE_NAME, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the item cache of the transaction the given session takes part in, creating it if needed. Nodes are
+     * only cached inside transactions, so that they are released together with the transaction.
+     * @return the item cache or null if nodes should not be cached
+     */
+    private ItemCache getItemCache(Session session) {
+        if (itemCacheSize <= 0 || !TransactionSynchronizationManager.isActualTransactionActive())
+            return null;
+        final SessionHolder sessionHolder = SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory());
+        if (sessionHolder == null || sessionHolder.getSession() != session)
+            return null;
+        ItemCache cache = (ItemCache) sessionHolder.getAttribute(ItemCache.ATTRIBUTE_NAME);
+        if (cache == null) {
+            if (!TransactionSynchronizationManager.isSynchronizationActive())
+                return null;
+            cache = new ItemCache(itemCacheSize);
+            sessionHolder.setAttribute(ItemCache.ATTRIBUTE_NAME, cache);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    sessionHolder.setAttribute(ItemCache.ATTRIBUTE_NAME, null);
+                }
+            });
+        }
+        return cache;
+    }
+
     /**
      * @see org.springframework.extensions.jcr.JcrOperations#query(java.util.List)
      */
@@ -722,72 +1232,268 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
     }
 
     /**
-     * @return Returns the allowCreate.
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#query(java.util.List, java.lang.String,
+     *      boolean, org.springframework.extensions.jcr.JcrRowMapper)
      */
-    public boolean isAllowCreate() {
-        return allowCreate;
+    @Override
+    public <T> Map<String, List<T>> query(List<String> list, String language, boolean ignoreErrors,
+            final JcrRowMapper<T> rowMapper) {
+        if (rowMapper == null)
+            throw new IllegalArgumentException("rowMapper can't be null");
+        return queryAll(list, language, ignoreErrors, new ResultMapper<T>() {
+            @Override
+            public List<T> map(QueryResult result) throws RepositoryException {
+                RowIterator rows = result.getRows();
+                List<T> mapped = new ArrayList<T>();
+                for (int i = 0; rows.hasNext(); i++) {
+                    mapped.add(rowMapper.mapRow(rows.nextRow(), i));
+                }
+                return mapped;
+            }
+        });
     }
 
     /**
-     * @param allowCreate The allowCreate to set.
+     * @see org.springframework.extensions.jcr.JcrModel1Operations#query(java.util.List, java.lang.String,
+     *      boolean, org.springframework.extensions.jcr.JcrNodeMapper)
      */
-    public void setAllowCreate(boolean allowCreate) {
-        this.allowCreate = allowCreate;
+    @Override
+    public <T> Map<String, List<T>> query(List<String> list, String language, boolean ignoreErrors,
+            final JcrNodeMapper<T> nodeMapper) {
+        if (nodeMapper == null)
+            throw new IllegalArgumentException("nodeMapper can't be null");
+        return queryAll(list, language, ignoreErrors, new ResultMapper<T>() {
+            @Override
+            public List<T> map(QueryResult result) throws RepositoryException {
+                NodeIterator nodes = result.getNodes();
+                List<T> mapped = new ArrayList<T>();
+                for (int i = 0; nodes.hasNext(); i++) {
+                    mapped.add(nodeMapper.mapNode(nodes.nextNode(), i));
+                }
+                return mapped;
+            }
+        });
     }
 
     /**
-     * Create a close-suppressing proxy for the given Jcr Session.
-     * @param session the Jcr Session to create a proxy for
-     * @return the Session proxy
-     * @see javax.jcr.Session#logout()
+     * Runs the statements in parallel (one task, hence one session, per statement) if an executor is
+     * configured and the calling thread has no session bound. A bound session carries the transaction and
+     * the unsaved changes of the caller which sessions opened by the workers would not see, so in that case
+     * the statements are executed one after another, as in {@link #query(List, String, boolean)}.
      */
-    protected Session createSessionProxy(Session session) {
-        return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {Session.class}, new LogoutSuppressingInvocationHandler(session));
+    private <T> Map<String, List<T>> queryAll(final List<String> list, String language, final boolean ignoreErrors,
+            final ResultMapper<T> mapper) {
+        if (list == null)
+            throw new IllegalArgumentException("list can't be null");
+        final String lang = (language == null ? Query.XPATH : language);
+
+        if (queryExecutor == null || list.size() < 2
+                || SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory()) != null) {
+            return execute(new JcrCallback<Map<String, List<T>>>() {
+                /**
+                 * @see JcrCallback#doInJcr(javax.jcr.Session)
+                 */
+                @Override
+                public Map<String, List<T>> doInJcr(Session session) throws RepositoryException {
+                    Map<String, List<T>> map = new LinkedHashMap<String, List<T>>(list.size());
+                    for (String statement : list) {
+                        map.put(statement, new StatementCallback<T>(statement, lang, ignoreErrors, mapper)
+                                .doInJcr(session));
+                    }
+                    return map;
+                }
+            }, true);
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("executing " + list.size() + " queries in parallel");
+        List<FutureTask<List<T>>> tasks = new ArrayList<FutureTask<List<T>>>(list.size());
+        try {
+            for (String statement : list) {
+                final JcrCallback<List<T>> callback = new StatementCallback<T>(statement, lang, ignoreErrors, mapper);
+                FutureTask<List<T>> task = new FutureTask<List<T>>(new Callable<List<T>>() {
+                    @Override
+                    public List<T> call() {
+                        // the worker thread has no bound session so execute opens and releases its own
+                        return execute(callback, true);
+                    }
+                });
+                tasks.add(task);
+                queryExecutor.execute(task);
+            }
+
+            Map<String, List<T>> map = new LinkedHashMap<String, List<T>>(list.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                map.put(list.get(i), tasks.get(i).get());
+            }
+            return map;
+        } catch (ExecutionException ex) {
+            cancel(tasks);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new JcrSystemException(cause);
+        } catch (InterruptedException ex) {
+            cancel(tasks);
+            Thread.currentThread().interrupt();
+            throw new JcrSystemException("interrupted while waiting for the query results", ex);
+        } catch (RuntimeException ex) {
+            // most likely the executor rejected a task
+            cancel(tasks);
+            throw ex;
+        }
+    }
+
+    private static void cancel(List<? extends Future<?>> tasks) {
+        for (Future<?> task : tasks) {
+            task.cancel(true);
+        }
     }
 
     /**
-     * Invocation handler that suppresses logout calls on JCR Session.
-     * @see javax.jcr.Session#logout()
+     * Maps a query result while its session is still open.
      */
-    private class LogoutSuppressingInvocationHandler implements InvocationHandler {
+    private interface ResultMapper<T> {
+
+        List<T> map(QueryResult result) throws RepositoryException;
+    }
+
+    /**
+     * Executes a single statement of a query list. As in {@link JcrTemplate#query(List, String, boolean)},
+     * only the execution errors are ignored, an invalid statement is always reported.
+     */
+    private class StatementCallback<T> implements JcrCallback<List<T>> {
+
+        private final String statement;
+
+        private final String language;
+
+        private final boolean ignoreErrors;
 
-        private final Session target;
+        private final ResultMapper<T> mapper;
 
-        public LogoutSuppressingInvocationHandler(Session target) {
-            this.target = target;
+        public StatementCallback(String statement, String language, boolean ignoreErrors, ResultMapper<T> mapper) {
+            this.statement = statement;
+            this.language = language;
+            this.ignoreErrors = ignoreErrors;
+            this.mapper = mapper;
         }
 
+        /**
+         * @see JcrCallback#doInJcr(javax.jcr.Session)
+         */
         @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            // Invocation on Session interface (or vendor-specific
-            // extension) coming in...
-
-            if (method.getName().equals("equals")) {
-                // Only consider equal when proxies are identical.
-                return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
-            } else if (method.getName().equals("hashCode")) {
-                // Use hashCode of session proxy.
-                return hashCode();
-            } else if (method.getName().equals("logout")) {
-                // Handle close method: suppress, not valid.
-                return null;
-            }
-
-            // Invoke method on target Session.
+        public List<T> doInJcr(Session session) throws RepositoryException {
+            Query query = session.getWorkspace().getQueryManager().createQuery(statement, language);
             try {
-                Object retVal = method.invoke(this.target, args);
-
-                // TODO: watch out for Query returned
-                /*
-                 * if (retVal instanceof Query) { prepareQuery(((Query) retVal)); }
-                 */
-                return retVal;
-            } catch (InvocationTargetException ex) {
-                throw ex.getTargetException();
+                return mapper.map(query.execute());
+            } catch (RepositoryException e) {
+                if (ignoreErrors)
+                    return null;
+                throw e;
             }
         }
     }
 
+    /**
+     * @return Returns the queryCacheSize.
+     */
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of parsed queries cached per thread-bound session (32 by default). Queries
+     * executed on sessions which are not bound to the thread are never cached. A value of 0 disables the
+     * cache.
+     * @param queryCacheSize The queryCacheSize to set.
+     */
+    public void setQueryCacheSize(int queryCacheSize) {
+        this.queryCacheSize = queryCacheSize;
+    }
+
+    /**
+     * @return Returns the itemCacheSize.
+     */
+    public int getItemCacheSize() {
+        return itemCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of nodes cached per transaction by {@link #getItem(String)} and
+     * {@link #getNodeByIdentifier(String)}, so that repeated lookups inside one transaction skip the repository
+     * (and its access checks). The cache is dropped when the transaction completes and entries are evicted by
+     * {@link #move(String, String)}, {@link #rename(Node, String)}, {@link #removeItem(String)} and
+     * {@link #refresh(boolean)}. 0 (the default) disables the cache.
+     * @param itemCacheSize The itemCacheSize to set.
+     */
+    public void setItemCacheSize(int itemCacheSize) {
+        this.itemCacheSize = itemCacheSize;
+    }
+
+    /**
+     * @return Returns the queryExecutor.
+     */
+    public Executor getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    /**
+     * Sets the executor used to run the statements of {@link #query(List, String, boolean, JcrRowMapper)} in
+     * parallel; each statement uses its own session from the SessionFactory, so the executor should be bounded
+     * (for example a ThreadPoolTaskExecutor) and sized together with the session pool, if any. Without an
+     * executor (the default) the statements are executed one after another.
+     * @param queryExecutor The queryExecutor to set.
+     */
+    public void setQueryExecutor(Executor queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
+    /**
+     * @return Returns the queryResultCache.
+     */
+    public QueryResultCache getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    /**
+     * Sets the cache used by {@link #query(String, String, Map)} (and the methods delegating to it). The cache
+     * has to be registered as an event listener of the SessionFactory, otherwise it is never invalidated. By
+     * default no results are cached.
+     * @param queryResultCache The queryResultCache to set.
+     * @see QueryResultCache
+     */
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    /**
+     * @return Returns the allowCreate.
+     */
+    public boolean isAllowCreate() {
+        return allowCreate;
+    }
+
+    /**
+     * @param allowCreate The allowCreate to set.
+     */
+    public void setAllowCreate(boolean allowCreate) {
+        this.allowCreate = allowCreate;
+    }
+
+    /**
+     * Create a close-suppressing wrapper for the given Jcr Session. Used for sessions which are not
+     * thread-bound; thread-bound sessions reuse the wrapper kept by their SessionHolder.
+     * @param session the Jcr Session to create a wrapper for
+     * @return the Session wrapper
+     * @see javax.jcr.Session#logout()
+     */
+    protected Session createSessionProxy(Session session) {
+        return new LogoutSuppressingSession(session);
+    }
+
     protected boolean isVersionable(Node node) throws RepositoryException {
         return node.isNodeType("mix:versionable");
     }
@@ -806,4 +1512,43 @@ public class JcrTemplate extends JcrAccessor implements JcrOperations {
         this.exposeNativeSession = exposeNativeSession;
     }
 
+    /**
+     * PreparedQuery implementation executing through this template.
+     */
+    private class TemplatePreparedQuery implements PreparedQuery {
+
+        private final String statement;
+
+        private final String language;
+
+        public TemplatePreparedQuery(String statement, String language) {
+            this.statement = statement;
+            this.language = language;
+        }
+
+        @Override
+        public String getStatement() {
+            return statement;
+        }
+
+        @Override
+        public String getLanguage() {
+            return language;
+        }
+
+        @Override
+        public QueryResult execute() {
+            return query(statement, language, Collections.<String, Object> emptyMap());
+        }
+
+        @Override
+        public QueryResult execute(Map<String, ?> bindVariables) {
+            return query(statement, language, bindVariables);
+        }
+
+        @Override
+        public String toString() {
+            return "PreparedQuery[" + language + "] " + statement;
+        }
+    }
 }
@@ -15,10 +15,19 @@
  */
 package org.springframework.extensions.jcr;
 
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.jcr.Binary;
+import javax.jcr.Node;
 import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
 
 import org.apache.xerces.util.XMLChar;
 
@@ -188,6 +197,71 @@ public abstract class JcrUtils {
         return "true".equals(repository.getDescriptor(Repository.QUERY_XPATH_DOC_ORDER));
     }
 
+    /**
+     * Converts the given object into a JCR value. Supported types are Value, String, Long/Integer/Short/Byte,
+     * Double/Float, Boolean, BigDecimal, Calendar, Date, Binary, InputStream and Node (as a reference).
+     * @param valueFactory factory of the session the value is used with
+     * @param object object to convert
+     * @return JCR value
+     * @throws RepositoryException
+     * @throws IllegalArgumentException if the object is null or of an unsupported type
+     */
+    public static Value createValue(ValueFactory valueFactory, Object object) throws RepositoryException {
+        if (object instanceof Value)
+            return (Value) object;
+        if (object instanceof String)
+            return valueFactory.createValue((String) object);
+        if (object instanceof Long || object instanceof Integer || object instanceof Short || object instanceof Byte)
+            return valueFactory.createValue(((Number) object).longValue());
+        if (object instanceof Double || object instanceof Float)
+            return valueFactory.createValue(((Number) object).doubleValue());
+        if (object instanceof Boolean)
+            return valueFactory.createValue(((Boolean) object).booleanValue());
+        if (object instanceof BigDecimal)
+            return valueFactory.createValue((BigDecimal) object);
+        if (object instanceof Calendar)
+            return valueFactory.createValue((Calendar) object);
+        if (object instanceof Date) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime((Date) object);
+            return valueFactory.createValue(calendar);
+        }
+        if (object instanceof Binary)
+            return valueFactory.createValue((Binary) object);
+        if (object instanceof InputStream)
+            return valueFactory.createValue(valueFactory.createBinary((InputStream) object));
+        if (object instanceof Node)
+            return valueFactory.createValue((Node) object);
+        if (object == null)
+            throw new IllegalArgumentException("null can not be converted to a JCR value");
+        throw new IllegalArgumentException("can not convert " + object.getClass().getName() + " to a JCR value");
+    }
+
+    /**
+     * Checks whether the first absolute path is the same as, or an ancestor of, the second one. Both paths are
+     * compared as strings, without resolving '.' or '..' segments.
+     * @param ancestor absolute path
+     * @param path absolute path
+     * @return true if path is ancestor itself or one of its descendants
+     */
+    public static boolean isAncestorOrSelf(String ancestor, String path) {
+        if (ancestor.equals("/") || ancestor.equals(path))
+            return true;
+        return path.startsWith(ancestor) && path.length() > ancestor.length()
+                && path.charAt(ancestor.length()) == '/';
+    }
+
+    /**
+     * Checks whether two absolute paths lie on the same branch, i.e. one of them is an ancestor of (or the
+     * same as) the other one.
+     * @param path1 absolute path
+     * @param path2 absolute path
+     * @return true if the paths are related
+     */
+    public static boolean isSameBranch(String path1, String path2) {
+        return isAncestorOrSelf(path1, path2) || isAncestorOrSelf(path2, path1);
+    }
+
     /**
      * Escapes the Jcr names using ISO 9075 encoding.
      * @param decoded
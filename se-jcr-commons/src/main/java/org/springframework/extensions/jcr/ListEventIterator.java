@@ -0,0 +1,78 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * EventIterator over a list of events, used for delivering batches of events to listeners.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+class ListEventIterator implements EventIterator {
+
+    private final List<Event> events;
+
+    private int position;
+
+    public ListEventIterator(List<Event> events) {
+        this.events = events;
+    }
+
+    @Override
+    public Event nextEvent() {
+        if (position >= events.size())
+            throw new NoSuchElementException();
+        return events.get(position++);
+    }
+
+    @Override
+    public Object next() {
+        return nextEvent();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < events.size();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void skip(long skipNum) {
+        if (skipNum < 0 || position + skipNum > events.size())
+            throw new NoSuchElementException();
+        position += (int) skipNum;
+    }
+
+    @Override
+    public long getSize() {
+        return events.size();
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+}
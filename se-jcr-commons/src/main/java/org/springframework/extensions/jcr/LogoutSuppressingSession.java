@@ -0,0 +1,48 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import javax.jcr.Session;
+
+import org.springframework.extensions.jcr.support.DelegatingSession;
+
+/**
+ * Session decorator that suppresses logout calls. Used by {@link JcrTemplate} for exposing a session to
+ * callback code when <code>exposeNativeSession</code> is false. Equality is based on identity, just as for
+ * the proxy it replaces.
+ * @see javax.jcr.Session#logout()
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+class LogoutSuppressingSession extends DelegatingSession {
+
+    /**
+     * @param target
+     */
+    LogoutSuppressingSession(Session target) {
+        super(target);
+    }
+
+    /**
+     * Handle close method: suppress, not valid.
+     * @see org.springframework.extensions.jcr.support.DelegatingSession#logout()
+     */
+    @Override
+    public void logout() {
+        // do nothing
+    }
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventListener which stands for a set of {@link EventListenerDefinition}s, so that the repository only
+ * evaluates one registration (see {@link JcrSessionFactory#setMultiplexEventListeners(boolean)}). Events are
+ * routed to the interested definitions through a trie of their paths and an index of the definitions which
+ * only filter by node type, so the cost of dispatching an event depends on the depth of its path and on the
+ * number of interested listeners, not on the number of definitions.
+ * <p/>
+ * The filters of the definitions keep their JCR meaning: they apply to the associated parent node of the event
+ * (the parent of the added, removed or moved node, or the node owning the property). The identifier and the
+ * node types of that node are read through the given session by default, which fails if the node has been
+ * removed in the meantime: such events are not delivered to definitions with uuid or node type filters.
+ * Subclasses can take them from the event instead (see {@link #getParentIdentifier(Event, String)} and
+ * {@link #getNodeTypeNames(Event, String)}). The <code>noLocal</code> flag of the definitions is ignored.
+ * <p/>
+ * Each listener receives the events of a batch it is interested in through a single <code>onEvent</code>
+ * call; an exception thrown by a listener is logged and does not affect the other listeners.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class MultiplexingEventListener implements EventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiplexingEventListener.class);
+
+    private final Session session;
+
+    private final int eventTypes;
+
+    private final PathNode root = new PathNode();
+
+    /**
+     * definitions filtering only by node type (their absPath is the deep root) - indexed by node type name.
+     */
+    private final Map<String, List<Route>> nodeTypeIndex = new HashMap<String, List<Route>>();
+
+    /**
+     * definitions interested in events without a path (Event.PERSIST).
+     */
+    private final List<Route> pathlessRoutes = new ArrayList<Route>();
+
+    /**
+     * node type name -> names of the node type and of all its supertypes.
+     */
+    private final ConcurrentMap<String, Set<String>> nodeTypeClosures = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * @param session session used for reading the identifier and the node types of the nodes associated with
+     *            the events
+     * @param definitions listener definitions
+     */
+    public MultiplexingEventListener(Session session, EventListenerDefinition[] definitions) {
+        if (definitions == null)
+            throw new IllegalArgumentException("definitions can't be null");
+        this.session = session;
+        int types = 0;
+        for (EventListenerDefinition definition : definitions) {
+            Route route = new Route(definition);
+            types |= route.eventTypes;
+            if ((route.eventTypes & Event.PERSIST) != 0)
+                pathlessRoutes.add(route);
+            if (route.nodeTypes != null && route.uuids == null && isRoot(definition.getAbsPath())
+                    && definition.isDeep()) {
+                for (String nodeType : route.nodeTypes) {
+                    List<Route> routes = nodeTypeIndex.get(nodeType);
+                    if (routes == null) {
+                        routes = new ArrayList<Route>(2);
+                        nodeTypeIndex.put(nodeType, routes);
+                    }
+                    routes.add(route);
+                }
+            } else {
+                PathNode node = root;
+                for (String segment : getSegments(definition.getAbsPath()))
+                    node = node.getOrCreateChild(segment);
+                if (definition.isDeep())
+                    node.deepRoutes.add(route);
+                else
+                    node.routes.add(route);
+            }
+        }
+        this.eventTypes = types;
+    }
+
+    /**
+     * @return the union of the event types of the definitions, to be used when registering this listener
+     */
+    public int getEventTypes() {
+        return eventTypes;
+    }
+
+    /**
+     * @return Returns the session.
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+     */
+    @Override
+    public void onEvent(EventIterator events) {
+        // routes in the order they received their first event
+        List<Route> targets = new ArrayList<Route>();
+        Map<Route, List<Event>> batches = new HashMap<Route, List<Event>>();
+        List<Route> candidates = new ArrayList<Route>();
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            String path;
+            try {
+                path = event.getPath();
+            } catch (RepositoryException ex) {
+                LOG.warn("cannot determine the path of event " + event + "; discarding it", ex);
+                continue;
+            }
+
+            candidates.clear();
+            EventTarget target = null;
+            if (path == null) {
+                candidates.addAll(pathlessRoutes);
+            } else {
+                target = new EventTarget(event, getParentPath(path));
+                collectRoutes(target.path, candidates);
+                if (!nodeTypeIndex.isEmpty()) {
+                    for (String nodeType : target.getNodeTypes()) {
+                        List<Route> routes = nodeTypeIndex.get(nodeType);
+                        if (routes != null)
+                            candidates.addAll(routes);
+                    }
+                }
+            }
+
+            for (Route route : candidates) {
+                if (!route.accepts(event, target))
+                    continue;
+                List<Event> batch = batches.get(route);
+                if (batch == null) {
+                    batch = new ArrayList<Event>();
+                    batches.put(route, batch);
+                    targets.add(route);
+                } else if (batch.get(batch.size() - 1) == event) {
+                    // reached through several node types
+                    continue;
+                }
+                batch.add(event);
+            }
+        }
+
+        for (Route route : targets) {
+            try {
+                route.listener.onEvent(new ListEventIterator(batches.get(route)));
+            } catch (RuntimeException ex) {
+                LOG.error("listener " + route.listener + " failed to process events", ex);
+            }
+        }
+    }
+
+    /**
+     * Adds the routes registered for the given path: the ones of the path itself and the deep ones of the path
+     * and of its ancestors.
+     */
+    private void collectRoutes(String path, List<Route> routes) {
+        PathNode node = root;
+        routes.addAll(node.deepRoutes);
+        for (String segment : getSegments(path)) {
+            node = node.children.get(segment);
+            if (node == null)
+                return;
+            routes.addAll(node.deepRoutes);
+        }
+        routes.addAll(node.routes);
+    }
+
+    /**
+     * Returns the identifier of the node associated with the event. By default, the node is read through the
+     * session.
+     * @param event event
+     * @param parentPath path of the associated node
+     * @return identifier of the node
+     * @throws RepositoryException if the identifier cannot be determined
+     */
+    protected String getParentIdentifier(Event event, String parentPath) throws RepositoryException {
+        return session.getNode(parentPath).getIdentifier();
+    }
+
+    /**
+     * Returns the names of the primary node type and of the mixin types of the node associated with the event;
+     * the supertypes are added by the caller. By default, the node is read through the session.
+     * @param event event
+     * @param parentPath path of the associated node
+     * @return node type names
+     * @throws RepositoryException if the node types cannot be determined
+     */
+    protected Collection<String> getNodeTypeNames(Event event, String parentPath) throws RepositoryException {
+        Node node = session.getNode(parentPath);
+        List<String> names = new ArrayList<String>();
+        names.add(node.getPrimaryNodeType().getName());
+        for (NodeType mixin : node.getMixinNodeTypes())
+            names.add(mixin.getName());
+        return names;
+    }
+
+    /**
+     * @return the names of the given node type and of all its supertypes
+     */
+    private Set<String> getNodeTypeClosure(String nodeTypeName) throws RepositoryException {
+        Set<String> closure = nodeTypeClosures.get(nodeTypeName);
+        if (closure == null) {
+            closure = new HashSet<String>();
+            closure.add(nodeTypeName);
+            for (NodeType supertype : session.getWorkspace().getNodeTypeManager().getNodeType(nodeTypeName)
+                    .getSupertypes())
+                closure.add(supertype.getName());
+            nodeTypeClosures.putIfAbsent(nodeTypeName, closure);
+        }
+        return closure;
+    }
+
+    private static boolean isRoot(String path) {
+        return path == null || path.length() == 0 || "/".equals(path);
+    }
+
+    private static List<String> getSegments(String path) {
+        if (isRoot(path))
+            return Collections.emptyList();
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (segment.length() > 0)
+                segments.add(segment);
+        }
+        return segments;
+    }
+
+    private static String getParentPath(String path) {
+        int index = path.lastIndexOf('/');
+        return (index <= 0 ? "/" : path.substring(0, index));
+    }
+
+    /**
+     * Node of the path trie.
+     */
+    private static class PathNode {
+
+        private final Map<String, PathNode> children = new HashMap<String, PathNode>(4);
+
+        /**
+         * definitions registered for this path only (deep = false).
+         */
+        private final List<Route> routes = new ArrayList<Route>(1);
+
+        /**
+         * definitions registered for this path and its descendants.
+         */
+        private final List<Route> deepRoutes = new ArrayList<Route>(1);
+
+        public PathNode getOrCreateChild(String segment) {
+            PathNode child = children.get(segment);
+            if (child == null) {
+                child = new PathNode();
+                children.put(segment, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * A definition with its filters prepared for matching.
+     */
+    private static class Route {
+
+        private final EventListener listener;
+
+        private final int eventTypes;
+
+        private final Set<String> uuids;
+
+        private final Set<String> nodeTypes;
+
+        public Route(EventListenerDefinition definition) {
+            this.listener = definition.getListener();
+            this.eventTypes = definition.getEventTypes();
+            this.uuids = (definition.getUuid() == null ? null : new HashSet<String>(Arrays.asList(definition
+                    .getUuid())));
+            this.nodeTypes = (definition.getNodeTypeName() == null ? null : new HashSet<String>(Arrays
+                    .asList(definition.getNodeTypeName())));
+        }
+
+        public boolean accepts(Event event, EventTarget target) {
+            if ((event.getType() & eventTypes) == 0)
+                return false;
+            if (target == null)
+                return true;
+            if (uuids != null && !uuids.contains(target.getIdentifier()))
+                return false;
+            if (nodeTypes != null && Collections.disjoint(nodeTypes, target.getNodeTypes()))
+                return false;
+            return true;
+        }
+    }
+
+    /**
+     * The node associated with an event - its identifier and node types are determined on demand.
+     */
+    private class EventTarget {
+
+        private final Event event;
+
+        private final String path;
+
+        private String identifier;
+
+        private Set<String> nodeTypes;
+
+        public EventTarget(Event event, String path) {
+            this.event = event;
+            this.path = path;
+        }
+
+        /**
+         * @return the identifier of the node or null if it cannot be determined
+         */
+        public String getIdentifier() {
+            if (identifier == null) {
+                try {
+                    identifier = getParentIdentifier(event, path);
+                } catch (RepositoryException ex) {
+                    LOG.debug("cannot determine the identifier of " + path, ex);
+                }
+            }
+            return identifier;
+        }
+
+        /**
+         * @return the node types of the node (empty if they cannot be determined)
+         */
+        public Set<String> getNodeTypes() {
+            if (nodeTypes == null) {
+                nodeTypes = new HashSet<String>();
+                try {
+                    for (String nodeType : getNodeTypeNames(event, path))
+                        nodeTypes.addAll(getNodeTypeClosure(nodeType));
+                } catch (RepositoryException ex) {
+                    LOG.debug("cannot determine the node types of " + path, ex);
+                }
+            }
+            return nodeTypes;
+        }
+    }
+}
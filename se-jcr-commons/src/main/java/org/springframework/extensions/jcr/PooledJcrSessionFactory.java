@@ -0,0 +1,511 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.lock.LockManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+
+/**
+ * SessionFactory decorator which keeps a bounded pool of live JCR sessions obtained from a target
+ * SessionFactory (usually a {@link JcrSessionFactory}). Every non-transactional JcrTemplate call normally
+ * pays for a full <code>Repository.login()</code> and the registration of all the event listeners; with
+ * this factory the physical session is reused and only handed back to the pool on <code>logout()</code>.
+ * <p/>
+ * The sessions returned by {@link #getSession()} are proxies implementing all the interfaces of the target
+ * session (so vendor specific interfaces such as <code>XAResource</code> are preserved). Calling
+ * <code>logout()</code> on such a proxy discards any pending changes through <code>refresh(false)</code>, removes
+ * the lock tokens held by the session (so the next borrower does not own the open-scoped locks of the
+ * previous one) and returns the physical session to the pool; sessions which are not live anymore, whose lock
+ * tokens can not be removed or which have been invalidated through {@link #invalidateSession(Session)} are
+ * discarded. Session-scoped locks have no token and can not be discovered through the JCR API: they stay
+ * with the physical session until it is closed, so they should be unlocked explicitly when using a pool.
+ * Note that the session attributes are fixed at login by the credentials of the target SessionFactory and
+ * are thus the same for every borrower.
+ * <p/>
+ * The pool can be used with transaction managers as well (for example the Jackrabbit
+ * <code>LocalTransactionManager</code>), in which case every transaction borrows a session instead of
+ * logging into the repository.
+ * <p/>
+ * The pool is configured through the following properties:
+ * <ol>
+ * <li>maxActive - the maximum number of sessions handed out at the same time (default 8)</li>
+ * <li>maxIdle - the maximum number of idle sessions kept in the pool (default 8)</li>
+ * <li>minIdle - the number of sessions created eagerly when the factory is initialized (default 0)</li>
+ * <li>maxWait - how long (in milliseconds) to wait for a session once maxActive is reached; a negative
+ * value waits indefinitely (default -1)</li>
+ * <li>testOnBorrow - whether idle sessions are validated through <code>isLive()</code> before being handed
+ * out (default true)</li>
+ * </ol>
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class PooledJcrSessionFactory implements SessionFactory, InitializingBean, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledJcrSessionFactory.class);
+
+    private SessionFactory targetSessionFactory;
+
+    private int maxActive = 8;
+
+    private int maxIdle = 8;
+
+    private int minIdle = 0;
+
+    private long maxWait = -1;
+
+    private boolean testOnBorrow = true;
+
+    /**
+     * idle physical sessions, bounded by maxIdle - the most recently returned one is reused first.
+     */
+    private BlockingDeque<Session> idleSessions;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    private Semaphore permits;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Empty constructor.
+     */
+    public PooledJcrSessionFactory() {
+    }
+
+    /**
+     * @param targetSessionFactory
+     */
+    public PooledJcrSessionFactory(SessionFactory targetSessionFactory) {
+        this.targetSessionFactory = targetSessionFactory;
+    }
+
+    /**
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(targetSessionFactory, "targetSessionFactory is required");
+        if (maxActive <= 0)
+            throw new IllegalArgumentException("maxActive has to be positive");
+        if (maxIdle < 0)
+            throw new IllegalArgumentException("maxIdle can't be negative");
+        if (minIdle > maxIdle)
+            throw new IllegalArgumentException("minIdle can not be bigger than maxIdle");
+
+        permits = new Semaphore(maxActive, true);
+        // LinkedBlockingDeque requires a positive capacity; with maxIdle=0 nothing is ever offered
+        idleSessions = new LinkedBlockingDeque<Session>(Math.max(maxIdle, 1));
+
+        if (minIdle > 0) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("pre-filling pool with " + minIdle + " sessions");
+            for (int i = 0; i < minIdle; i++) {
+                idleSessions.offerFirst(targetSessionFactory.getSession());
+            }
+        }
+    }
+
+    /**
+     * Borrows a session from the pool, creating a new one through the target SessionFactory if no idle
+     * session is available.
+     * @see org.springframework.extensions.jcr.SessionFactory#getSession()
+     */
+    @Override
+    public Session getSession() throws RepositoryException {
+        if (closed)
+            throw new IllegalStateException("session pool has been closed");
+
+        acquirePermit();
+        try {
+            Session target = borrowIdleSession();
+            if (target == null) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("no idle session available; opening a new one");
+                target = targetSessionFactory.getSession();
+            }
+            activeCount.incrementAndGet();
+            return createPooledSessionProxy(target);
+        } catch (RepositoryException ex) {
+            permits.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * The holder is created by the target SessionFactory as the pooled session proxy implements the same
+     * interfaces as the physical one.
+     * @see org.springframework.extensions.jcr.SessionFactory#getSessionHolder(javax.jcr.Session)
+     */
+    @Override
+    public SessionHolder getSessionHolder(Session session) {
+        return targetSessionFactory.getSessionHolder(session);
+    }
+
+    /**
+     * Closes all the idle sessions. Sessions which are still in use are logged out when they are returned.
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    @Override
+    public void destroy() throws Exception {
+        closed = true;
+        destroyIdleSessions();
+    }
+
+    private void destroyIdleSessions() {
+        if (idleSessions == null)
+            return;
+        Session session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            destroySession(session);
+        }
+    }
+
+    private void acquirePermit() throws RepositoryException {
+        try {
+            if (maxWait < 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new RepositoryException("could not obtain a session from the pool within " + maxWait
+                        + " ms (maxActive=" + maxActive + ")");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("interrupted while waiting for a pooled session", ex);
+        }
+    }
+
+    private Session borrowIdleSession() {
+        Session session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            if (!testOnBorrow || session.isLive())
+                return session;
+            if (LOG.isDebugEnabled())
+                LOG.debug("discarding idle session [" + session + "] which is not live anymore");
+        }
+        return null;
+    }
+
+    /**
+     * Marks a session borrowed from this pool as not reusable: once logged out, the physical session is
+     * closed instead of being returned to the pool. Meant for sessions left in an unknown state, for example
+     * after a failed transaction commit.
+     * @param session session obtained through {@link #getSession()}
+     */
+    public void invalidateSession(Session session) {
+        PooledSessionInvocationHandler handler = getInvocationHandler(session);
+        if (handler == null || handler.getPool() != this)
+            throw new IllegalArgumentException("session [" + session + "] has not been obtained from this pool");
+        handler.invalidate();
+    }
+
+    /**
+     * Marks the given session as not reusable if it has been obtained from any PooledJcrSessionFactory (see
+     * {@link #invalidateSession(Session)}); other sessions are left untouched. Meant for code which can not
+     * tell where a session comes from, such as transactions aborted from another thread.
+     * @param session session
+     * @return true if the session has been obtained from a pool
+     */
+    public static boolean invalidatePooledSession(Session session) {
+        PooledSessionInvocationHandler handler = getInvocationHandler(session);
+        if (handler == null)
+            return false;
+        handler.invalidate();
+        return true;
+    }
+
+    private static PooledSessionInvocationHandler getInvocationHandler(Session session) {
+        if (session != null && Proxy.isProxyClass(session.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(session);
+            if (handler instanceof PooledSessionInvocationHandler)
+                return (PooledSessionInvocationHandler) handler;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the physical session to the pool. Called once per borrowed proxy.
+     * @param session
+     */
+    protected void returnSession(Session session) {
+        activeCount.decrementAndGet();
+        try {
+            if (closed || !session.isLive() || !resetSession(session) || maxIdle == 0
+                    || !idleSessions.offerFirst(session)) {
+                destroySession(session);
+            } else if (closed) {
+                // the pool has been closed (and possibly drained) while the session was being returned
+                destroyIdleSessions();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes a borrowed physical session instead of returning it to the pool. Called once per invalidated
+     * proxy.
+     * @param session
+     */
+    protected void discardSession(Session session) {
+        activeCount.decrementAndGet();
+        try {
+            if (LOG.isDebugEnabled())
+                LOG.debug("discarding invalidated session [" + session + "]");
+            destroySession(session);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Hook for cleaning up a session before it goes back to the pool. By default, all the pending changes
+     * are discarded and the lock tokens are removed from the session.
+     * @param session physical session
+     * @return true if the session can be reused, false if it should be discarded
+     */
+    protected boolean resetSession(Session session) {
+        try {
+            session.refresh(false);
+            removeLockTokens(session);
+            return true;
+        } catch (RepositoryException ex) {
+            LOG.debug("could not reset session [" + session + "]; discarding it", ex);
+            return false;
+        }
+    }
+
+    private void removeLockTokens(Session session) throws RepositoryException {
+        LockManager lockManager;
+        try {
+            lockManager = session.getWorkspace().getLockManager();
+        } catch (UnsupportedRepositoryOperationException ex) {
+            // locking is not supported
+            return;
+        }
+        for (String token : lockManager.getLockTokens()) {
+            lockManager.removeLockToken(token);
+        }
+    }
+
+    private void destroySession(Session session) {
+        try {
+            if (session.isLive())
+                session.logout();
+        } catch (RuntimeException ex) {
+            LOG.debug("could not close session [" + session + "]", ex);
+        }
+    }
+
+    /**
+     * Creates the proxy handed out to callers; a new proxy is created for every borrow so that a stale
+     * reference can not return the physical session twice.
+     * @param target
+     * @return
+     */
+    protected Session createPooledSessionProxy(Session target) {
+        Class<?>[] ifcs = ClassUtils.getAllInterfaces(target);
+        return (Session) Proxy.newProxyInstance(getClass().getClassLoader(), ifcs,
+                new PooledSessionInvocationHandler(target));
+    }
+
+    /**
+     * @return the number of sessions currently handed out.
+     */
+    public int getNumActive() {
+        return activeCount.get();
+    }
+
+    /**
+     * @return the number of sessions currently idle in the pool.
+     */
+    public int getNumIdle() {
+        return (idleSessions != null ? idleSessions.size() : 0);
+    }
+
+    /**
+     * @return Returns the targetSessionFactory.
+     */
+    public SessionFactory getTargetSessionFactory() {
+        return targetSessionFactory;
+    }
+
+    /**
+     * @param targetSessionFactory The targetSessionFactory to set.
+     */
+    public void setTargetSessionFactory(SessionFactory targetSessionFactory) {
+        this.targetSessionFactory = targetSessionFactory;
+    }
+
+    /**
+     * @return Returns the maxActive.
+     */
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * @param maxActive The maxActive to set.
+     */
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    /**
+     * @return Returns the maxIdle.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @param maxIdle The maxIdle to set.
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return Returns the minIdle.
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * @param minIdle The minIdle to set.
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * @return Returns the maxWait.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait The maxWait (in milliseconds) to set. A negative value waits indefinitely.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return Returns the testOnBorrow.
+     */
+    public boolean isTestOnBorrow() {
+        return testOnBorrow;
+    }
+
+    /**
+     * @param testOnBorrow The testOnBorrow to set.
+     */
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "Pooled" + targetSessionFactory + "|active=" + getNumActive() + "|idle=" + getNumIdle();
+    }
+
+    /**
+     * Invocation handler that returns the physical session to the pool on logout.
+     */
+    private class PooledSessionInvocationHandler implements InvocationHandler {
+
+        private final Session target;
+
+        private final AtomicBoolean returned = new AtomicBoolean(false);
+
+        private volatile boolean invalid = false;
+
+        public PooledSessionInvocationHandler(Session target) {
+            this.target = target;
+        }
+
+        public PooledJcrSessionFactory getPool() {
+            return PooledJcrSessionFactory.this;
+        }
+
+        public void invalidate() {
+            invalid = true;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                // Only consider equal when proxies are identical.
+                return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
+            } else if (name.equals("hashCode")) {
+                // Use hashCode of session proxy.
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Pooled session [" + target + "]";
+            } else if (name.equals("logout") && method.getParameterTypes().length == 0) {
+                // Return the physical session only once.
+                if (returned.compareAndSet(false, true)) {
+                    if (invalid)
+                        discardSession(target);
+                    else
+                        returnSession(target);
+                }
+                return null;
+            } else if (returned.get()) {
+                if (name.equals("isLive"))
+                    return Boolean.FALSE;
+                throw new IllegalStateException("session has already been returned to the pool");
+            }
+
+            // Invoke method on target Session.
+            try {
+                return method.invoke(this.target, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getTargetException();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.Map;
+
+import javax.jcr.query.QueryResult;
+
+/**
+ * Query statement prepared through {@link JcrOperations#prepareQuery(String, String)}. The instance is
+ * thread-safe and can be kept and executed repeatedly with different bind variables (for example
+ * <code>$name</code> in JCR-SQL2 statements). When executed on a thread-bound session, the parsed query is
+ * reused across executions.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public interface PreparedQuery {
+
+    /**
+     * @return the query statement
+     */
+    String getStatement();
+
+    /**
+     * @return the query language
+     */
+    String getLanguage();
+
+    /**
+     * Executes a query which has no bind variables.
+     * @return query result
+     */
+    QueryResult execute();
+
+    /**
+     * Executes the query with the given bind variables. Every bind variable of the statement needs a value;
+     * the values are converted through {@link JcrUtils#createValue(javax.jcr.ValueFactory, Object)}.
+     * @param bindVariables bind variable values, keyed by name (without the leading '$')
+     * @return query result
+     */
+    QueryResult execute(Map<String, ?> bindVariables);
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * Callback used for selecting the properties written by
+ * {@link JcrOperations#dump(javax.jcr.Node, Appendable, int, PropertyFilter)}.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public interface PropertyFilter {
+
+    /**
+     * @param property property about to be dumped
+     * @return true if the property should be included in the dump, false otherwise
+     * @throws RepositoryException
+     */
+    boolean accept(Property property) throws RepositoryException;
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ * Least recently used cache of parsed queries, keyed by statement and language. A Query object is tied to the
+ * session that created it, so one cache is kept per session (as an attribute of its SessionHolder). Not
+ * thread-safe, as the SessionHolders are bound to a single thread.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+class QueryCache {
+
+    /**
+     * SessionHolder attribute key.
+     */
+    static final String ATTRIBUTE_NAME = QueryCache.class.getName();
+
+    private final Map<String, Query> queries;
+
+    QueryCache(final int maxSize) {
+        this.queries = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param paged whether the query is used with an offset/limit; paged queries are cached separately as the
+     *            JCR API offers no way of clearing the offset and limit of a query
+     */
+    Query get(String statement, String language, boolean paged) {
+        return queries.get(key(statement, language, paged));
+    }
+
+    void put(String statement, String language, boolean paged, Query query) {
+        queries.put(key(statement, language, paged), query);
+    }
+
+    int size() {
+        return queries.size();
+    }
+
+    private static String key(String statement, String language, boolean paged) {
+        return (paged ? "paged:" : "") + language + ':' + statement;
+    }
+}
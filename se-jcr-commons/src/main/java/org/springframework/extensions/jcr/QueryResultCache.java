@@ -0,0 +1,548 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeIterator;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Least recently used cache of query results, used by {@link JcrTemplate#query(String, String, Map)} when
+ * configured through {@link JcrTemplate#setQueryResultCache(QueryResultCache)}. The cache keeps detached
+ * snapshots of the result rows and is kept up to date through observation: it has to be registered as the
+ * listener of an {@link EventListenerDefinition} of the {@link JcrSessionFactory}, for example:
+ * 
+ * <pre>
+ * &lt;bean id=&quot;queryResultCache&quot; class=&quot;org.springframework.extensions.jcr.QueryResultCache&quot;/&gt;
+ * 
+ * &lt;bean id=&quot;sessionFactory&quot; class=&quot;org.springframework.extensions.jcr.JcrSessionFactory&quot;&gt;
+ *   ...
+ *   &lt;property name=&quot;eventListeners&quot;&gt;
+ *     &lt;list&gt;
+ *       &lt;bean class=&quot;org.springframework.extensions.jcr.EventListenerDefinition&quot;&gt;
+ *         &lt;property name=&quot;listener&quot; ref=&quot;queryResultCache&quot;/&gt;
+ *       &lt;/bean&gt;
+ *     &lt;/list&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * The factory registers the listeners once, on its own long-lived observation session, so the events are
+ * delivered whether or not other sessions are open and no session has to be kept open for the cache.
+ * <p/>
+ * Every cached query is given a scope, made of the path prefixes and node types it touches: the path is
+ * derived from the leading location steps of an XPath statement or from a single ISDESCENDANTNODE,
+ * ISCHILDNODE or ISSAMENODE constraint of a JCR-SQL2 statement; the node types from a trailing
+ * <code>element(*, type)</code> test or from the selector of a JCR-SQL2 statement without joins, as long as
+ * the constraints and the ordering only read properties of the selected nodes (relative paths, such as
+ * <code>[jcr:content/@jcr:mimeType]</code>, and full-text searches, which might cover aggregated child
+ * nodes, depend on other nodes). Statements which can not be analysed, including unions, cover the whole
+ * workspace. An event invalidates the queries whose path prefixes lie on the same branch as the event path;
+ * property events are further matched against the node types, if {@link #getNodeTypes(Event)} can determine
+ * the type of the node the event is about.
+ * <p/>
+ * The results are only cached if their size is known upfront and does not exceed maxRows.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class QueryResultCache implements EventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryResultCache.class);
+
+    private static final String ROOT = "/";
+
+    /**
+     * number of past invalidations kept for checking the results computed while they happened.
+     */
+    private static final int INVALIDATION_LOG_SIZE = 256;
+
+    private static final Pattern XPATH_NODE_TYPE = Pattern
+            .compile("element\\(\\s*[^,\\)]*,\\s*([^\\)\\s]+)\\s*\\)((\\[[^\\]/]*\\])*)\\s*(order\\s+by\\s.*)?$");
+
+    private static final Pattern SQL2_SELECTOR = Pattern.compile(
+            "^\\s*select\\s.+?\\sfrom\\s+(\\[([^\\]]+)\\]|([\\w:]+))", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern SQL2_PATH_CONSTRAINT = Pattern.compile(
+            "(isdescendantnode|ischildnode|issamenode)\\s*\\(", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern SQL2_PATH_ARGUMENT = Pattern.compile(
+            "(?:\\s*(?:\\[[^\\]]*\\]|[\\w:]+)\\s*,)?\\s*(['\"])([^'\"]*)\\1\\s*\\)");
+
+    private static final Pattern SQL2_UNSUPPORTED = Pattern.compile("\\s(or|not|join|union)\\s",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern QUOTED = Pattern.compile("'[^']*'|\"[^\"]*\"");
+
+    private static final Pattern FULL_TEXT = Pattern.compile("contains\\s*\\(", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern XPATH_NAME = Pattern.compile("(@?)([\\w:.\\-]+)(\\s*\\()?");
+
+    private static final Set<String> XPATH_KEYWORDS = new HashSet<String>(Arrays.asList("and", "or", "div",
+            "mod", "order", "by", "ascending", "descending"));
+
+    private int maxSize = 100;
+
+    private int maxRows = 1000;
+
+    private final Map<CacheKey, CacheEntry> entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    // all the fields below are guarded by the cache monitor
+    private long generation = 0;
+
+    private final Deque<Invalidation> invalidationLog = new ArrayDeque<Invalidation>();
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    /**
+     * Invalidates the cached queries touched by the given events.
+     * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+     */
+    @Override
+    public void onEvent(EventIterator events) {
+        // the event details are read outside the monitor as they might need the repository
+        List<Invalidation> invalidations = new ArrayList<Invalidation>();
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            if (event.getType() == Event.PERSIST)
+                continue;
+            invalidations.add(createInvalidation(event));
+        }
+        if (invalidations.isEmpty())
+            return;
+
+        synchronized (this) {
+            for (Invalidation invalidation : invalidations) {
+                invalidation.generation = ++generation;
+                invalidationLog.addLast(invalidation);
+                if (invalidationLog.size() > INVALIDATION_LOG_SIZE)
+                    invalidationLog.removeFirst();
+
+                for (Iterator<CacheEntry> it = entries.values().iterator(); it.hasNext();) {
+                    CacheEntry entry = it.next();
+                    if (invalidation.matches(entry.scope)) {
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("invalidating cached query [" + entry.statement + "] on " + invalidation);
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private Invalidation createInvalidation(Event event) {
+        try {
+            boolean propertyEvent = (event.getType() & (Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+                    | Event.PROPERTY_REMOVED)) != 0;
+            Set<String> nodeTypes = (propertyEvent ? getNodeTypes(event) : null);
+            List<String> paths = new ArrayList<String>(2);
+            paths.add(event.getPath());
+            if (event.getType() == Event.NODE_MOVED) {
+                Object source = event.getInfo().get("srcAbsPath");
+                if (source != null)
+                    paths.add(source.toString());
+            }
+            return new Invalidation(paths, nodeTypes);
+        } catch (RepositoryException ex) {
+            LOG.warn("could not read event [" + event + "]; invalidating all the cached queries", ex);
+            return new Invalidation(Collections.singletonList(ROOT), null);
+        }
+    }
+
+    /**
+     * Returns the node types (primary type and mixins) of the node a property event is about, as expanded
+     * names (<code>{namespaceURI}localName</code>). The JCR API does not expose them so this implementation
+     * returns null, in which case the event is matched by path only; subclasses can use repository specific
+     * event information.
+     * @param event property event
+     * @return the expanded node type names or null if unknown
+     * @throws RepositoryException
+     */
+    protected Set<String> getNodeTypes(Event event) throws RepositoryException {
+        return null;
+    }
+
+    /**
+     * Removes all the cached queries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        // queries executing right now have to be discarded as well
+        generation++;
+        invalidationLog.clear();
+    }
+
+    Object createKey(String statement, String language, Map<String, ?> bindVariables) {
+        return new CacheKey(statement, language, bindVariables);
+    }
+
+    synchronized QueryResultSnapshot get(Object key) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.snapshot;
+    }
+
+    /**
+     * @return a marker to be passed to {@link #put(Object, String, String, QueryResultSnapshot, long, Session)}
+     *         and taken before executing the query.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches the given snapshot unless it was invalidated while the query was executing.
+     * @param generation generation taken before the query was executed
+     * @param session session used for resolving the node types of the query
+     */
+    void put(Object key, String statement, String language, QueryResultSnapshot snapshot, long generation,
+            Session session) {
+        Scope scope = createScope(statement, language, session);
+        synchronized (this) {
+            if (generation != this.generation) {
+                Invalidation first = invalidationLog.peekFirst();
+                // some of the invalidations that happened since are not known anymore
+                if (first == null || first.generation > generation + 1)
+                    return;
+                for (Invalidation invalidation : invalidationLog) {
+                    if (invalidation.generation > generation && invalidation.matches(scope))
+                        return;
+                }
+            }
+            entries.put((CacheKey) key, new CacheEntry(statement, snapshot, scope));
+        }
+    }
+
+    Scope createScope(String statement, String language, Session session) {
+        String path = ROOT;
+        String nodeType = null;
+        if (Query.XPATH.equals(language)) {
+            // a union selects nodes of several paths and types
+            if (unquote(statement).indexOf('|') < 0) {
+                path = getXPathScope(statement);
+                Matcher matcher = XPATH_NODE_TYPE.matcher(statement);
+                if (matcher.find() && readsOwnProperties(matcher.group(2) + " " + nullToEmpty(matcher.group(4)), true))
+                    nodeType = matcher.group(1);
+            }
+        } else if (Query.JCR_SQL2.equals(language) && !SQL2_UNSUPPORTED.matcher(statement).find()) {
+            path = getSql2Scope(statement);
+            Matcher matcher = SQL2_SELECTOR.matcher(statement);
+            if (matcher.find() && readsOwnProperties(statement, false))
+                nodeType = (matcher.group(2) != null ? matcher.group(2) : matcher.group(3));
+        }
+        return new Scope(path, expandNodeTypes(nodeType, session));
+    }
+
+    private static String getXPathScope(String statement) {
+        String prefix = "/jcr:root/";
+        if (!statement.startsWith(prefix))
+            return ROOT;
+        StringBuilder path = new StringBuilder();
+        String[] steps = statement.substring(prefix.length()).split("/", -1);
+        // the scope ends at the first step which is not a plain node name
+        for (int i = 0; i < steps.length; i++) {
+            String step = steps[i];
+            int end = 0;
+            while (end < step.length() && "*([@|".indexOf(step.charAt(end)) < 0
+                    && !Character.isWhitespace(step.charAt(end)))
+                end++;
+            if (end == 0)
+                break;
+            if (end < step.length()) {
+                // a node name followed by an order by clause still addresses that node
+                if (i == steps.length - 1 && Character.isWhitespace(step.charAt(end)))
+                    path.append('/').append(JcrUtils.decode(step.substring(0, end)));
+                break;
+            }
+            path.append('/').append(JcrUtils.decode(step));
+        }
+        return (path.length() == 0 ? ROOT : path.toString());
+    }
+
+    private static String getSql2Scope(String statement) {
+        Matcher constraint = SQL2_PATH_CONSTRAINT.matcher(statement);
+        String path = ROOT;
+        int found = 0;
+        while (constraint.find()) {
+            Matcher argument = SQL2_PATH_ARGUMENT.matcher(statement);
+            argument.region(constraint.end(), statement.length());
+            if (!argument.lookingAt() || ++found > 1)
+                return ROOT;
+            path = argument.group(2);
+        }
+        return (path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+    }
+
+    /**
+     * Tells whether the given constraints only read properties of the selected nodes, so that the result
+     * depends on the nodes of the selected type only. Relative paths and bare names (child nodes) as well as
+     * full-text searches (which might cover aggregated child nodes) read other nodes.
+     * @param constraints predicates and ordering of an XPath statement or a whole JCR-SQL2 statement
+     * @param xpath whether the constraints are XPath
+     */
+    private static boolean readsOwnProperties(String constraints, boolean xpath) {
+        String unquoted = unquote(constraints);
+        if (unquoted.indexOf('/') >= 0 || FULL_TEXT.matcher(unquoted).find())
+            return false;
+        if (!xpath)
+            return true;
+        Matcher name = XPATH_NAME.matcher(unquoted);
+        while (name.find()) {
+            String token = name.group(2);
+            // anything but a property, a function, a number or an operator is a child node
+            if (name.group(1).length() == 0 && name.group(3) == null && !Character.isDigit(token.charAt(0))
+                    && !XPATH_KEYWORDS.contains(token))
+                return false;
+        }
+        return true;
+    }
+
+    private static String unquote(String statement) {
+        return QUOTED.matcher(statement).replaceAll("''");
+    }
+
+    private static String nullToEmpty(String value) {
+        return (value == null ? "" : value);
+    }
+
+    /**
+     * Returns the expanded names of the given node type and of all its subtypes, or null if the node type
+     * matches every node.
+     */
+    private static Set<String> expandNodeTypes(String nodeType, Session session) {
+        if (nodeType == null || nodeType.equals("nt:base"))
+            return null;
+        try {
+            NodeTypeManager manager = session.getWorkspace().getNodeTypeManager();
+            NodeType type = manager.getNodeType(nodeType);
+            Set<String> names = new HashSet<String>();
+            names.add(expandName(type.getName(), session));
+            for (NodeTypeIterator subtypes = type.getSubtypes(); subtypes.hasNext();) {
+                names.add(expandName(subtypes.nextNodeType().getName(), session));
+            }
+            return names;
+        } catch (NoSuchNodeTypeException ex) {
+            return null;
+        } catch (RepositoryException ex) {
+            LOG.debug("could not resolve node type [" + nodeType + "]", ex);
+            return null;
+        }
+    }
+
+    private static String expandName(String name, Session session) throws RepositoryException {
+        int colon = name.indexOf(':');
+        if (colon < 0)
+            return "{}" + name;
+        return "{" + session.getNamespaceURI(name.substring(0, colon)) + "}" + name.substring(colon + 1);
+    }
+
+    /**
+     * @return the number of cached queries.
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of lookups served from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of lookups which missed the cache.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return Returns the maxSize.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize The maximum number of cached queries (100 by default).
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return Returns the maxRows.
+     */
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * @param maxRows The maximum number of rows of a cached result (1000 by default).
+     */
+    public void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Path prefix and node types touched by a query.
+     */
+    static class Scope {
+
+        final String path;
+
+        /**
+         * expanded names, null for any node type
+         */
+        final Set<String> nodeTypes;
+
+        Scope(String path, Set<String> nodeTypes) {
+            this.path = path;
+            this.nodeTypes = nodeTypes;
+        }
+
+        @Override
+        public String toString() {
+            return path + (nodeTypes == null ? "" : " " + nodeTypes);
+        }
+    }
+
+    private static class Invalidation {
+
+        long generation;
+
+        final List<String> paths;
+
+        final Set<String> nodeTypes;
+
+        Invalidation(List<String> paths, Set<String> nodeTypes) {
+            this.paths = paths;
+            this.nodeTypes = nodeTypes;
+        }
+
+        boolean matches(Scope scope) {
+            boolean related = false;
+            for (String path : paths) {
+                related |= JcrUtils.isSameBranch(scope.path, path);
+            }
+            if (!related)
+                return false;
+            if (scope.nodeTypes == null || nodeTypes == null)
+                return true;
+            for (String nodeType : nodeTypes) {
+                if (scope.nodeTypes.contains(nodeType))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return paths + (nodeTypes == null ? "" : " " + nodeTypes);
+        }
+    }
+
+    private static class CacheEntry {
+
+        final String statement;
+
+        final QueryResultSnapshot snapshot;
+
+        final Scope scope;
+
+        CacheEntry(String statement, QueryResultSnapshot snapshot, Scope scope) {
+            this.statement = statement;
+            this.snapshot = snapshot;
+            this.scope = scope;
+        }
+    }
+
+    private static class CacheKey {
+
+        private final String statement;
+
+        private final String language;
+
+        private final Map<String, ?> bindVariables;
+
+        private final int hashCode;
+
+        CacheKey(String statement, String language, Map<String, ?> bindVariables) {
+            this.statement = statement;
+            this.language = language;
+            this.bindVariables = (bindVariables == null || bindVariables.isEmpty() ? null
+                    : new HashMap<String, Object>(bindVariables));
+            this.hashCode = (statement.hashCode() * 31 + language.hashCode()) * 31
+                    + (this.bindVariables == null ? 0 : this.bindVariables.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof CacheKey))
+                return false;
+            CacheKey other = (CacheKey) obj;
+            return statement.equals(other.statement) && language.equals(other.language)
+                    && (bindVariables == null ? other.bindVariables == null : bindVariables
+                            .equals(other.bindVariables));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.NoSuchElementException;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RangeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.RowIterator;
+
+/**
+ * CloseableIterator over a query result which maps the rows (or nodes) lazily and releases the session once
+ * the iteration is over.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+abstract class QueryResultIterator<T> implements CloseableIterator<T> {
+
+    private final RangeIterator iterator;
+
+    private final JcrAccessor accessor;
+
+    private final Session session;
+
+    private final boolean releaseSession;
+
+    private int position = 0;
+
+    private boolean closed = false;
+
+    /**
+     * @param iterator rows or nodes of the query result
+     * @param accessor used for releasing the session and translating exceptions
+     * @param session session the result belongs to
+     * @param releaseSession whether the session has to be released on close (false for thread-bound sessions)
+     */
+    QueryResultIterator(RangeIterator iterator, JcrAccessor accessor, Session session, boolean releaseSession) {
+        this.iterator = iterator;
+        this.accessor = accessor;
+        this.session = session;
+        this.releaseSession = releaseSession;
+    }
+
+    static <T> CloseableIterator<T> forRows(final RowIterator rows, final JcrRowMapper<T> rowMapper,
+            JcrAccessor accessor, Session session, boolean releaseSession) {
+        return new QueryResultIterator<T>(rows, accessor, session, releaseSession) {
+            @Override
+            protected T map(int num) throws RepositoryException {
+                return rowMapper.mapRow(rows.nextRow(), num);
+            }
+        };
+    }
+
+    static <T> CloseableIterator<T> forNodes(final NodeIterator nodes, final JcrNodeMapper<T> nodeMapper,
+            JcrAccessor accessor, Session session, boolean releaseSession) {
+        return new QueryResultIterator<T>(nodes, accessor, session, releaseSession) {
+            @Override
+            protected T map(int num) throws RepositoryException {
+                return nodeMapper.mapNode(nodes.nextNode(), num);
+            }
+        };
+    }
+
+    /**
+     * Advances the underlying iterator and maps the element.
+     * @param num element number
+     * @return mapped object
+     * @throws RepositoryException
+     */
+    protected abstract T map(int num) throws RepositoryException;
+
+    @Override
+    public boolean hasNext() {
+        if (closed)
+            return false;
+        if (iterator.hasNext())
+            return true;
+        close();
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        try {
+            return map(position++);
+        } catch (RepositoryException ex) {
+            throw accessor.convertJcrAccessException(ex);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("query results are read-only");
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (releaseSession)
+            SessionFactoryUtils.releaseSession(session, accessor.getSessionFactory());
+    }
+}
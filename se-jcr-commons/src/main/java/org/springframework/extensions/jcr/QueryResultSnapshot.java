@@ -0,0 +1,411 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Detached copy of the rows of a query result, as kept by the {@link QueryResultCache}. The snapshot holds
+ * the row values, paths and scores only; nodes are resolved by path against the session the snapshot is
+ * attached to through {@link #toQueryResult(Session)}.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+class QueryResultSnapshot {
+
+    private final String[] columnNames;
+
+    private final String[] selectorNames;
+
+    private final List<RowData> rows;
+
+    private QueryResultSnapshot(String[] columnNames, String[] selectorNames, List<RowData> rows) {
+        this.columnNames = columnNames;
+        this.selectorNames = selectorNames;
+        this.rows = rows;
+    }
+
+    /**
+     * Copies the rows of the given result.
+     * @param result query result
+     * @param iterator the rows of the result; as JCR only allows to read the rows (or nodes) of a result once,
+     *            they are passed in so that the caller can still hand them out through
+     *            {@link #wrap(QueryResult, RowIterator)} if no snapshot is created
+     * @param maxRows maximum number of rows to copy
+     * @return the snapshot or null if the result is bigger than maxRows or if its size is unknown; in this
+     *         case no row has been read from the iterator
+     * @throws RepositoryException
+     */
+    static QueryResultSnapshot create(QueryResult result, RowIterator iterator, int maxRows)
+            throws RepositoryException {
+        long size = iterator.getSize();
+        if (size < 0 || size > maxRows)
+            return null;
+
+        String[] columnNames = result.getColumnNames();
+        String[] selectorNames = result.getSelectorNames();
+        // a single selector is read through the selector-less methods, which work for all the languages
+        boolean multipleSelectors = selectorNames.length > 1;
+
+        List<RowData> rows = new ArrayList<RowData>((int) size);
+        while (iterator.hasNext()) {
+            Row row = iterator.nextRow();
+            String[] paths;
+            double[] scores;
+            if (multipleSelectors) {
+                paths = new String[selectorNames.length];
+                scores = new double[selectorNames.length];
+                for (int i = 0; i < selectorNames.length; i++) {
+                    paths[i] = row.getPath(selectorNames[i]);
+                    scores[i] = row.getScore(selectorNames[i]);
+                }
+            } else {
+                paths = new String[] { row.getPath() };
+                scores = new double[] { row.getScore() };
+            }
+            rows.add(new RowData(row.getValues(), paths, scores));
+        }
+        return new QueryResultSnapshot(columnNames, selectorNames, Collections.unmodifiableList(rows));
+    }
+
+    /**
+     * Returns a query result serving the rows already obtained from the given result, both through
+     * {@link QueryResult#getRows()} and {@link QueryResult#getNodes()}.
+     * @param result query result the rows have been obtained from
+     * @param iterator the rows of the result, none of them read yet
+     * @return query result
+     */
+    static QueryResult wrap(QueryResult result, RowIterator iterator) {
+        return new RowIteratorQueryResult(result, iterator);
+    }
+
+    /**
+     * @return the number of rows of the snapshot
+     */
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * Returns a query result over this snapshot; the nodes are looked up in the given session.
+     * @param session session used for resolving the nodes
+     * @return query result
+     */
+    QueryResult toQueryResult(Session session) {
+        return new SnapshotQueryResult(session);
+    }
+
+    private int selectorIndex(String selectorName) throws RepositoryException {
+        // a single selector which was not reported by the result is addressed by any name
+        if (selectorNames.length == 0)
+            return 0;
+        for (int i = 0; i < selectorNames.length; i++) {
+            if (selectorNames[i].equals(selectorName))
+                return i;
+        }
+        throw new RepositoryException("unknown selector [" + selectorName + "]; available "
+                + Arrays.asList(selectorNames));
+    }
+
+    private static class RowData {
+
+        final Value[] values;
+
+        final String[] paths;
+
+        final double[] scores;
+
+        RowData(Value[] values, String[] paths, double[] scores) {
+            this.values = values;
+            this.paths = paths;
+            this.scores = scores;
+        }
+    }
+
+    private class SnapshotQueryResult implements QueryResult {
+
+        private final Session session;
+
+        SnapshotQueryResult(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return columnNames.clone();
+        }
+
+        @Override
+        public String[] getSelectorNames() {
+            return selectorNames.clone();
+        }
+
+        @Override
+        public RowIterator getRows() {
+            return new SnapshotRowIterator(session);
+        }
+
+        @Override
+        public NodeIterator getNodes() throws RepositoryException {
+            if (selectorNames.length > 1)
+                throw new RepositoryException("the query result has more than one selector");
+            return new SnapshotNodeIterator(session);
+        }
+    }
+
+    private static class RowIteratorQueryResult implements QueryResult {
+
+        private final QueryResult result;
+
+        private final RowIterator rows;
+
+        RowIteratorQueryResult(QueryResult result, RowIterator rows) {
+            this.result = result;
+            this.rows = rows;
+        }
+
+        @Override
+        public String[] getColumnNames() throws RepositoryException {
+            return result.getColumnNames();
+        }
+
+        @Override
+        public String[] getSelectorNames() throws RepositoryException {
+            return result.getSelectorNames();
+        }
+
+        @Override
+        public RowIterator getRows() {
+            return rows;
+        }
+
+        @Override
+        public NodeIterator getNodes() throws RepositoryException {
+            if (result.getSelectorNames().length > 1)
+                throw new RepositoryException("the query result has more than one selector");
+            return new RowNodeIterator(rows);
+        }
+    }
+
+    /**
+     * Iterator over the nodes of single selector rows.
+     */
+    private static class RowNodeIterator implements NodeIterator {
+
+        private final RowIterator rows;
+
+        RowNodeIterator(RowIterator rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public Node nextNode() {
+            try {
+                return rows.nextRow().getNode();
+            } catch (RepositoryException ex) {
+                // NodeIterator#nextNode() can not throw checked exceptions
+                throw new JcrSystemException(ex);
+            }
+        }
+
+        @Override
+        public Object next() {
+            return nextNode();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return rows.hasNext();
+        }
+
+        @Override
+        public void skip(long skipNum) {
+            rows.skip(skipNum);
+        }
+
+        @Override
+        public long getSize() {
+            return rows.getSize();
+        }
+
+        @Override
+        public long getPosition() {
+            return rows.getPosition();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private abstract class SnapshotIterator<E> {
+
+        private int position = 0;
+
+        public boolean hasNext() {
+            return position < rows.size();
+        }
+
+        public E next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return create(rows.get(position++));
+        }
+
+        public void skip(long skipNum) {
+            if (skipNum < 0 || position + skipNum > rows.size())
+                throw new NoSuchElementException();
+            position += (int) skipNum;
+        }
+
+        public long getSize() {
+            return rows.size();
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        abstract E create(RowData row);
+    }
+
+    private class SnapshotRowIterator extends SnapshotIterator<Row> implements RowIterator {
+
+        private final Session session;
+
+        SnapshotRowIterator(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public Row nextRow() {
+            return next();
+        }
+
+        @Override
+        Row create(RowData row) {
+            return new SnapshotRow(row, session);
+        }
+    }
+
+    private class SnapshotNodeIterator extends SnapshotIterator<Node> implements NodeIterator {
+
+        private final Session session;
+
+        SnapshotNodeIterator(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public Node nextNode() {
+            return next();
+        }
+
+        @Override
+        Node create(RowData row) {
+            try {
+                return resolveNode(session, row.paths[0]);
+            } catch (RepositoryException ex) {
+                // NodeIterator#nextNode() can not throw checked exceptions
+                throw new JcrSystemException(ex);
+            }
+        }
+    }
+
+    private static Node resolveNode(Session session, String path) throws RepositoryException {
+        return (path == null ? null : session.getNode(path));
+    }
+
+    private class SnapshotRow implements Row {
+
+        private final RowData row;
+
+        private final Session session;
+
+        SnapshotRow(RowData row, Session session) {
+            this.row = row;
+            this.session = session;
+        }
+
+        @Override
+        public Value[] getValues() {
+            return row.values.clone();
+        }
+
+        @Override
+        public Value getValue(String columnName) throws RepositoryException {
+            for (int i = 0; i < columnNames.length; i++) {
+                if (columnNames[i].equals(columnName))
+                    return row.values[i];
+            }
+            throw new ItemNotFoundException("unknown column [" + columnName + "]");
+        }
+
+        @Override
+        public Node getNode() throws RepositoryException {
+            return resolveNode(session, getPath());
+        }
+
+        @Override
+        public Node getNode(String selectorName) throws RepositoryException {
+            return resolveNode(session, getPath(selectorName));
+        }
+
+        @Override
+        public String getPath() throws RepositoryException {
+            if (row.paths.length > 1)
+                throw new RepositoryException("the query result has more than one selector");
+            return row.paths[0];
+        }
+
+        @Override
+        public String getPath(String selectorName) throws RepositoryException {
+            return row.paths[selectorIndex(selectorName)];
+        }
+
+        @Override
+        public double getScore() throws RepositoryException {
+            if (row.scores.length > 1)
+                throw new RepositoryException("the query result has more than one selector");
+            return row.scores[0];
+        }
+
+        @Override
+        public double getScore(String selectorName) throws RepositoryException {
+            return row.scores[selectorIndex(selectorName)];
+        }
+    }
+}
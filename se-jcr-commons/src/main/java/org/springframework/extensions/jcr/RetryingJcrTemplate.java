@@ -0,0 +1,121 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.extensions.jcr.metrics.JcrMetricsUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * JcrTemplate which runs the callbacks failing with a retryable exception (by default the concurrency
+ * failures such as <code>InvalidItemStateException</code> or <code>LockException</code>) again, in a fresh
+ * session, according to a {@link JcrRetryPolicy}. This takes care of the conflicts caused by concurrent
+ * writes to the same (hot) nodes without having to retry by hand.
+ * <p/>
+ * Callbacks running inside a transaction (or on any other thread-bound session) are not retried as they
+ * would see the same session again; use {@link JcrRetryInterceptor} around the transactional methods
+ * instead. Callbacks are thus expected to be repeatable: anything they do outside the session is done
+ * once per attempt.
+ * <p/>
+ * If metrics are configured, every retry is counted as {@link JcrMetrics#RETRY} and every operation which
+ * still fails after the last attempt as {@link JcrMetrics#RETRY_EXHAUSTED}, both tagged with the operation
+ * and the exception which caused the retry.
+ * @see JcrRetryPolicy
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class RetryingJcrTemplate extends JcrTemplate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryingJcrTemplate.class);
+
+    private JcrRetryPolicy retryPolicy = new JcrRetryPolicy();
+
+    /**
+     */
+    public RetryingJcrTemplate() {
+    }
+
+    /**
+     * @param sessionFactory
+     */
+    public RetryingJcrTemplate(SessionFactory sessionFactory) {
+        super(sessionFactory);
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.JcrTemplate#execute(org.springframework.extensions.jcr.JcrCallback,
+     *      boolean)
+     */
+    @Override
+    public <T> T execute(JcrCallback<T> action, boolean exposeNativeSession) throws DataAccessException {
+        if (SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory()) != null
+                || TransactionSynchronizationManager.isSynchronizationActive()) {
+            // a retry would run in the same session
+            return super.execute(action, exposeNativeSession);
+        }
+
+        for (int attempt = 1;; attempt++) {
+            try {
+                return super.execute(action, exposeNativeSession);
+            } catch (RuntimeException ex) {
+                Throwable cause = retryPolicy.getRetryableCause(ex);
+                if (cause == null)
+                    throw ex;
+                JcrMetrics metrics = getMetrics();
+                if (attempt >= retryPolicy.getMaxAttempts()) {
+                    if (metrics != null)
+                        metrics.incrementCounter(JcrMetrics.RETRY_EXHAUSTED, JcrMetrics.TAG_OPERATION,
+                                getOperationName(action), JcrMetrics.TAG_EXCEPTION,
+                                JcrMetricsUtils.exceptionName(cause));
+                    throw ex;
+                }
+                if (metrics != null)
+                    metrics.incrementCounter(JcrMetrics.RETRY, JcrMetrics.TAG_OPERATION, getOperationName(action),
+                            JcrMetrics.TAG_EXCEPTION, JcrMetricsUtils.exceptionName(cause));
+
+                long backOff = retryPolicy.getBackOff(attempt);
+                if (LOG.isDebugEnabled())
+                    LOG.debug("attempt " + attempt + " failed with " + cause + "; retrying in " + backOff + " ms");
+                try {
+                    Thread.sleep(backOff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Returns the retryPolicy.
+     */
+    public JcrRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy The retryPolicy to set.
+     */
+    public void setRetryPolicy(JcrRetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("retryPolicy can't be null");
+        this.retryPolicy = retryPolicy;
+    }
+}
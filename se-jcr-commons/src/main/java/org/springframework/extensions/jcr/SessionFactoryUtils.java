@@ -75,8 +75,8 @@ public abstract class SessionFactoryUtils {
         Assert.notNull(sessionFactory, "No sessionFactory specified");
 
         // check if there is any transaction going on
-        SessionHolder sessionHolder = (SessionHolder) TransactionSynchronizationManager.getResource(sessionFactory);
-        if (sessionHolder != null && sessionHolder.getSession() != null)
+        SessionHolder sessionHolder = getThreadBoundSessionHolder(sessionFactory);
+        if (sessionHolder != null)
             return sessionHolder.getSession();
 
         if (!allowCreate && !TransactionSynchronizationManager.isSynchronizationActive()) {
@@ -122,6 +122,20 @@ public abstract class SessionFactoryUtils {
         }
     }
 
+    /**
+     * Return the SessionHolder bound to the current thread for the given SessionFactory, if any. This
+     * requires a single lookup and allows callers to get both the Session and its binding state at once.
+     * @param sessionFactory the JCR SessionFactory (can be null)
+     * @return the thread-bound SessionHolder containing a Session or null if there is none
+     */
+    public static SessionHolder getThreadBoundSessionHolder(SessionFactory sessionFactory) {
+        if (sessionFactory == null) {
+            return null;
+        }
+        SessionHolder sessionHolder = (SessionHolder) TransactionSynchronizationManager.getResource(sessionFactory);
+        return (sessionHolder != null && sessionHolder.getSession() != null ? sessionHolder : null);
+    }
+
     /**
      * Return whether the given JCR Session is thread-bound that is, bound to the current thread by Spring's
      * transaction facilities (which is used as a thread-bounding utility class).
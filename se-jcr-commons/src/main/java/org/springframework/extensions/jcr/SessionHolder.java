@@ -15,6 +15,9 @@
  */
 package org.springframework.extensions.jcr;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.jcr.Session;
 
 import org.springframework.transaction.support.ResourceHolderSupport;
@@ -30,23 +33,76 @@ public class SessionHolder extends ResourceHolderSupport {
 
     private Session session;
 
+    /**
+     * logout-suppressing view over the session, reused by every JcrTemplate call on this holder.
+     */
+    private Session logoutSuppressingSession;
+
+    /**
+     * objects tied to the held session (such as parsed queries) - created lazily.
+     */
+    private Map<Object, Object> attributes;
+
     public SessionHolder(Session session) {
         setSession(session);
     }
 
     protected void setSession(Session session) {
         this.session = session;
+        this.logoutSuppressingSession = null;
+        this.attributes = null;
     }
 
     public Session getSession() {
         return session;
     }
 
+    /**
+     * Returns a view of the held session which ignores <code>logout()</code> calls. The view is created
+     * lazily and reused for the lifetime of the holder.
+     * @return logout-suppressing session or null if the holder contains no session
+     */
+    Session getLogoutSuppressingSession() {
+        if (logoutSuppressingSession == null && session != null)
+            logoutSuppressingSession = new LogoutSuppressingSession(session);
+        return logoutSuppressingSession;
+    }
+
+    /**
+     * Returns an object previously stored on this holder. Attributes allow components to keep state which is
+     * only valid for the held session (for example objects created through it) and they are discarded
+     * together with the session.
+     * @param key
+     * @return the attribute value or null if none was set
+     */
+    public Object getAttribute(Object key) {
+        return (attributes == null ? null : attributes.get(key));
+    }
+
+    /**
+     * Stores an object on this holder.
+     * @param key
+     * @param value value or null to remove the attribute
+     * @see #getAttribute(Object)
+     */
+    public void setAttribute(Object key, Object value) {
+        if (value == null) {
+            if (attributes != null)
+                attributes.remove(key);
+            return;
+        }
+        if (attributes == null)
+            attributes = new HashMap<Object, Object>(4);
+        attributes.put(key, value);
+    }
+
     /**
      * @see org.springframework.transaction.support.ResourceHolderSupport#clear()
      */
     public void clear() {
         super.clear();
         session = null;
+        logoutSuppressingSession = null;
+        attributes = null;
     }
 }
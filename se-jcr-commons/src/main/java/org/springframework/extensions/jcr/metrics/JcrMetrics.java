@@ -0,0 +1,143 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.metrics;
+
+/**
+ * Strategy interface used by the JCR support classes for publishing metrics. Implementations adapt the calls
+ * to a metrics library (such as Micrometer, see the <code>se-jcr-micrometer</code> module); instrumentation
+ * is disabled when no JcrMetrics is configured.
+ * <p/>
+ * Tags are passed as a flat list of key/value pairs, e.g.
+ * <code>recordTime(TEMPLATE_EXECUTE, nanos, TAG_WORKSPACE, "default", TAG_OPERATION, "query")</code>.
+ * All the timers are tagged with {@link #TAG_WORKSPACE}, {@link #TAG_OPERATION} and {@link #TAG_EXCEPTION}.
+ * Implementations have to be thread-safe.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public interface JcrMetrics {
+
+    /**
+     * Timer - latency of <code>Repository.login()</code> inside JcrSessionFactory.
+     */
+    String SESSION_LOGIN = "jcr.session.login";
+
+    /**
+     * Gauge - number of sessions created by a JcrSessionFactory which are still live.
+     */
+    String SESSIONS_OPEN = "jcr.sessions.open";
+
+    /**
+     * Timer - duration of the callback executed by JcrTemplate.
+     */
+    String TEMPLATE_EXECUTE = "jcr.template.execute";
+
+    /**
+     * Timer - duration of a LocalTransactionManager commit.
+     */
+    String TRANSACTION_COMMIT = "jcr.transaction.commit";
+
+    /**
+     * Timer - duration of a LocalTransactionManager rollback.
+     */
+    String TRANSACTION_ROLLBACK = "jcr.transaction.rollback";
+
+    /**
+     * Counter - a failed attempt which is retried (see RetryingJcrTemplate and JcrRetryInterceptor).
+     */
+    String RETRY = "jcr.retry";
+
+    /**
+     * Counter - an operation which still fails after the last attempt allowed by the retry policy.
+     */
+    String RETRY_EXHAUSTED = "jcr.retry.exhausted";
+
+    /**
+     * Timer - time the oldest event of a batch waited in the queue of an AsyncEventListener.
+     */
+    String EVENT_LAG = "jcr.event.lag";
+
+    /**
+     * Gauge - number of events waiting in the queue of an AsyncEventListener.
+     */
+    String EVENTS_QUEUED = "jcr.events.queued";
+
+    /**
+     * Counter - an event merged by an AsyncEventListener into an equal event which was still queued.
+     */
+    String EVENTS_COALESCED = "jcr.events.coalesced";
+
+    /**
+     * Counter - an event discarded by an AsyncEventListener because its queue was full.
+     */
+    String EVENTS_DROPPED = "jcr.events.dropped";
+
+    /**
+     * Counter - a lookup served by a cache of mapped objects (see MappedObjectCache in se-jcr-jackrabbit-ocm).
+     */
+    String CACHE_HITS = "jcr.cache.hits";
+
+    /**
+     * Counter - a lookup which missed a cache of mapped objects.
+     */
+    String CACHE_MISSES = "jcr.cache.misses";
+
+    String TAG_WORKSPACE = "workspace";
+
+    String TAG_OPERATION = "operation";
+
+    String TAG_EXCEPTION = "exception";
+
+    String TAG_LISTENER = "listener";
+
+    String TAG_CACHE = "cache";
+
+    /**
+     * Tag value used when no exception occurred.
+     */
+    String NONE = "none";
+
+    /**
+     * Records the duration of an operation.
+     * @param name metric name
+     * @param durationNanos duration in nanoseconds
+     * @param tags key/value pairs
+     */
+    void recordTime(String name, long durationNanos, String... tags);
+
+    /**
+     * Increments a counter by one.
+     * @param name metric name
+     * @param tags key/value pairs
+     */
+    void incrementCounter(String name, String... tags);
+
+    /**
+     * Registers a gauge which is sampled by the metrics library whenever needed.
+     * @param name metric name
+     * @param gauge value provider
+     * @param tags key/value pairs
+     */
+    void registerGauge(String name, Gauge gauge, String... tags);
+
+    /**
+     * Provider of a gauge value.
+     */
+    interface Gauge {
+
+        double value();
+    }
+}
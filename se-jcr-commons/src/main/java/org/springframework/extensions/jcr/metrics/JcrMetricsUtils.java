@@ -0,0 +1,97 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.metrics;
+
+import java.lang.reflect.Method;
+
+import javax.jcr.Session;
+
+import org.springframework.extensions.jcr.util.ConcurrentCachingMap;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Helper methods for computing the tags published through {@link JcrMetrics}.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public abstract class JcrMetricsUtils {
+
+    /**
+     * Workspace tag used when the workspace name can not be determined.
+     */
+    public static final String DEFAULT_WORKSPACE = "default";
+
+    /**
+     * operation names by callback class; the classes are weakly referenced so that the cache does not keep
+     * their class loaders alive.
+     */
+    private static final ConcurrentCachingMap<Class<?>, String> OPERATION_NAMES = new ConcurrentCachingMap<Class<?>, String>(true) {
+        @Override
+        protected String create(Class<?> clazz) {
+            return determineOperationName(clazz);
+        }
+    };
+
+    /**
+     * Returns the name of the workspace the session is bound to.
+     * @param session
+     * @return the workspace name or {@link #DEFAULT_WORKSPACE}
+     */
+    public static String workspaceName(Session session) {
+        if (session != null) {
+            try {
+                String name = session.getWorkspace().getName();
+                if (name != null)
+                    return name;
+            } catch (RuntimeException ex) {
+                // fall back to the default
+            }
+        }
+        return DEFAULT_WORKSPACE;
+    }
+
+    /**
+     * Returns the tag value for the given exception.
+     * @param ex exception (can be null)
+     * @return the simple class name of the exception or {@link JcrMetrics#NONE}
+     */
+    public static String exceptionName(Throwable ex) {
+        return (ex == null ? JcrMetrics.NONE : ex.getClass().getSimpleName());
+    }
+
+    /**
+     * Derives an operation name from a callback. Anonymous callbacks (the common case, including the ones
+     * used internally by JcrTemplate) are named after the method declaring them; other classes after their
+     * short class name. The result is cached per class.
+     * @param callback
+     * @return the operation name
+     */
+    public static String operationName(Object callback) {
+        return OPERATION_NAMES.get(callback.getClass());
+    }
+
+    private static String determineOperationName(Class<?> clazz) {
+        if (clazz.isAnonymousClass() || clazz.isLocalClass()) {
+            Method method = clazz.getEnclosingMethod();
+            if (method != null)
+                return method.getName();
+            if (clazz.getEnclosingClass() != null)
+                return ClassUtils.getShortName(clazz.getEnclosingClass());
+        }
+        return ClassUtils.getShortName(clazz);
+    }
+}
@@ -52,16 +52,11 @@ public abstract class AbstractSessionHolderProviderManager implements SessionHol
             return defaultProvider;
 
         String key = repository.getDescriptor(Repository.REP_NAME_DESC);
-        List<SessionHolderProvider> providers = getProviders();
-
-        // search the provider
-        for (int i = 0; i < providers.size(); i++) {
-            SessionHolderProvider provider = providers.get(i);
-            if (provider.acceptsRepository(key)) {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("specific SessionHolderProvider found for repository " + key);
-                return provider;
-            }
+        SessionHolderProvider provider = findProvider(key);
+        if (provider != null) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("specific SessionHolderProvider found for repository " + key);
+            return provider;
         }
 
         // no provider found - return the default one
@@ -69,4 +64,20 @@ public abstract class AbstractSessionHolderProviderManager implements SessionHol
             LOG.debug("no specific SessionHolderProvider found for repository " + key + "; using the default one");
         return defaultProvider;
     }
+
+    /**
+     * Returns the first provider accepting the given repository name. The default implementation walks the
+     * list returned by {@link #getProviders()}.
+     * @param repositoryName repository name as returned by the Repository.REP_NAME_DESC descriptor
+     * @return the provider or null if none accepts the repository
+     */
+    protected SessionHolderProvider findProvider(String repositoryName) {
+        List<SessionHolderProvider> providers = getProviders();
+        for (int i = 0; i < providers.size(); i++) {
+            SessionHolderProvider provider = providers.get(i);
+            if (provider.acceptsRepository(repositoryName))
+                return provider;
+        }
+        return null;
+    }
 }
@@ -18,7 +18,7 @@ package org.springframework.extensions.jcr.support;
 import javax.jcr.Repository;
 
 import org.springframework.extensions.jcr.SessionHolderProvider;
-import org.springframework.extensions.jcr.util.CachingMapDecorator;
+import org.springframework.extensions.jcr.util.ConcurrentCachingMap;
 
 /**
  * Manager which caches providers in order to avoid lookups.
@@ -29,21 +29,20 @@ import org.springframework.extensions.jcr.util.CachingMapDecorator;
 public abstract class CacheableSessionHolderProviderManager extends AbstractSessionHolderProviderManager {
 
     /**
-     * Caching class based on CachingMapDecorator from main Spring distribution.
+     * Caching class based on ConcurrentCachingMap; lookups of already cached providers do not lock and the
+     * entries are removed once their repository is garbage collected.
      * @author Costin Leau
      * @author Sergio Bossa
      * @author Salvatore Incandela
      */
-    protected class ProvidersCache extends CachingMapDecorator<Repository, SessionHolderProvider> {
-
-        private static final long serialVersionUID = 1L;
+    protected class ProvidersCache extends ConcurrentCachingMap<Repository, SessionHolderProvider> {
 
         private ProvidersCache() {
             super(true);
         }
 
         /**
-         * @see org.springframework.extensions.jcr.util.CachingMapDecorator#create(java.lang.Object)
+         * @see org.springframework.extensions.jcr.util.ConcurrentCachingMap#create(java.lang.Object)
          */
         @Override
         protected SessionHolderProvider create(Repository key) {
@@ -66,6 +65,13 @@ public abstract class CacheableSessionHolderProviderManager extends AbstractSess
         return super.getSessionProvider(repository);
     }
 
+    /**
+     * Forgets the providers resolved so far.
+     */
+    protected void clearCache() {
+        providersCache.clear();
+    }
+
     /**
      * Overwrite the method to provide caching.
      * @see org.springframework.extensions.jcr.support.AbstractSessionHolderProviderManager#getSessionProvider(Repository)
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.AccessControlException;
+
+import javax.jcr.Credentials;
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.retention.RetentionManager;
+import javax.jcr.security.AccessControlManager;
+
+import org.springframework.util.Assert;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Plain (non-reflective) {@link Session} implementation which delegates every call to a target Session.
+ * Meant to be subclassed by decorators which need to intercept only a few methods (such as
+ * <code>logout()</code>) without paying for a <code>java.lang.reflect.Proxy</code> and
+ * <code>Method.invoke</code> on every call.
+ * <p/>
+ * Note that only the <code>javax.jcr.Session</code> interface is exposed; vendor specific interfaces
+ * implemented by the target are not.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class DelegatingSession implements Session {
+
+    private final Session target;
+
+    /**
+     * @param target the Session to delegate to
+     */
+    public DelegatingSession(Session target) {
+        Assert.notNull(target, "target session is required");
+        this.target = target;
+    }
+
+    /**
+     * @return the target Session.
+     */
+    public Session getTargetSession() {
+        return target;
+    }
+
+    @Override
+    public Repository getRepository() {
+        return target.getRepository();
+    }
+
+    @Override
+    public String getUserID() {
+        return target.getUserID();
+    }
+
+    @Override
+    public String[] getAttributeNames() {
+        return target.getAttributeNames();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return target.getAttribute(name);
+    }
+
+    @Override
+    public Workspace getWorkspace() {
+        return target.getWorkspace();
+    }
+
+    @Override
+    public Node getRootNode() throws RepositoryException {
+        return target.getRootNode();
+    }
+
+    @Override
+    public Session impersonate(Credentials credentials) throws RepositoryException {
+        return target.impersonate(credentials);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Node getNodeByUUID(String uuid) throws RepositoryException {
+        return target.getNodeByUUID(uuid);
+    }
+
+    @Override
+    public Node getNodeByIdentifier(String id) throws RepositoryException {
+        return target.getNodeByIdentifier(id);
+    }
+
+    @Override
+    public Item getItem(String absPath) throws RepositoryException {
+        return target.getItem(absPath);
+    }
+
+    @Override
+    public Node getNode(String absPath) throws RepositoryException {
+        return target.getNode(absPath);
+    }
+
+    @Override
+    public Property getProperty(String absPath) throws RepositoryException {
+        return target.getProperty(absPath);
+    }
+
+    @Override
+    public boolean itemExists(String absPath) throws RepositoryException {
+        return target.itemExists(absPath);
+    }
+
+    @Override
+    public boolean nodeExists(String absPath) throws RepositoryException {
+        return target.nodeExists(absPath);
+    }
+
+    @Override
+    public boolean propertyExists(String absPath) throws RepositoryException {
+        return target.propertyExists(absPath);
+    }
+
+    @Override
+    public void move(String srcAbsPath, String destAbsPath) throws RepositoryException {
+        target.move(srcAbsPath, destAbsPath);
+    }
+
+    @Override
+    public void removeItem(String absPath) throws RepositoryException {
+        target.removeItem(absPath);
+    }
+
+    @Override
+    public void save() throws RepositoryException {
+        target.save();
+    }
+
+    @Override
+    public void refresh(boolean keepChanges) throws RepositoryException {
+        target.refresh(keepChanges);
+    }
+
+    @Override
+    public boolean hasPendingChanges() throws RepositoryException {
+        return target.hasPendingChanges();
+    }
+
+    @Override
+    public ValueFactory getValueFactory() throws RepositoryException {
+        return target.getValueFactory();
+    }
+
+    @Override
+    public boolean hasPermission(String absPath, String actions) throws RepositoryException {
+        return target.hasPermission(absPath, actions);
+    }
+
+    @Override
+    public void checkPermission(String absPath, String actions) throws AccessControlException, RepositoryException {
+        target.checkPermission(absPath, actions);
+    }
+
+    @Override
+    public boolean hasCapability(String methodName, Object object, Object[] arguments) throws RepositoryException {
+        return target.hasCapability(methodName, object, arguments);
+    }
+
+    @Override
+    public ContentHandler getImportContentHandler(String parentAbsPath, int uuidBehavior) throws RepositoryException {
+        return target.getImportContentHandler(parentAbsPath, uuidBehavior);
+    }
+
+    @Override
+    public void importXML(String parentAbsPath, InputStream in, int uuidBehavior) throws IOException,
+            RepositoryException {
+        target.importXML(parentAbsPath, in, uuidBehavior);
+    }
+
+    @Override
+    public void exportSystemView(String absPath, ContentHandler contentHandler, boolean skipBinary, boolean noRecurse)
+            throws SAXException, RepositoryException {
+        target.exportSystemView(absPath, contentHandler, skipBinary, noRecurse);
+    }
+
+    @Override
+    public void exportSystemView(String absPath, OutputStream out, boolean skipBinary, boolean noRecurse)
+            throws IOException, RepositoryException {
+        target.exportSystemView(absPath, out, skipBinary, noRecurse);
+    }
+
+    @Override
+    public void exportDocumentView(String absPath, ContentHandler contentHandler, boolean skipBinary,
+            boolean noRecurse) throws SAXException, RepositoryException {
+        target.exportDocumentView(absPath, contentHandler, skipBinary, noRecurse);
+    }
+
+    @Override
+    public void exportDocumentView(String absPath, OutputStream out, boolean skipBinary, boolean noRecurse)
+            throws IOException, RepositoryException {
+        target.exportDocumentView(absPath, out, skipBinary, noRecurse);
+    }
+
+    @Override
+    public void setNamespacePrefix(String prefix, String uri) throws RepositoryException {
+        target.setNamespacePrefix(prefix, uri);
+    }
+
+    @Override
+    public String[] getNamespacePrefixes() throws RepositoryException {
+        return target.getNamespacePrefixes();
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) throws RepositoryException {
+        return target.getNamespaceURI(prefix);
+    }
+
+    @Override
+    public String getNamespacePrefix(String uri) throws RepositoryException {
+        return target.getNamespacePrefix(uri);
+    }
+
+    @Override
+    public void logout() {
+        target.logout();
+    }
+
+    @Override
+    public boolean isLive() {
+        return target.isLive();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void addLockToken(String lt) {
+        target.addLockToken(lt);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public String[] getLockTokens() {
+        return target.getLockTokens();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void removeLockToken(String lt) {
+        target.removeLockToken(lt);
+    }
+
+    @Override
+    public AccessControlManager getAccessControlManager() throws RepositoryException {
+        return target.getAccessControlManager();
+    }
+
+    @Override
+    public RetentionManager getRetentionManager() throws RepositoryException {
+        return target.getRetentionManager();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " for [" + target + "]";
+    }
+}
@@ -15,13 +15,10 @@
  */
 package org.springframework.extensions.jcr.support;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.ServiceLoader;
 
 import org.springframework.extensions.jcr.SessionHolderProvider;
+import org.springframework.extensions.jcr.util.ConcurrentCachingMap;
 
 /**
  * Implementation of SessionHolderProviderManager which does dynamic discovery of the providers using the JDK
@@ -39,19 +36,48 @@ import org.springframework.extensions.jcr.SessionHolderProvider;
 public class ServiceSessionHolderProviderManager extends CacheableSessionHolderProviderManager {
 
     /**
-     * Loads the service providers using the discovery mechanism.
+     * registries by context class loader, shared with the other managers; referencing them here keeps them
+     * shared for as long as this manager lives.
+     */
+    private final ConcurrentCachingMap<ClassLoader, SessionHolderProviderRegistry> registries = new ConcurrentCachingMap<ClassLoader, SessionHolderProviderRegistry>() {
+        @Override
+        protected SessionHolderProviderRegistry create(ClassLoader classLoader) {
+            return SessionHolderProviderRegistry.getSharedRegistry(classLoader);
+        }
+    };
+
+    /**
+     * Returns the service providers found in the context class loader. The class path is only scanned once
+     * per class loader, whatever the number of managers.
      * @return the list of service providers found.
+     * @see SessionHolderProviderRegistry
      */
     @Override
     public List<SessionHolderProvider> getProviders() {
-        final ServiceLoader<SessionHolderProvider> serviceLoader = ServiceLoader.load(SessionHolderProvider.class,
-                Thread.currentThread().getContextClassLoader());
+        return getRegistry().getProviders();
+    }
 
-        List<SessionHolderProvider> providers = new ArrayList<SessionHolderProvider>();
-        Iterator<SessionHolderProvider> sessionHolderProviderIterator = serviceLoader.iterator();
-        while (sessionHolderProviderIterator.hasNext()) {
-            providers.add(sessionHolderProviderIterator.next());
-        }
-        return Collections.unmodifiableList(providers);
+    /**
+     * @see org.springframework.extensions.jcr.support.AbstractSessionHolderProviderManager#findProvider(java.lang.String)
+     */
+    @Override
+    protected SessionHolderProvider findProvider(String repositoryName) {
+        return getRegistry().getProvider(repositoryName);
+    }
+
+    /**
+     * Scans the class path again for providers, for example after new ones have been deployed. The providers
+     * are shared, so the other managers see them as well; they keep the providers they already resolved for a
+     * repository until they are refreshed themselves.
+     */
+    public void refresh() {
+        getRegistry().refresh();
+        clearCache();
+    }
+
+    private SessionHolderProviderRegistry getRegistry() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return registries.get(classLoader != null ? classLoader : ServiceSessionHolderProviderManager.class
+                .getClassLoader());
     }
 }
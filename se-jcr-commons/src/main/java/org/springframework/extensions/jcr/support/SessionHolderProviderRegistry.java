@@ -0,0 +1,164 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.support;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.jcr.SessionHolderProvider;
+
+/**
+ * Registry of the SessionHolderProviders discovered through the 'Service Provider' mechanism. The
+ * META-INF/services files of the class loader are scanned once (and not every time a
+ * {@link ServiceSessionHolderProviderManager} needs them) and the provider accepting a repository name is
+ * resolved once per name; afterwards a lookup is a single map access.
+ * <p/>
+ * {@link #getSharedRegistry(ClassLoader)} shares one registry per class loader between the managers. The
+ * shared registries are only weakly referenced, so that the class loaders they (and their providers) reference
+ * are released together with the last manager using them; {@link #refresh()} rescans the class path after new
+ * providers have been made available.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class SessionHolderProviderRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionHolderProviderRegistry.class);
+
+    /**
+     * marks the repository names no provider accepts (ConcurrentHashMap does not allow null values)
+     */
+    private static final SessionHolderProvider NO_PROVIDER = new GenericSessionHolderProvider();
+
+    /**
+     * shared registries by class loader; the values are weak as well since a registry references its class
+     * loader
+     */
+    private static final Map<ClassLoader, WeakReference<SessionHolderProviderRegistry>> SHARED_REGISTRIES = new WeakHashMap<ClassLoader, WeakReference<SessionHolderProviderRegistry>>();
+
+    private final ClassLoader classLoader;
+
+    private volatile Providers providers;
+
+    /**
+     * Creates a registry, scanning the given class loader.
+     * @param classLoader class loader used for discovering the providers; if null, the class loader of this class
+     *            is used
+     */
+    public SessionHolderProviderRegistry(ClassLoader classLoader) {
+        this.classLoader = (classLoader != null ? classLoader : SessionHolderProviderRegistry.class.getClassLoader());
+        this.providers = loadProviders();
+    }
+
+    /**
+     * Returns the registry of the given class loader which is shared with the other callers, scanning the class
+     * loader only if no registry is in use for it. The caller has to keep a reference to the registry for as
+     * long as it uses it.
+     * @param classLoader class loader used for discovering the providers; if null, the class loader of this class
+     *            is used
+     * @return the shared registry
+     */
+    public static SessionHolderProviderRegistry getSharedRegistry(ClassLoader classLoader) {
+        ClassLoader key = (classLoader != null ? classLoader : SessionHolderProviderRegistry.class.getClassLoader());
+        synchronized (SHARED_REGISTRIES) {
+            WeakReference<SessionHolderProviderRegistry> reference = SHARED_REGISTRIES.get(key);
+            SessionHolderProviderRegistry registry = (reference != null ? reference.get() : null);
+            if (registry == null) {
+                registry = new SessionHolderProviderRegistry(key);
+                SHARED_REGISTRIES.put(key, new WeakReference<SessionHolderProviderRegistry>(registry));
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * @return the providers found in the class loader.
+     */
+    public List<SessionHolderProvider> getProviders() {
+        return providers.list;
+    }
+
+    /**
+     * Returns the first provider accepting the given repository name.
+     * @param repositoryName repository name as returned by the Repository.REP_NAME_DESC descriptor
+     * @return the provider or null if none accepts the repository
+     */
+    public SessionHolderProvider getProvider(String repositoryName) {
+        Providers current = providers;
+        if (repositoryName == null)
+            return current.find(null);
+
+        SessionHolderProvider provider = current.byRepositoryName.get(repositoryName);
+        if (provider == null) {
+            // resolving the same name twice in parallel is harmless
+            provider = current.find(repositoryName);
+            current.byRepositoryName.putIfAbsent(repositoryName, (provider != null ? provider : NO_PROVIDER));
+        }
+        return (provider == NO_PROVIDER ? null : provider);
+    }
+
+    /**
+     * Scans the class loader again and forgets the resolved repository names.
+     */
+    public void refresh() {
+        providers = loadProviders();
+    }
+
+    private Providers loadProviders() {
+        ServiceLoader<SessionHolderProvider> serviceLoader = ServiceLoader.load(SessionHolderProvider.class,
+                classLoader);
+        List<SessionHolderProvider> list = new ArrayList<SessionHolderProvider>();
+        for (Iterator<SessionHolderProvider> it = serviceLoader.iterator(); it.hasNext();) {
+            list.add(it.next());
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("discovered SessionHolderProviders " + list + " in class loader " + classLoader);
+        return new Providers(Collections.unmodifiableList(list));
+    }
+
+    /**
+     * Immutable provider list together with the names resolved against it.
+     */
+    private static class Providers {
+
+        final List<SessionHolderProvider> list;
+
+        final ConcurrentMap<String, SessionHolderProvider> byRepositoryName = new ConcurrentHashMap<String, SessionHolderProvider>();
+
+        Providers(List<SessionHolderProvider> list) {
+            this.list = list;
+        }
+
+        SessionHolderProvider find(String repositoryName) {
+            for (int i = 0; i < list.size(); i++) {
+                SessionHolderProvider provider = list.get(i);
+                if (provider.acceptsRepository(repositoryName))
+                    return provider;
+            }
+            return null;
+        }
+    }
+}
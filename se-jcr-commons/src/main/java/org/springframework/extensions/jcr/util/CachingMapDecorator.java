@@ -43,7 +43,9 @@ import org.springframework.util.Assert;
  * @author Keith Donald
  * @author Juergen Hoeller
  * @since 1.2.2
+ * @deprecated every operation goes through a global lock; use {@link ConcurrentCachingMap} instead
  */
+@Deprecated
 public abstract class CachingMapDecorator<K, V> implements Map<K, V>, Serializable {
 
     private static Object NULL_VALUE = new Object();
@@ -0,0 +1,549 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent replacement for {@link CachingMapDecorator}: a Map which creates the missing values on
+ * {@link #get(Object)} through {@link #create(Object)}, backed by a ConcurrentHashMap so lookups do not take
+ * any lock.
+ * <p/>
+ * Compared to CachingMapDecorator:
+ * <ul>
+ * <li>a value is created only once per key, even when several threads ask for it at the same time; the other
+ * threads wait for the creating one</li>
+ * <li>keys can be weakly referenced, in which case entries disappear once their key is garbage collected
+ * (keys are compared through equals, as in a WeakHashMap); values are always strongly referenced</li>
+ * <li>the number of entries can be bounded (the oldest entries are evicted first; adding an entry to a
+ * bounded map briefly locks the creation order) and entries can expire after a time to live</li>
+ * <li>hits, misses and evictions are counted</li>
+ * <li>keySet(), values() and entrySet() are weakly consistent views instead of copies</li>
+ * </ul>
+ * Null keys are not supported. {@link #size()} is an estimate which includes the values being created and
+ * the entries which expired but have not been removed yet.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public abstract class ConcurrentCachingMap<K, V> extends AbstractMap<K, V> {
+
+    private static final Object FAILED = new Object();
+
+    private final ConcurrentMap<Object, CacheEntry<V>> targetMap = new ConcurrentHashMap<Object, CacheEntry<V>>();
+
+    private final boolean weak;
+
+    private final int maxSize;
+
+    private final long timeToLiveNanos;
+
+    private final ReferenceQueue<K> collectedKeys;
+
+    /**
+     * entries in creation order, only used if the size is bounded; guarded by itself
+     */
+    private final Deque<CacheEntry<V>> creationOrder;
+
+    private final StripedCounter hitCount = new StripedCounter();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private transient Set<Map.Entry<K, V>> entrySet;
+
+    /**
+     * Create an unbounded ConcurrentCachingMap with strong keys.
+     */
+    public ConcurrentCachingMap() {
+        this(false);
+    }
+
+    /**
+     * Create an unbounded ConcurrentCachingMap.
+     * @param weak whether to use weak references for keys
+     */
+    public ConcurrentCachingMap(boolean weak) {
+        this(weak, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a ConcurrentCachingMap.
+     * @param weak whether to use weak references for keys
+     * @param maxSize the maximum number of entries, 0 for no limit
+     * @param timeToLive how long an entry is kept after its creation, 0 for ever
+     * @param unit unit of timeToLive
+     */
+    public ConcurrentCachingMap(boolean weak, int maxSize, long timeToLive, TimeUnit unit) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("maxSize can't be negative");
+        if (timeToLive < 0)
+            throw new IllegalArgumentException("timeToLive can't be negative");
+        this.weak = weak;
+        this.maxSize = maxSize;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.collectedKeys = (weak ? new ReferenceQueue<K>() : null);
+        this.creationOrder = (maxSize > 0 ? new ArrayDeque<CacheEntry<V>>() : null);
+    }
+
+    /**
+     * Create a value to cache for the given key. Called by <code>get</code> if there is no value cached
+     * already; concurrent calls of <code>get</code> for the same key wait for the creation to finish. If this
+     * method throws an exception, nothing is cached and the exception is propagated to the caller.
+     * @param key the cache key
+     * @see #get(Object)
+     */
+    protected abstract V create(K key);
+
+    /**
+     * Get value for key. Creates and caches value if it doesn't already exist in the cache.
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        purgeCollectedKeys();
+        Object lookupKey = lookupKey(key);
+        for (;;) {
+            CacheEntry<V> entry = targetMap.get(lookupKey);
+            if (entry != null) {
+                if (!isExpired(entry)) {
+                    Object value = entry.await();
+                    if (value != FAILED) {
+                        hitCount.increment();
+                        return (V) value;
+                    }
+                    // the creating thread failed and removed the entry; try again
+                } else if (targetMap.remove(lookupKey, entry)) {
+                    evictionCount.incrementAndGet();
+                }
+                continue;
+            }
+
+            K typedKey = (K) key;
+            entry = new CacheEntry<V>(storeKey(typedKey));
+            if (targetMap.putIfAbsent(entry.storeKey, entry) != null)
+                continue;
+            missCount.incrementAndGet();
+            return populate(typedKey, entry);
+        }
+    }
+
+    private V populate(K key, CacheEntry<V> entry) {
+        boolean created = false;
+        try {
+            V value = create(key);
+            entry.complete(value);
+            created = true;
+            return value;
+        } finally {
+            if (!created) {
+                targetMap.remove(entry.storeKey, entry);
+                entry.fail();
+            } else {
+                entryAdded(entry);
+            }
+        }
+    }
+
+    private void entryAdded(CacheEntry<V> entry) {
+        if (creationOrder == null)
+            return;
+        synchronized (creationOrder) {
+            creationOrder.add(entry);
+            // the queue still holds removed, replaced and collected entries; only the mapped ones are counted
+            while (targetMap.size() > maxSize && !creationOrder.isEmpty()) {
+                CacheEntry<V> eldest = creationOrder.poll();
+                if (targetMap.remove(eldest.storeKey, eldest))
+                    evictionCount.incrementAndGet();
+            }
+            // drop the stale elements once they might outnumber the mapped ones
+            if (creationOrder.size() - maxSize > maxSize) {
+                for (Iterator<CacheEntry<V>> it = creationOrder.iterator(); it.hasNext();) {
+                    CacheEntry<V> queued = it.next();
+                    if (targetMap.get(queued.storeKey) != queued)
+                        it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Put an object into the cache, replacing any cached or pending value.
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(K key, V value) {
+        purgeCollectedKeys();
+        CacheEntry<V> entry = new CacheEntry<V>(storeKey(key));
+        entry.complete(value);
+        CacheEntry<V> previous = targetMap.put(entry.storeKey, entry);
+        entryAdded(entry);
+        return valueOf(previous);
+    }
+
+    /**
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(Object key) {
+        purgeCollectedKeys();
+        return valueOf(targetMap.remove(lookupKey(key)));
+    }
+
+    /**
+     * Checks whether a value is cached for the given key, without creating it.
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        purgeCollectedKeys();
+        CacheEntry<V> entry = targetMap.get(lookupKey(key));
+        return (entry != null && entry.isDone() && !isExpired(entry));
+    }
+
+    /**
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        purgeCollectedKeys();
+        return targetMap.size();
+    }
+
+    /**
+     * @see java.util.AbstractMap#isEmpty()
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        targetMap.clear();
+        if (creationOrder != null) {
+            synchronized (creationOrder) {
+                creationOrder.clear();
+            }
+        }
+        purgeCollectedKeys();
+    }
+
+    /**
+     * Returns a weakly consistent view of the created, unexpired entries.
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es = entrySet;
+        return (es != null ? es : (entrySet = new EntrySet()));
+    }
+
+    /**
+     * @return the number of lookups which found a cached value.
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return the number of lookups which created a value.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of entries removed because the map was full or because they expired.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private boolean isExpired(CacheEntry<V> entry) {
+        return timeToLiveNanos > 0 && entry.isDone() && System.nanoTime() - entry.createdAt > timeToLiveNanos;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueOf(CacheEntry<V> entry) {
+        if (entry == null || !entry.isDone())
+            return null;
+        Object value = entry.value;
+        return (value == FAILED ? null : (V) value);
+    }
+
+    private Object lookupKey(Object key) {
+        if (key == null)
+            throw new NullPointerException("null keys are not supported");
+        return (weak ? new LookupKey(key) : key);
+    }
+
+    private Object storeKey(K key) {
+        if (key == null)
+            throw new NullPointerException("null keys are not supported");
+        return (weak ? new WeakKey<K>(key, collectedKeys) : key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyOf(Object storeKey) {
+        return (K) (weak ? ((WeakKey<K>) storeKey).get() : storeKey);
+    }
+
+    private void purgeCollectedKeys() {
+        if (collectedKeys == null)
+            return;
+        Reference<? extends K> ref;
+        while ((ref = collectedKeys.poll()) != null) {
+            // a collected WeakKey is only equal to itself
+            targetMap.remove(ref);
+        }
+    }
+
+    /**
+     * @see java.util.AbstractMap#toString()
+     */
+    @Override
+    public String toString() {
+        return "ConcurrentCachingMap [" + getClass().getName() + "]:" + super.toString();
+    }
+
+    /**
+     * Counter spread over several padded cells so that the threads hitting the cache do not all update the
+     * same memory location.
+     */
+    private static final class StripedCounter {
+
+        private static final int CELLS = 16;
+
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+        void increment() {
+            int cell = (int) (Thread.currentThread().getId() & (CELLS - 1));
+            cells.incrementAndGet(cell * PADDING);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < CELLS; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * A cached value, or the promise of one while it is being created.
+     */
+    private static final class CacheEntry<V> {
+
+        final Object storeKey;
+
+        private final CountDownLatch created = new CountDownLatch(1);
+
+        volatile Object value;
+
+        volatile long createdAt;
+
+        CacheEntry(Object storeKey) {
+            this.storeKey = storeKey;
+        }
+
+        void complete(V value) {
+            this.value = value;
+            this.createdAt = System.nanoTime();
+            created.countDown();
+        }
+
+        void fail() {
+            this.value = FAILED;
+            created.countDown();
+        }
+
+        boolean isDone() {
+            return created.getCount() == 0;
+        }
+
+        /**
+         * @return the value or FAILED if the creation failed
+         */
+        Object await() {
+            if (!isDone()) {
+                boolean interrupted = false;
+                for (;;) {
+                    try {
+                        created.await();
+                        break;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Common contract of the key wrappers used when keys are weak.
+     */
+    private interface KeyReference {
+
+        Object getKey();
+    }
+
+    private static final class WeakKey<K> extends WeakReference<K> implements KeyReference {
+
+        private final int hash;
+
+        WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            this.hash = key.hashCode();
+        }
+
+        @Override
+        public Object getKey() {
+            return get();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof KeyReference))
+                return false;
+            Object key = get();
+            return (key != null && key.equals(((KeyReference) obj).getKey()));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Strong key wrapper used for looking up weak keys.
+     */
+    private static final class LookupKey implements KeyReference {
+
+        private final Object key;
+
+        LookupKey(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object getKey() {
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof KeyReference && key.equals(((KeyReference) obj).getKey()));
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentCachingMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentCachingMap.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Iterator<CacheEntry<V>> target = targetMap.values().iterator();
+
+        private Map.Entry<K, V> next;
+
+        private CacheEntry<V> nextEntry;
+
+        private CacheEntry<V> lastEntry;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+            while (next == null && target.hasNext()) {
+                CacheEntry<V> entry = target.next();
+                K key = keyOf(entry.storeKey);
+                if (key == null || !entry.isDone() || entry.value == FAILED || isExpired(entry))
+                    continue;
+                next = new SimpleImmutableEntry<K, V>(key, (V) entry.value);
+                nextEntry = entry;
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<K, V> result = next;
+            lastEntry = nextEntry;
+            next = null;
+            nextEntry = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            if (lastEntry == null)
+                throw new IllegalStateException();
+            targetMap.remove(lastEntry.storeKey, lastEntry);
+            lastEntry = null;
+        }
+    }
+}
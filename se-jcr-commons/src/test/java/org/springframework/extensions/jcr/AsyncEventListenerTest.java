@@ -0,0 +1,298 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class AsyncEventListenerTest {
+
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    private final RecordingListener target = new RecordingListener();
+
+    private AsyncEventListener listener;
+
+    @Before
+    public void setUp() {
+        listener = new AsyncEventListener();
+        listener.setListener(target);
+        // tasks are run by the test itself
+        listener.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        listener.destroy();
+    }
+
+    @Test
+    public void testEventsAreDeliveredInBatches() throws Exception {
+        listener.setMaxBatchSize(2);
+        listener.afterPropertiesSet();
+        Event first = createEvent(Event.NODE_ADDED, "/a");
+        Event second = createEvent(Event.NODE_ADDED, "/b");
+        Event third = createEvent(Event.NODE_ADDED, "/c");
+
+        listener.onEvent(createEvents(first, second));
+        listener.onEvent(createEvents(third));
+        assertEquals(3, listener.getQueueSize());
+        assertTrue(target.batches.isEmpty());
+        // a single dispatch task is started
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertEquals(2, target.batches.size());
+        assertEquals(Arrays.asList(first, second), target.batches.get(0));
+        assertEquals(Arrays.asList(third), target.batches.get(1));
+        assertEquals(0, listener.getQueueSize());
+    }
+
+    @Test
+    public void testRepeatedEventsAreCoalesced() throws Exception {
+        listener.setCoalescingWindow(1);
+        listener.afterPropertiesSet();
+        Event changed = createEvent(Event.PROPERTY_CHANGED, "/a/p");
+        Event added = createEvent(Event.NODE_ADDED, "/b");
+        Event changedAgain = createEvent(Event.PROPERTY_CHANGED, "/a/p");
+        Event removed = createEvent(Event.PROPERTY_REMOVED, "/a/p");
+
+        listener.onEvent(createEvents(changed, added, changedAgain, removed));
+        assertEquals(1, listener.getCoalescedCount());
+
+        tasks.get(0).run();
+        // the replacing event takes the place of the newest one
+        assertEquals(Collections.singletonList(Arrays.asList(added, changedAgain, removed)), target.batches);
+    }
+
+    @Test
+    public void testCoalescingKeepsTheLastEventOfAPathLast() throws Exception {
+        listener.setCoalescingWindow(1);
+        listener.afterPropertiesSet();
+        Event removed = createEvent(Event.NODE_REMOVED, "/a");
+        Event addedAgain = createEvent(Event.NODE_ADDED, "/a");
+
+        listener.onEvent(createEvents(createEvent(Event.NODE_ADDED, "/a"), removed, addedAgain));
+        assertEquals(1, listener.getCoalescedCount());
+
+        tasks.get(0).run();
+        // /a exists in the end
+        assertEquals(Collections.singletonList(Arrays.asList(removed, addedAgain)), target.batches);
+    }
+
+    @Test
+    public void testOverflowDiscardingNewest() throws Exception {
+        JcrMetrics metrics = createNiceMock(JcrMetrics.class);
+        metrics.incrementCounter(JcrMetrics.EVENTS_DROPPED, JcrMetrics.TAG_LISTENER, "recording");
+        replay(metrics);
+        listener.setMetrics(metrics);
+        listener.setName("recording");
+        listener.setCapacity(2);
+        listener.setOverflowPolicy(AsyncEventListener.OverflowPolicy.DISCARD_NEWEST);
+        listener.afterPropertiesSet();
+        Event first = createEvent(Event.NODE_ADDED, "/a");
+        Event second = createEvent(Event.NODE_ADDED, "/b");
+
+        listener.onEvent(createEvents(first, second, createEvent(Event.NODE_ADDED, "/c")));
+        assertEquals(1, listener.getDroppedCount());
+
+        tasks.get(0).run();
+        assertEquals(Collections.singletonList(Arrays.asList(first, second)), target.batches);
+        verify(metrics);
+    }
+
+    @Test
+    public void testOverflowDiscardingOldest() throws Exception {
+        listener.setCapacity(2);
+        listener.setOverflowPolicy(AsyncEventListener.OverflowPolicy.DISCARD_OLDEST);
+        listener.afterPropertiesSet();
+        Event second = createEvent(Event.NODE_ADDED, "/b");
+        Event third = createEvent(Event.NODE_ADDED, "/c");
+
+        listener.onEvent(createEvents(createEvent(Event.NODE_ADDED, "/a"), second, third));
+        assertEquals(1, listener.getDroppedCount());
+
+        tasks.get(0).run();
+        assertEquals(Collections.singletonList(Arrays.asList(second, third)), target.batches);
+    }
+
+    @Test
+    public void testOverflowBlocksUntilDelivered() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Event> delivered = Collections.synchronizedList(new ArrayList<Event>());
+        listener = new AsyncEventListener();
+        listener.setListener(new EventListener() {
+            @Override
+            public void onEvent(EventIterator events) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                while (events.hasNext())
+                    delivered.add(events.nextEvent());
+            }
+        });
+        listener.setCapacity(1);
+        listener.afterPropertiesSet();
+
+        final Event[] events = new Event[] { createEvent(Event.NODE_ADDED, "/a"),
+                createEvent(Event.NODE_ADDED, "/b"), createEvent(Event.NODE_ADDED, "/c") };
+        Thread observation = new Thread() {
+            @Override
+            public void run() {
+                for (Event event : events)
+                    listener.onEvent(createEvents(event));
+            }
+        };
+        observation.start();
+        // the first event is being delivered, the second one is queued and the third one waits
+        observation.join(200);
+        assertTrue(observation.isAlive());
+        assertTrue(delivered.isEmpty());
+
+        release.countDown();
+        observation.join(5000);
+        listener.destroy();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (delivered.size() < 3 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(Arrays.asList(events), delivered);
+        assertEquals(0, listener.getDroppedCount());
+    }
+
+    @Test
+    public void testBatchLargerThanCapacityIsDelivered() throws Exception {
+        final List<Event> delivered = Collections.synchronizedList(new ArrayList<Event>());
+        listener = new AsyncEventListener();
+        listener.setListener(new EventListener() {
+            @Override
+            public void onEvent(EventIterator events) {
+                while (events.hasNext())
+                    delivered.add(events.nextEvent());
+            }
+        });
+        listener.setCapacity(5);
+        listener.afterPropertiesSet();
+
+        final Event[] events = new Event[20];
+        for (int i = 0; i < events.length; i++)
+            events[i] = createEvent(Event.NODE_ADDED, "/" + i);
+        Thread observation = new Thread() {
+            @Override
+            public void run() {
+                listener.onEvent(createEvents(events));
+            }
+        };
+        observation.start();
+        // the dispatcher is started by the first event, so the rest of the batch does not wait forever
+        observation.join(5000);
+        assertFalse(observation.isAlive());
+
+        listener.destroy();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (delivered.size() < events.length && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(Arrays.asList(events), delivered);
+        assertEquals(0, listener.getDroppedCount());
+    }
+
+    @Test
+    public void testListenerFailureDoesNotStopDelivery() throws Exception {
+        listener.setListener(new EventListener() {
+            @Override
+            public void onEvent(EventIterator events) {
+                target.onEvent(events);
+                throw new IllegalStateException();
+            }
+        });
+        listener.setMaxBatchSize(1);
+        listener.afterPropertiesSet();
+
+        listener.onEvent(createEvents(createEvent(Event.NODE_ADDED, "/a"), createEvent(Event.NODE_ADDED, "/b")));
+        tasks.get(0).run();
+        assertEquals(2, target.batches.size());
+    }
+
+    private static Event createEvent(int type, String path) {
+        Event event = createMock(Event.class);
+        try {
+            expect(event.getType()).andReturn(type).anyTimes();
+            expect(event.getPath()).andReturn(path).anyTimes();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        replay(event);
+        return event;
+    }
+
+    private static EventIterator createEvents(Event... events) {
+        EventIterator iterator = createMock(EventIterator.class);
+        for (Event event : events) {
+            expect(iterator.hasNext()).andReturn(true);
+            expect(iterator.nextEvent()).andReturn(event);
+        }
+        expect(iterator.hasNext()).andReturn(false);
+        replay(iterator);
+        return iterator;
+    }
+
+    private static class RecordingListener implements EventListener {
+
+        private final List<List<Event>> batches = new ArrayList<List<Event>>();
+
+        @Override
+        public void onEvent(EventIterator events) {
+            List<Event> batch = new ArrayList<Event>();
+            while (events.hasNext())
+                batch.add(events.nextEvent());
+            batches.add(batch);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class JcrRetryInterceptorTest {
+
+    private static final String OPERATION = "JcrRetryInterceptorTest.ContentService.update";
+
+    private final AtomicInteger innerInvocations = new AtomicInteger();
+
+    private JcrRetryInterceptor interceptor;
+
+    private ContentService target;
+
+    private Service proxy;
+
+    @Before
+    public void setUp() {
+        interceptor = new JcrRetryInterceptor();
+        JcrRetryPolicy policy = new JcrRetryPolicy();
+        policy.setInitialInterval(0);
+        interceptor.setRetryPolicy(policy);
+
+        target = new ContentService();
+        ProxyFactory proxyFactory = new ProxyFactory(target);
+        proxyFactory.addAdvice(interceptor);
+        // stands for the transaction interceptor: has to run once per attempt
+        proxyFactory.addAdvice(new MethodInterceptor() {
+            @Override
+            public Object invoke(MethodInvocation invocation) throws Throwable {
+                innerInvocations.incrementAndGet();
+                return invocation.proceed();
+            }
+        });
+        proxy = (Service) proxyFactory.getProxy();
+    }
+
+    @Test
+    public void testInvocationIsRetried() {
+        JcrMetrics metrics = createMock(JcrMetrics.class);
+        metrics.incrementCounter(JcrMetrics.RETRY, JcrMetrics.TAG_OPERATION, OPERATION, JcrMetrics.TAG_EXCEPTION,
+                "ConcurrencyFailureException");
+        metrics.incrementCounter(JcrMetrics.RETRY, JcrMetrics.TAG_OPERATION, OPERATION, JcrMetrics.TAG_EXCEPTION,
+                "ConcurrencyFailureException");
+        replay(metrics);
+        interceptor.setMetrics(metrics);
+
+        target.failures = 2;
+        assertEquals(3, proxy.update());
+        assertEquals(3, innerInvocations.get());
+        verify(metrics);
+    }
+
+    @Test
+    public void testAnnotationOverridesMaxAttempts() {
+        target.failures = 4;
+        assertEquals(5, proxy.update());
+
+        target.failures = 5;
+        target.attempts = 0;
+        try {
+            proxy.update();
+            fail("expected exception");
+        } catch (ConcurrencyFailureException e) {
+            // expected
+        }
+        assertEquals(5, target.attempts);
+    }
+
+    @Test
+    public void testPolicyOfInterceptorIsUsedWithoutAnnotation() {
+        target.failures = 3;
+        try {
+            proxy.delete();
+            fail("expected exception");
+        } catch (ConcurrencyFailureException e) {
+            // expected
+        }
+        assertEquals(3, target.attempts);
+    }
+
+    @Test
+    public void testNoRetryWithinTransaction() {
+        target.failures = 1;
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            proxy.update();
+            fail("expected exception");
+        } catch (ConcurrencyFailureException e) {
+            // expected
+        } finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+        }
+        assertEquals(1, target.attempts);
+    }
+
+    public interface Service {
+
+        int update();
+
+        void delete();
+    }
+
+    private static class ContentService implements Service {
+
+        private int failures;
+
+        private int attempts;
+
+        @Override
+        @JcrRetry(maxAttempts = 5)
+        public int update() {
+            return attempt();
+        }
+
+        @Override
+        public void delete() {
+            attempt();
+        }
+
+        private int attempt() {
+            attempts++;
+            if (attempts <= failures)
+                throw new ConcurrencyFailureException("conflict");
+            return attempts;
+        }
+    }
+}
@@ -15,15 +15,20 @@
  */
 package org.springframework.extensions.jcr;
 
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
@@ -35,11 +40,13 @@ import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
 import javax.jcr.observation.ObservationManager;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
 import org.springframework.extensions.jcr.support.ListSessionHolderProviderManager;
 
 public class JcrSessionFactoryTest {
@@ -83,6 +90,26 @@ public class JcrSessionFactoryTest {
         }
     }
 
+    @Test
+    public void testLoginMetrics() throws RepositoryException {
+        JcrMetrics metrics = createMock(JcrMetrics.class);
+        factory.setMetrics(metrics);
+        factory.setWorkspaceName("ws");
+
+        expect(repository.login(null, "ws")).andThrow(new RepositoryException());
+        metrics.recordTime(eq(JcrMetrics.SESSION_LOGIN), anyLong(), eq(JcrMetrics.TAG_WORKSPACE), eq("ws"),
+                eq(JcrMetrics.TAG_OPERATION), eq("login"), eq(JcrMetrics.TAG_EXCEPTION), eq("RepositoryException"));
+        replay(repository, metrics);
+
+        try {
+            factory.getSession();
+            fail("expected exception");
+        } catch (RepositoryException e) {
+            // expected
+        }
+        verify(metrics);
+    }
+
     /*
      * Test method for 'org.springframework.extensions.jcr.JcrSessionFactory.afterPropertiesSet'
      */
@@ -123,21 +150,25 @@ public class JcrSessionFactoryTest {
     }
 
     @Test
-    public void testAddListeners() throws RepositoryException {
+    public void testAddListeners() throws Exception {
         EventListenerDefinition def1 = new EventListenerDefinition();
         EventListenerDefinition def2 = new EventListenerDefinition();
 
         EventListenerDefinition listeners[] = new EventListenerDefinition[] { def1, def2 };
         factory.setEventListeners(listeners);
+        factory.setObservationCheckInterval(0);
 
+        Session observationSession = createMock(Session.class);
         Session session = createMock(Session.class);
 
         Workspace workspace = createMock(Workspace.class);
 
         ObservationManager observationManager = createMock(ObservationManager.class);
 
-        expect(repository.login(null, null)).andReturn(session);
-        expect(session.getWorkspace()).andReturn(workspace);
+        // afterPropertiesSet
+        expect(repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED)).andReturn("true");
+        expect(repository.login(null, null)).andReturn(observationSession);
+        expect(observationSession.getWorkspace()).andReturn(workspace);
 
         expect(workspace.getObservationManager()).andReturn(observationManager);
 
@@ -146,14 +177,97 @@ public class JcrSessionFactoryTest {
         observationManager.addEventListener(def2.getListener(), def2.getEventTypes(), def2.getAbsPath(), def2.isDeep(),
                 def2.getUuid(), def2.getNodeTypeName(), def2.isNoLocal());
 
-        replay(repository, session, workspace, observationManager);
+        // the sessions handed out are not touched
+        expect(repository.login(null, null)).andReturn(session).times(2);
+
+        // destroy
+        expect(observationSession.isLive()).andReturn(true);
+        observationSession.logout();
+
+        replay(repository, observationSession, session, workspace, observationManager);
 
         // coverage madness
         assertSame(listeners, factory.getEventListeners());
-        Session sess = factory.getSession();
-        assertSame(session, sess);
+        factory.afterPropertiesSet();
+        assertSame(session, factory.getSession());
+        assertSame(session, factory.getSession());
+        factory.destroy();
+
+        verify(repository, observationSession, session, workspace, observationManager);
+    }
+
+    @Test
+    public void testMultiplexedListeners() throws Exception {
+        EventListenerDefinition def1 = new EventListenerDefinition();
+        def1.setEventTypes(Event.NODE_ADDED);
+        def1.setAbsPath("/a");
+        EventListenerDefinition def2 = new EventListenerDefinition();
+        def2.setEventTypes(Event.PROPERTY_CHANGED);
+        def2.setAbsPath("/b");
+        factory.setEventListeners(new EventListenerDefinition[] { def1, def2 });
+        factory.setMultiplexEventListeners(true);
+        factory.setObservationCheckInterval(0);
+
+        Session observationSession = createMock(Session.class);
+        Workspace workspace = createMock(Workspace.class);
+        ObservationManager observationManager = createMock(ObservationManager.class);
+
+        expect(repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED)).andReturn("true");
+        expect(repository.login(null, null)).andReturn(observationSession);
+        expect(observationSession.getWorkspace()).andReturn(workspace);
+        expect(workspace.getObservationManager()).andReturn(observationManager);
+        // a single registration covering both definitions
+        observationManager.addEventListener(isA(MultiplexingEventListener.class),
+                eq(Event.NODE_ADDED | Event.PROPERTY_CHANGED), eq("/"), eq(true), (String[]) eq(null),
+                (String[]) eq(null), eq(false));
+
+        expect(observationSession.isLive()).andReturn(true);
+        observationSession.logout();
+
+        replay(repository, observationSession, workspace, observationManager);
+
+        assertTrue(factory.isMultiplexEventListeners());
+        factory.afterPropertiesSet();
+        factory.destroy();
+
+        verify(repository, observationSession, workspace, observationManager);
+    }
+
+    @Test
+    public void testObservationSessionIsReopened() throws Exception {
+        EventListenerDefinition def = new EventListenerDefinition();
+        factory.setEventListeners(new EventListenerDefinition[] { def });
+        factory.setObservationCheckInterval(0);
+
+        Session observationSession = createMock(Session.class);
+        Session newObservationSession = createMock(Session.class);
+        Workspace workspace = createNiceMock(Workspace.class);
+        ObservationManager observationManager = createMock(ObservationManager.class);
+
+        expect(repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED)).andReturn("true");
+        expect(repository.login(null, null)).andReturn(observationSession);
+        expect(observationSession.getWorkspace()).andReturn(workspace);
+        expect(workspace.getObservationManager()).andReturn(observationManager).times(2);
+        observationManager.addEventListener(def.getListener(), def.getEventTypes(), def.getAbsPath(), def.isDeep(),
+                def.getUuid(), def.getNodeTypeName(), def.isNoLocal());
+        expectLastCall().times(2);
+
+        // the session is alive, then dies
+        expect(observationSession.isLive()).andReturn(true).andReturn(false);
+        expect(repository.login(null, null)).andReturn(newObservationSession);
+        expect(newObservationSession.getWorkspace()).andReturn(workspace);
+        expect(newObservationSession.isLive()).andReturn(true).times(2);
+        newObservationSession.logout();
+
+        replay(repository, observationSession, newObservationSession, workspace, observationManager);
+
+        factory.afterPropertiesSet();
+        assertFalse(factory.checkObservationSession());
+        assertTrue(factory.checkObservationSession());
+        assertFalse(factory.checkObservationSession());
+        factory.destroy();
 
-        verify(repository, session, workspace, observationManager);
+        verify(repository, observationSession, newObservationSession, workspace, observationManager);
     }
 
     @Test
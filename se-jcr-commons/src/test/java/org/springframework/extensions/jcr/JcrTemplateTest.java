@@ -15,14 +15,18 @@
  */
 package org.springframework.extensions.jcr;
 
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -31,8 +35,12 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.InvalidItemStateException;
@@ -44,22 +52,27 @@ import javax.jcr.NoSuchWorkspaceException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.Value;
 import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 import javax.jcr.Workspace;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
 import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.nodetype.PropertyDefinition;
 import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
 import javax.jcr.version.VersionException;
 
 import org.junit.After;
@@ -71,6 +84,9 @@ import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.xml.sax.ContentHandler;
 
@@ -160,6 +176,57 @@ public class JcrTemplateTest {
 
     }
 
+    @Test
+    public void testSessionWrapperReusedForThreadBoundSession() {
+        reset(sessionFactory);
+        reset(session);
+        replay(sessionFactory, session);
+
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+        try {
+            final List<Session> exposed = new ArrayList<Session>();
+            JcrCallback<Void> callback = new JcrCallback<Void>() {
+                @Override
+                public Void doInJcr(Session sess) throws RepositoryException {
+                    assertFalse(sess.equals(session));
+                    // logout is suppressed so it will not reach our mock
+                    sess.logout();
+                    exposed.add(sess);
+                    return null;
+                }
+            };
+            jcrTemplate.execute(callback, false);
+            jcrTemplate.execute(callback, false);
+            assertSame(exposed.get(0), exposed.get(1));
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws RepositoryException {
+        JcrMetrics metrics = createMock(JcrMetrics.class);
+        Workspace workspace = createMock(Workspace.class);
+        jcrTemplate.setMetrics(metrics);
+
+        expect(session.getWorkspace()).andReturn(workspace);
+        expect(workspace.getName()).andReturn("ws");
+        session.save();
+        expectLastCall().andThrow(new InvalidItemStateException());
+        metrics.recordTime(eq(JcrMetrics.TEMPLATE_EXECUTE), anyLong(), eq(JcrMetrics.TAG_WORKSPACE), eq("ws"),
+                eq(JcrMetrics.TAG_OPERATION), eq("save"), eq(JcrMetrics.TAG_EXCEPTION),
+                eq("InvalidItemStateException"));
+        replay(sessionFactory, session, workspace, metrics);
+
+        try {
+            jcrTemplate.save();
+            fail("expected exception");
+        } catch (ConcurrencyFailureException e) {
+            // expected
+        }
+        verify(workspace, metrics);
+    }
+
     @Test
     public void testTemplateExecuteWithNotAllowCreate() {
         jcrTemplate.setAllowCreate(false);
@@ -197,6 +264,34 @@ public class JcrTemplateTest {
         TransactionSynchronizationManager.unbindResource(sessionFactory);
     }
 
+    @Test
+    public void testTemplateExecuteAfterTransactionDeadline() {
+        reset(sessionFactory);
+        reset(session);
+
+        replay(sessionFactory, session);
+
+        SessionHolder holder = new SessionHolder(session);
+        holder.setTimeoutInMillis(-1);
+        TransactionSynchronizationManager.bindResource(sessionFactory, holder);
+        try {
+            jcrTemplate.execute(new JcrCallback<Object>() {
+                @Override
+                public Object doInJcr(Session session) {
+                    fail("callback should not be executed");
+                    return null;
+                }
+            });
+            fail("expected exception");
+        } catch (TransactionTimedOutException e) {
+            // expected
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+        }
+        assertTrue(holder.isRollbackOnly());
+        verify(sessionFactory, session);
+    }
+
     @Test
     public void testTemplateExecuteWithNewSession() {
         replay(sessionFactory);
@@ -727,6 +822,144 @@ public class JcrTemplateTest {
         jcrTemplate.move(src, dest);
     }
 
+    @Test
+    public void testRemoveItem() throws RepositoryException {
+        String path = "path";
+
+        session.removeItem(path);
+        replay(session);
+        replay(sessionFactory);
+
+        jcrTemplate.removeItem(path);
+    }
+
+    @Test
+    public void testItemCache() throws RepositoryException {
+        reset(sessionFactory);
+        reset(session);
+
+        Node node = createMock(Node.class);
+        expect(node.isNode()).andReturn(true).anyTimes();
+        expect(node.getPath()).andReturn("/a/b").anyTimes();
+        expect(node.getIdentifier()).andReturn("id").anyTimes();
+        // resolved again after the move
+        expect(session.getItem("/a/b")).andReturn(node).times(2);
+        session.move("/a", "/c");
+        session.refresh(true);
+        replay(sessionFactory, session, node);
+
+        jcrTemplate.setItemCacheSize(10);
+        SessionHolder holder = new SessionHolder(session);
+        TransactionSynchronizationManager.bindResource(sessionFactory, holder);
+        TransactionSynchronizationManager.initSynchronization();
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            assertSame(node, jcrTemplate.getItem("/a/b"));
+            assertSame(node, jcrTemplate.getItem("/a/b"));
+            assertSame(node, jcrTemplate.getNodeByIdentifier("id"));
+            jcrTemplate.move("/a", "/c");
+            assertSame(node, jcrTemplate.getItem("/a/b"));
+            jcrTemplate.refresh(true);
+            assertEquals(0, ((ItemCache) holder.getAttribute(ItemCache.ATTRIBUTE_NAME)).size());
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager
+                    .getSynchronizations())
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            assertNull(holder.getAttribute(ItemCache.ATTRIBUTE_NAME));
+        } finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+            TransactionSynchronizationManager.clearSynchronization();
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+        }
+        verify(sessionFactory, session, node);
+    }
+
+    @Test
+    public void testItemCacheDropsRemovedNodes() throws RepositoryException {
+        reset(sessionFactory);
+        reset(session);
+
+        Node removed = createMock(Node.class);
+        expect(removed.getPath()).andReturn("/a");
+        expect(removed.getIdentifier()).andReturn("id");
+        // removed directly through the node
+        expect(removed.getPath()).andThrow(new InvalidItemStateException());
+        Node node = createMock(Node.class);
+        expect(node.getPath()).andReturn("/a");
+        expect(node.getIdentifier()).andReturn("id");
+        expect(session.getNodeByIdentifier("id")).andReturn(removed).andReturn(node);
+        replay(sessionFactory, session, removed, node);
+
+        jcrTemplate.setItemCacheSize(10);
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+        TransactionSynchronizationManager.initSynchronization();
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            assertSame(removed, jcrTemplate.getNodeByIdentifier("id"));
+            assertSame(node, jcrTemplate.getNodeByIdentifier("id"));
+        } finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+            TransactionSynchronizationManager.clearSynchronization();
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+        }
+        verify(sessionFactory, session, removed, node);
+    }
+
+    @Test
+    public void testExecuteJoinsSynchronization() throws RepositoryException {
+        reset(sessionFactory);
+        reset(session);
+
+        SessionHolder holder = new SessionHolder(session);
+        // opened once and left open for the synchronization to release
+        expect(sessionFactory.getSession()).andReturn(session);
+        expect(sessionFactory.getSessionHolder(session)).andReturn(holder);
+        replay(sessionFactory, session);
+
+        JcrCallback<Session> callback = new JcrCallback<Session>() {
+            @Override
+            public Session doInJcr(Session session) throws RepositoryException {
+                return session;
+            }
+        };
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            Session exposed = jcrTemplate.execute(callback);
+            assertSame(holder, TransactionSynchronizationManager.getResource(sessionFactory));
+            assertTrue(holder.isSynchronizedWithTransaction());
+            assertSame(exposed, jcrTemplate.execute(callback));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+        }
+        verify(sessionFactory, session);
+    }
+
+    @Test
+    public void testExecuteOpensSessionThroughHook() throws RepositoryException {
+        reset(sessionFactory);
+        reset(session);
+
+        final Session hookSession = createMock(Session.class);
+        hookSession.logout();
+        replay(sessionFactory, session, hookSession);
+
+        JcrTemplate template = new JcrTemplate(sessionFactory) {
+            @Override
+            protected Session getSession() {
+                return hookSession;
+            }
+        };
+        template.execute(new JcrCallback<Void>() {
+            @Override
+            public Void doInJcr(Session session) throws RepositoryException {
+                return null;
+            }
+        }, true);
+        verify(sessionFactory, session, hookSession);
+    }
+
     /*
      * Test method for 'org.springframework.extensions.jcr.JcrTemplate.save()'
      */
@@ -766,6 +999,50 @@ public class JcrTemplateTest {
         verify(node);
     }
 
+    @Test
+    public void testDumpWithDepthAndFilter() throws RepositoryException {
+        Node root = createMock(Node.class);
+        Node child = createMock(Node.class);
+        Property kept = createMock(Property.class);
+        Property skipped = createMock(Property.class);
+        PropertyDefinition definition = createMock(PropertyDefinition.class);
+        NodeIterator rootChildren = createMock(NodeIterator.class);
+        PropertyIterator rootProperties = createMock(PropertyIterator.class);
+        PropertyIterator childProperties = createMock(PropertyIterator.class);
+
+        expect(root.getPath()).andReturn("/a");
+        expect(root.getProperties()).andReturn(rootProperties);
+        expect(rootProperties.hasNext()).andReturn(true).times(2).andReturn(false);
+        expect(rootProperties.nextProperty()).andReturn(skipped).andReturn(kept);
+        expect(skipped.getName()).andReturn("skipped");
+        expect(kept.getName()).andReturn("kept");
+        expect(kept.getPath()).andReturn("/a/kept");
+        expect(kept.getDefinition()).andReturn(definition);
+        expect(definition.isMultiple()).andReturn(false);
+        expect(kept.getString()).andReturn("value");
+        expect(root.getNodes()).andReturn(rootChildren);
+        expect(rootChildren.hasNext()).andReturn(true).andReturn(false);
+        expect(rootChildren.nextNode()).andReturn(child);
+        // maxDepth=1 - the children of the child are not visited
+        expect(child.getPath()).andReturn("/a/b");
+        expect(child.getProperties()).andReturn(childProperties);
+        expect(childProperties.hasNext()).andReturn(false);
+
+        replay(session, sessionFactory, root, child, kept, skipped, definition, rootChildren, rootProperties,
+                childProperties);
+
+        StringBuilder out = new StringBuilder();
+        jcrTemplate.dump(root, out, 1, new PropertyFilter() {
+            @Override
+            public boolean accept(Property property) throws RepositoryException {
+                return !"skipped".equals(property.getName());
+            }
+        });
+
+        assertEquals("/a/a/kept=value\n/a/b", out.toString());
+        verify(root, child, kept, skipped, definition, rootChildren, rootProperties, childProperties);
+    }
+
     @Test
     public void testQueryNode() throws RepositoryException {
         try {
@@ -826,6 +1103,177 @@ public class JcrTemplateTest {
         verify(sessionFactory, session, workspace, queryManager, query, result);
     }
 
+    @Test
+    public void testPreparedQueryIsCachedOnThreadBoundSession() throws RepositoryException {
+        reset(sessionFactory);
+        reset(session);
+
+        Workspace workspace = createMock(Workspace.class);
+        QueryManager queryManager = createMock(QueryManager.class);
+        Query query = createMock(Query.class);
+        QueryResult result = createMock(QueryResult.class);
+        ValueFactory valueFactory = createMock(ValueFactory.class);
+        Value first = createMock(Value.class);
+        Value second = createMock(Value.class);
+
+        String stmt = "SELECT * FROM [nt:unstructured] WHERE title = $title";
+
+        // parsed only once
+        expect(session.getWorkspace()).andReturn(workspace);
+        expect(workspace.getQueryManager()).andReturn(queryManager);
+        expect(queryManager.createQuery(stmt, Query.JCR_SQL2)).andReturn(query);
+
+        expect(query.getBindVariableNames()).andReturn(new String[] { "title" }).times(3);
+        expect(query.getStatement()).andReturn(stmt).anyTimes();
+        expect(session.getValueFactory()).andReturn(valueFactory).times(2);
+        expect(valueFactory.createValue("a")).andReturn(first);
+        expect(valueFactory.createValue("b")).andReturn(second);
+        query.bindValue("title", first);
+        query.bindValue("title", second);
+        expect(query.execute()).andReturn(result).times(2);
+
+        replay(sessionFactory, session, workspace, queryManager, query, result, valueFactory, first, second);
+
+        PreparedQuery preparedQuery = jcrTemplate.prepareQuery(stmt, Query.JCR_SQL2);
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+        try {
+            assertSame(result, preparedQuery.execute(Collections.singletonMap("title", "a")));
+            assertSame(result, preparedQuery.execute(Collections.singletonMap("title", "b")));
+            try {
+                // the cached query still holds the previous value
+                preparedQuery.execute();
+                fail("expected exception");
+            } catch (InvalidDataAccessApiUsageException e) {
+                // expected
+            }
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+        }
+
+        verify(workspace, queryManager, query, valueFactory);
+    }
+
+    @Test
+    public void testQueryForPage() throws RepositoryException {
+        Workspace workspace = createMock(Workspace.class);
+        QueryManager queryManager = createMock(QueryManager.class);
+        Query query = createMock(Query.class);
+        QueryResult result = createMock(QueryResult.class);
+        NodeIterator nodes = createMock(NodeIterator.class);
+        Node node = createMock(Node.class);
+
+        String stmt = "//*[@bogus:title]";
+
+        expect(session.getWorkspace()).andReturn(workspace);
+        expect(workspace.getQueryManager()).andReturn(queryManager);
+        expect(queryManager.createQuery(stmt, Query.XPATH)).andReturn(query);
+        query.setOffset(20);
+        query.setLimit(10);
+        expect(query.execute()).andReturn(result);
+        expect(result.getNodes()).andReturn(nodes);
+        expect(nodes.hasNext()).andReturn(true).andReturn(false);
+        expect(nodes.nextNode()).andReturn(node);
+        expect(node.getName()).andReturn("bogus");
+
+        replay(sessionFactory, session, workspace, queryManager, query, result, nodes, node);
+
+        List<String> page = jcrTemplate.queryForPage(stmt, null, null, 20, 10, new JcrNodeMapper<String>() {
+            @Override
+            public String mapNode(Node node, int nodeNum) throws RepositoryException {
+                return nodeNum + ":" + node.getName();
+            }
+        });
+        assertEquals(Collections.singletonList("0:bogus"), page);
+
+        verify(workspace, queryManager, query, result, nodes, node);
+    }
+
+    @Test
+    public void testQueryForIteratorReleasesSessionWhenExhausted() throws RepositoryException {
+        Workspace workspace = createMock(Workspace.class);
+        QueryManager queryManager = createMock(QueryManager.class);
+        Query query = createMock(Query.class);
+        QueryResult result = createMock(QueryResult.class);
+        RowIterator rows = createMock(RowIterator.class);
+        Row row = createMock(Row.class);
+
+        String stmt = "SELECT * FROM [nt:base]";
+
+        expect(session.getWorkspace()).andReturn(workspace);
+        expect(workspace.getQueryManager()).andReturn(queryManager);
+        expect(queryManager.createQuery(stmt, Query.JCR_SQL2)).andReturn(query);
+        expect(query.execute()).andReturn(result);
+        expect(result.getRows()).andReturn(rows);
+        expect(rows.hasNext()).andReturn(true).times(2).andReturn(false);
+        expect(rows.nextRow()).andReturn(row);
+        expect(row.getPath()).andReturn("/bogus");
+
+        replay(sessionFactory, session, workspace, queryManager, query, result, rows, row);
+
+        CloseableIterator<String> iterator = jcrTemplate.queryForIterator(stmt, Query.JCR_SQL2, null,
+                new JcrRowMapper<String>() {
+                    @Override
+                    public String mapRow(Row row, int rowNum) throws RepositoryException {
+                        return row.getPath();
+                    }
+                });
+        assertTrue(iterator.hasNext());
+        assertEquals("/bogus", iterator.next());
+        // exhausting the iterator logs out the session (verified in tearDown)
+        assertFalse(iterator.hasNext());
+        iterator.close();
+
+        verify(workspace, queryManager, query, result, rows, row);
+    }
+
+    @Test
+    public void testQueryListInParallel() throws Exception {
+        Workspace workspace = createMock(Workspace.class);
+        QueryManager queryManager = createMock(QueryManager.class);
+        Query query1 = createMock(Query.class);
+        Query query2 = createMock(Query.class);
+        QueryResult result = createMock(QueryResult.class);
+        NodeIterator nodes = createMock(NodeIterator.class);
+        Node node = createMock(Node.class);
+
+        String stmt1 = "//*[@bogus:title]";
+        String stmt2 = "//*";
+
+        // one session per statement
+        session.logout();
+        expect(session.getWorkspace()).andReturn(workspace).times(2);
+        expect(workspace.getQueryManager()).andReturn(queryManager).times(2);
+        expect(queryManager.createQuery(stmt1, Query.XPATH)).andReturn(query1);
+        expect(queryManager.createQuery(stmt2, Query.XPATH)).andReturn(query2);
+        expect(query1.execute()).andReturn(result);
+        expect(query2.execute()).andThrow(new RepositoryException());
+        expect(result.getNodes()).andReturn(nodes);
+        expect(nodes.hasNext()).andReturn(true).andReturn(false);
+        expect(nodes.nextNode()).andReturn(node);
+        expect(node.getPath()).andReturn("/bogus");
+
+        replay(sessionFactory, session, workspace, queryManager, query1, query2, result, nodes, node);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        jcrTemplate.setQueryExecutor(executor);
+        try {
+            Map<String, List<String>> results = jcrTemplate.query(Arrays.asList(stmt1, stmt2), null, true,
+                    new JcrNodeMapper<String>() {
+                        @Override
+                        public String mapNode(Node node, int nodeNum) throws RepositoryException {
+                            return node.getPath();
+                        }
+                    });
+            assertEquals(Arrays.asList(stmt1, stmt2), new ArrayList<String>(results.keySet()));
+            assertEquals(Collections.singletonList("/bogus"), results.get(stmt1));
+            assertNull(results.get(stmt2));
+        } finally {
+            executor.shutdown();
+        }
+
+        verify(workspace, queryManager, query1, query2, result, nodes, node);
+    }
+
     @Test
     public void testExecuteQuerySimple() throws RepositoryException {
         try {
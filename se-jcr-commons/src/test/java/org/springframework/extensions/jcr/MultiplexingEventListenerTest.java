@@ -0,0 +1,244 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class MultiplexingEventListenerTest {
+
+    private final Map<String, String> identifiers = new HashMap<String, String>();
+
+    private final Map<String, List<String>> nodeTypes = new HashMap<String, List<String>>();
+
+    private final List<EventListenerDefinition> definitions = new ArrayList<EventListenerDefinition>();
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        identifiers.clear();
+        nodeTypes.clear();
+        definitions.clear();
+
+        // node types without supertypes
+        NodeType nodeType = createNiceMock(NodeType.class);
+        expect(nodeType.getSupertypes()).andReturn(new NodeType[0]).anyTimes();
+        NodeTypeManager nodeTypeManager = createMock(NodeTypeManager.class);
+        expect(nodeTypeManager.getNodeType((String) anyObject())).andReturn(nodeType).anyTimes();
+        Workspace workspace = createMock(Workspace.class);
+        expect(workspace.getNodeTypeManager()).andReturn(nodeTypeManager).anyTimes();
+        session = createMock(Session.class);
+        expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+        replay(nodeType, nodeTypeManager, workspace, session);
+    }
+
+    @Test
+    public void testPathRouting() throws Exception {
+        RecordingListener deep = addDefinition(Event.NODE_ADDED, "/content/", true);
+        RecordingListener shallow = addDefinition(Event.NODE_ADDED, "/content", false);
+        RecordingListener other = addDefinition(Event.NODE_ADDED, "/other", true);
+        RecordingListener root = addDefinition(Event.NODE_ADDED, "/", true);
+
+        MultiplexingEventListener listener = createListener();
+        assertEquals(Event.NODE_ADDED, listener.getEventTypes());
+
+        Event child = createEvent(Event.NODE_ADDED, "/content/a");
+        Event grandChild = createEvent(Event.NODE_ADDED, "/content/a/b");
+        Event sibling = createEvent(Event.NODE_ADDED, "/contents/a");
+        listener.onEvent(createEvents(child, grandChild, sibling));
+
+        assertEquals(Collections.singletonList(Arrays.asList(child, grandChild)), deep.batches);
+        assertEquals(Collections.singletonList(Arrays.asList(child)), shallow.batches);
+        assertTrue(other.batches.isEmpty());
+        assertEquals(Collections.singletonList(Arrays.asList(child, grandChild, sibling)), root.batches);
+    }
+
+    @Test
+    public void testEventTypes() throws Exception {
+        RecordingListener added = addDefinition(Event.NODE_ADDED, "/", true);
+        RecordingListener changed = addDefinition(Event.PROPERTY_CHANGED | Event.PERSIST, "/", true);
+
+        MultiplexingEventListener listener = createListener();
+        assertEquals(Event.NODE_ADDED | Event.PROPERTY_CHANGED | Event.PERSIST, listener.getEventTypes());
+
+        Event node = createEvent(Event.NODE_ADDED, "/a");
+        Event property = createEvent(Event.PROPERTY_CHANGED, "/a/p");
+        Event persist = createEvent(Event.PERSIST, null);
+        listener.onEvent(createEvents(node, property, persist));
+
+        assertEquals(Collections.singletonList(Arrays.asList(node)), added.batches);
+        assertEquals(Collections.singletonList(Arrays.asList(property, persist)), changed.batches);
+    }
+
+    @Test
+    public void testNodeTypeIndex() throws Exception {
+        RecordingListener files = addDefinition(Event.NODE_ADDED, "/", true);
+        definitions.get(0).setNodeTypeName(new String[] { "nt:folder", "nt:file" });
+        RecordingListener resources = addDefinition(Event.PROPERTY_CHANGED, "/", true);
+        definitions.get(1).setNodeTypeName(new String[] { "nt:resource" });
+        RecordingListener scoped = addDefinition(Event.NODE_ADDED, "/docs", true);
+        definitions.get(2).setNodeTypeName(new String[] { "nt:folder" });
+
+        nodeTypes.put("/docs", Arrays.asList("nt:folder", "nt:hierarchyNode"));
+        nodeTypes.put("/docs/file/jcr:content", Arrays.asList("nt:resource"));
+        nodeTypes.put("/other", Arrays.asList("nt:unstructured"));
+
+        Event folderChild = createEvent(Event.NODE_ADDED, "/docs/file");
+        Event data = createEvent(Event.PROPERTY_CHANGED, "/docs/file/jcr:content/jcr:data");
+        Event unstructuredChild = createEvent(Event.NODE_ADDED, "/other/x");
+        createListener().onEvent(createEvents(folderChild, data, unstructuredChild));
+
+        assertEquals(Collections.singletonList(Arrays.asList(folderChild)), files.batches);
+        assertEquals(Collections.singletonList(Arrays.asList(data)), resources.batches);
+        assertEquals(Collections.singletonList(Arrays.asList(folderChild)), scoped.batches);
+    }
+
+    @Test
+    public void testUuid() throws Exception {
+        RecordingListener listener = addDefinition(Event.NODE_ADDED, "/", true);
+        definitions.get(0).setUuid(new String[] { "1234" });
+        identifiers.put("/a", "1234");
+        identifiers.put("/b", "5678");
+
+        Event matching = createEvent(Event.NODE_ADDED, "/a/x");
+        // the identifier of the parent cannot be determined
+        Event unknown = createEvent(Event.NODE_ADDED, "/c/x");
+        createListener().onEvent(createEvents(matching, createEvent(Event.NODE_ADDED, "/b/x"), unknown));
+
+        assertEquals(Collections.singletonList(Arrays.asList(matching)), listener.batches);
+    }
+
+    @Test
+    public void testFailingListener() throws Exception {
+        RecordingListener first = addDefinition(Event.NODE_ADDED, "/", true);
+        EventListenerDefinition failing = new EventListenerDefinition();
+        failing.setListener(new EventListener() {
+            @Override
+            public void onEvent(EventIterator events) {
+                throw new IllegalStateException("expected");
+            }
+        });
+        definitions.add(failing);
+        RecordingListener last = addDefinition(Event.NODE_ADDED, "/", true);
+
+        Event event = createEvent(Event.NODE_ADDED, "/a");
+        createListener().onEvent(createEvents(event));
+
+        assertEquals(1, first.batches.size());
+        assertEquals(1, last.batches.size());
+    }
+
+    private RecordingListener addDefinition(int eventTypes, String absPath, boolean deep) {
+        RecordingListener listener = new RecordingListener();
+        EventListenerDefinition definition = new EventListenerDefinition();
+        definition.setListener(listener);
+        definition.setEventTypes(eventTypes);
+        definition.setAbsPath(absPath);
+        definition.setDeep(deep);
+        definitions.add(definition);
+        return listener;
+    }
+
+    /**
+     * Creates a listener which takes the identifiers and node types from the test maps.
+     */
+    private MultiplexingEventListener createListener() {
+        return new MultiplexingEventListener(session, definitions.toArray(new EventListenerDefinition[definitions
+                .size()])) {
+
+            @Override
+            protected String getParentIdentifier(Event event, String parentPath) throws RepositoryException {
+                String identifier = identifiers.get(parentPath);
+                if (identifier == null)
+                    throw new RepositoryException("no node at " + parentPath);
+                return identifier;
+            }
+
+            @Override
+            protected Collection<String> getNodeTypeNames(Event event, String parentPath) {
+                List<String> names = nodeTypes.get(parentPath);
+                return (names == null ? Collections.<String> emptyList() : names);
+            }
+        };
+    }
+
+    private static Event createEvent(int type, String path) {
+        Event event = createMock(Event.class);
+        try {
+            expect(event.getType()).andReturn(type).anyTimes();
+            expect(event.getPath()).andReturn(path).anyTimes();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        replay(event);
+        return event;
+    }
+
+    private static EventIterator createEvents(Event... events) {
+        EventIterator iterator = createMock(EventIterator.class);
+        for (Event event : events) {
+            expect(iterator.hasNext()).andReturn(true);
+            expect(iterator.nextEvent()).andReturn(event);
+        }
+        expect(iterator.hasNext()).andReturn(false);
+        replay(iterator);
+        return iterator;
+    }
+
+    private static class RecordingListener implements EventListener {
+
+        private final List<List<Event>> batches = new ArrayList<List<Event>>();
+
+        @Override
+        public void onEvent(EventIterator events) {
+            List<Event> batch = new ArrayList<Event>();
+            while (events.hasNext())
+                batch.add(events.nextEvent());
+            batches.add(batch);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.lock.LockException;
+import javax.jcr.lock.LockManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PooledJcrSessionFactoryTest {
+
+    private SessionFactory targetFactory;
+
+    private Session session;
+
+    private LockManager lockManager;
+
+    private PooledJcrSessionFactory pool;
+
+    @Before
+    public void setUp() throws Exception {
+        targetFactory = createMock(SessionFactory.class);
+        session = createMock(Session.class);
+        lockManager = createMock(LockManager.class);
+        Workspace workspace = createMock(Workspace.class);
+        expect(workspace.getLockManager()).andReturn(lockManager).anyTimes();
+        replay(workspace);
+        expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+        pool = new PooledJcrSessionFactory(targetFactory);
+        pool.setMaxActive(1);
+        pool.setMaxWait(10);
+    }
+
+    @Test
+    public void testSessionIsReused() throws Exception {
+        expect(targetFactory.getSession()).andReturn(session);
+        // first logout
+        expect(session.isLive()).andReturn(true);
+        session.refresh(false);
+        // second borrow
+        expect(session.isLive()).andReturn(true);
+        expect(session.getUserID()).andReturn("bogus");
+        // second logout
+        expect(session.isLive()).andReturn(true);
+        session.refresh(false);
+        expect(lockManager.getLockTokens()).andReturn(new String[0]).anyTimes();
+        replay(targetFactory, session, lockManager);
+
+        pool.afterPropertiesSet();
+
+        Session first = pool.getSession();
+        assertEquals(1, pool.getNumActive());
+        first.logout();
+        // logout is idempotent on the proxy
+        first.logout();
+        assertEquals(0, pool.getNumActive());
+        assertEquals(1, pool.getNumIdle());
+        assertFalse(first.isLive());
+
+        Session second = pool.getSession();
+        assertNotSame(first, second);
+        assertEquals("bogus", second.getUserID());
+        second.logout();
+
+        verify(targetFactory, session);
+    }
+
+    @Test
+    public void testDeadSessionIsDiscarded() throws Exception {
+        Session other = createMock(Session.class);
+        expect(targetFactory.getSession()).andReturn(session);
+        expect(session.isLive()).andReturn(true);
+        session.refresh(false);
+        // the session dies while idle
+        expect(session.isLive()).andReturn(false);
+        expect(targetFactory.getSession()).andReturn(other);
+        expect(lockManager.getLockTokens()).andReturn(new String[0]);
+        replay(targetFactory, session, other, lockManager);
+
+        pool.afterPropertiesSet();
+
+        pool.getSession().logout();
+        pool.getSession();
+
+        verify(targetFactory, session, other);
+    }
+
+    @Test
+    public void testMaxActive() throws Exception {
+        expect(targetFactory.getSession()).andReturn(session);
+        replay(targetFactory, session);
+
+        pool.afterPropertiesSet();
+        pool.getSession();
+        try {
+            pool.getSession();
+            fail("expected exception");
+        } catch (RepositoryException e) {
+            // expected
+        }
+        verify(targetFactory, session);
+    }
+
+    @Test
+    public void testDestroy() throws Exception {
+        pool.setMinIdle(1);
+        expect(targetFactory.getSession()).andReturn(session);
+        expect(session.isLive()).andReturn(true);
+        session.logout();
+        replay(targetFactory, session);
+
+        pool.afterPropertiesSet();
+        assertEquals(1, pool.getNumIdle());
+        pool.destroy();
+        assertEquals(0, pool.getNumIdle());
+
+        verify(targetFactory, session);
+    }
+
+    @Test
+    public void testLockTokensAreRemoved() throws Exception {
+        expect(targetFactory.getSession()).andReturn(session);
+        expect(session.isLive()).andReturn(true);
+        session.refresh(false);
+        expect(lockManager.getLockTokens()).andReturn(new String[] { "token" });
+        lockManager.removeLockToken("token");
+        replay(targetFactory, session, lockManager);
+
+        pool.afterPropertiesSet();
+        pool.getSession().logout();
+        assertEquals(1, pool.getNumIdle());
+
+        verify(targetFactory, session, lockManager);
+    }
+
+    @Test
+    public void testSessionWithUnremovableLockIsDiscarded() throws Exception {
+        expect(targetFactory.getSession()).andReturn(session);
+        expect(session.isLive()).andReturn(true);
+        session.refresh(false);
+        expect(lockManager.getLockTokens()).andReturn(new String[] { "token" });
+        lockManager.removeLockToken("token");
+        expectLastCall().andThrow(new LockException());
+        // destroy
+        expect(session.isLive()).andReturn(true);
+        session.logout();
+        replay(targetFactory, session, lockManager);
+
+        pool.afterPropertiesSet();
+        pool.getSession().logout();
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+
+        verify(targetFactory, session, lockManager);
+    }
+
+    @Test
+    public void testSessionReturnedAfterDestroyIsClosed() throws Exception {
+        expect(targetFactory.getSession()).andReturn(session);
+        expect(session.isLive()).andReturn(true);
+        session.logout();
+        replay(targetFactory, session, lockManager);
+
+        pool.afterPropertiesSet();
+        Session pooled = pool.getSession();
+        pool.destroy();
+        pooled.logout();
+        assertEquals(0, pool.getNumIdle());
+
+        verify(targetFactory, session, lockManager);
+    }
+
+    @Test
+    public void testMaxIdle() throws Exception {
+        Session other = createMock(Session.class);
+        pool.setMaxActive(2);
+        pool.setMaxIdle(1);
+        expect(targetFactory.getSession()).andReturn(session).andReturn(other);
+        expect(session.isLive()).andReturn(true);
+        session.refresh(false);
+        expect(lockManager.getLockTokens()).andReturn(new String[0]).times(2);
+        expect(other.isLive()).andReturn(true).times(2);
+        other.refresh(false);
+        Workspace workspace = createMock(Workspace.class);
+        expect(workspace.getLockManager()).andReturn(lockManager);
+        expect(other.getWorkspace()).andReturn(workspace);
+        // the pool is full
+        other.logout();
+        replay(targetFactory, session, other, workspace, lockManager);
+
+        pool.afterPropertiesSet();
+        Session first = pool.getSession();
+        Session second = pool.getSession();
+        first.logout();
+        second.logout();
+        assertEquals(1, pool.getNumIdle());
+
+        verify(targetFactory, session, other, lockManager);
+    }
+
+    @Test
+    public void testInvalidatedSessionIsDiscarded() throws Exception {
+        expect(targetFactory.getSession()).andReturn(session);
+        expect(session.isLive()).andReturn(true);
+        session.logout();
+        replay(targetFactory, session, lockManager);
+
+        pool.afterPropertiesSet();
+        Session pooled = pool.getSession();
+        pool.invalidateSession(pooled);
+        pooled.logout();
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+
+        try {
+            pool.invalidateSession(session);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        verify(targetFactory, session, lockManager);
+    }
+
+    @Test
+    public void testSessionInvalidatedWithoutPool() throws Exception {
+        expect(targetFactory.getSession()).andReturn(session);
+        expect(session.isLive()).andReturn(true);
+        session.logout();
+        replay(targetFactory, session, lockManager);
+
+        pool.afterPropertiesSet();
+        Session pooled = pool.getSession();
+        assertTrue(PooledJcrSessionFactory.invalidatePooledSession(pooled));
+        pooled.logout();
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+
+        // not obtained from a pool
+        assertFalse(PooledJcrSessionFactory.invalidatePooledSession(session));
+        verify(targetFactory, session, lockManager);
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeIterator;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class QueryResultCacheTest {
+
+    private QueryResultCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new QueryResultCache();
+    }
+
+    @Test
+    public void testXPathScope() throws Exception {
+        assertEquals("/", cache.createScope("//*", Query.XPATH, null).path);
+        assertEquals("/content/site", cache.createScope("/jcr:root/content/site//*", Query.XPATH, null).path);
+        assertEquals("/a/b", cache.createScope("/jcr:root/a/b order by @title", Query.XPATH, null).path);
+        assertEquals("/a", cache.createScope("/jcr:root/a/*[@title = 'x']", Query.XPATH, null).path);
+        assertEquals("/", cache.createScope("/jcr:root/a[b/@c]/d", Query.XPATH, null).path);
+        // relative constraints might depend on other node types
+        assertNull(cache.createScope("//element(*, nt:file)[jcr:content/@jcr:mimeType]", Query.XPATH, null).nodeTypes);
+        assertNull(cache.createScope("//element(*, nt:file)[jcr:contains(jcr:content, 'x')]", Query.XPATH, null)
+                .nodeTypes);
+        assertNull(cache.createScope("//element(*, nt:folder)[child]", Query.XPATH, null).nodeTypes);
+        assertNull(cache.createScope("//element(*, nt:folder)[@a = 'x'] order by child/@b", Query.XPATH, null)
+                .nodeTypes);
+        // a union covers several branches and node types
+        assertEquals("/", cache.createScope("/jcr:root/a//* | /jcr:root/b//*", Query.XPATH, null).path);
+        QueryResultCache.Scope union = cache.createScope("/jcr:root/a//element(*, nt:file) | //element(*, nt:folder)",
+                Query.XPATH, null);
+        assertEquals("/", union.path);
+        assertNull(union.nodeTypes);
+        assertEquals("/a", cache.createScope("/jcr:root/a//*[@title = 'x | y']", Query.XPATH, null).path);
+        // encoded names are compared against decoded event paths
+        assertEquals("/my docs/2010", cache.createScope("/jcr:root/my_x0020_docs/_x0032_010//*", Query.XPATH, null)
+                .path);
+
+        Session session = createMock(Session.class);
+        Workspace workspace = createMock(Workspace.class);
+        NodeTypeManager nodeTypeManager = createMock(NodeTypeManager.class);
+        NodeType nodeType = createMock(NodeType.class);
+        NodeTypeIterator subtypes = createMock(NodeTypeIterator.class);
+
+        expect(session.getWorkspace()).andReturn(workspace);
+        expect(workspace.getNodeTypeManager()).andReturn(nodeTypeManager);
+        expect(nodeTypeManager.getNodeType("nt:file")).andReturn(nodeType);
+        expect(nodeType.getName()).andReturn("nt:file");
+        expect(nodeType.getSubtypes()).andReturn(subtypes);
+        expect(subtypes.hasNext()).andReturn(false);
+        expect(session.getNamespaceURI("nt")).andReturn("http://www.jcp.org/jcr/nt/1.0");
+        replay(session, workspace, nodeTypeManager, nodeType, subtypes);
+
+        QueryResultCache.Scope scope = cache.createScope("/jcr:root/docs//element(*, nt:file)[@title = 'x']",
+                Query.XPATH, session);
+        assertEquals("/docs", scope.path);
+        assertEquals(Collections.singleton("{http://www.jcp.org/jcr/nt/1.0}file"), scope.nodeTypes);
+
+        verify(session, workspace, nodeTypeManager, nodeType, subtypes);
+    }
+
+    @Test
+    public void testSql2Scope() throws Exception {
+        QueryResultCache.Scope scope = cache.createScope(
+                "SELECT * FROM [nt:base] AS n WHERE ISDESCENDANTNODE(n, '/content/') AND n.x = 1", Query.JCR_SQL2,
+                null);
+        assertEquals("/content", scope.path);
+        assertNull(scope.nodeTypes);
+        assertEquals("/a", cache.createScope("SELECT * FROM [nt:base] WHERE ISCHILDNODE(\"/a\")", Query.JCR_SQL2,
+                null).path);
+        assertEquals("/", cache.createScope("SELECT * FROM [nt:base] AS n WHERE ISDESCENDANTNODE(n, '/a') "
+                + "OR ISDESCENDANTNODE(n, '/b')", Query.JCR_SQL2, null).path);
+        assertEquals("/", cache.createScope("SELECT * FROM [nt:base] AS n WHERE ISDESCENDANTNODE(n, [/a])",
+                Query.JCR_SQL2, null).path);
+        assertEquals("/", cache.createScope("SELECT * FROM [nt:base] AS n WHERE ISDESCENDANTNODE(n, '/a') "
+                + "UNION SELECT * FROM [nt:base] AS n WHERE ISDESCENDANTNODE(n, '/b')", Query.JCR_SQL2, null).path);
+        assertNull(cache.createScope("SELECT * FROM [nt:file] AS n WHERE CONTAINS(n.*, 'x')", Query.JCR_SQL2, null)
+                .nodeTypes);
+    }
+
+    @Test
+    public void testEventInvalidatesQueriesOnTheSameBranch() throws Exception {
+        Object keyA = cache.createKey("/jcr:root/a//*", Query.XPATH, null);
+        Object keyB = cache.createKey("/jcr:root/b//*", Query.XPATH, null);
+        cache.put(keyA, "/jcr:root/a//*", Query.XPATH, createSnapshot(), cache.getGeneration(), null);
+        cache.put(keyB, "/jcr:root/b//*", Query.XPATH, createSnapshot(), cache.getGeneration(), null);
+        assertEquals(2, cache.getSize());
+
+        cache.onEvent(createEvents(Event.NODE_ADDED, "/a/x"));
+
+        assertNull(cache.get(keyA));
+        assertNotNull(cache.get(keyB));
+
+        // removing an ancestor affects the query as well
+        cache.onEvent(createEvents(Event.NODE_REMOVED, "/"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testResultInvalidatedWhileExecutingIsNotCached() throws Exception {
+        long generation = cache.getGeneration();
+        cache.onEvent(createEvents(Event.PROPERTY_CHANGED, "/a/x/title"));
+
+        Object keyA = cache.createKey("/jcr:root/a//*", Query.XPATH, null);
+        Object keyB = cache.createKey("/jcr:root/b//*", Query.XPATH, null);
+        cache.put(keyA, "/jcr:root/a//*", Query.XPATH, createSnapshot(), generation, null);
+        cache.put(keyB, "/jcr:root/b//*", Query.XPATH, createSnapshot(), generation, null);
+
+        assertNull(cache.get(keyA));
+        assertNotNull(cache.get(keyB));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // the invalidations before a clear are unknown
+        generation = cache.getGeneration();
+        cache.clear();
+        cache.put(keyB, "/jcr:root/b//*", Query.XPATH, createSnapshot(), generation, null);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testKeyIncludesBindVariables() {
+        Object key = cache.createKey("SELECT * FROM [nt:base]", Query.JCR_SQL2, Collections.singletonMap("x", 1));
+        assertEquals(key, cache.createKey("SELECT * FROM [nt:base]", Query.JCR_SQL2, Collections.singletonMap("x", 1)));
+        assertFalse(key.equals(cache.createKey("SELECT * FROM [nt:base]", Query.JCR_SQL2,
+                Collections.singletonMap("x", 2))));
+    }
+
+    @Test
+    public void testOversizedResultIsReadOnce() throws Exception {
+        QueryResult result = createMock(QueryResult.class);
+        RowIterator rows = createMock(RowIterator.class);
+        Row row = createMock(Row.class);
+        Node node = createMock(Node.class);
+        // neither getRows() nor getNodes() is called on the result again
+        expect(rows.getSize()).andReturn(5L);
+        expect(result.getSelectorNames()).andReturn(new String[] { "s" });
+        expect(rows.hasNext()).andReturn(true).andReturn(false);
+        expect(rows.nextRow()).andReturn(row);
+        expect(row.getNode()).andReturn(node);
+        replay(result, rows, row, node);
+
+        assertNull(QueryResultSnapshot.create(result, rows, 2));
+        NodeIterator nodes = QueryResultSnapshot.wrap(result, rows).getNodes();
+        assertTrue(nodes.hasNext());
+        assertSame(node, nodes.nextNode());
+        assertFalse(nodes.hasNext());
+
+        verify(result, rows, row);
+    }
+
+    private static QueryResultSnapshot createSnapshot() throws Exception {
+        QueryResult result = createMock(QueryResult.class);
+        RowIterator rows = createMock(RowIterator.class);
+        expect(rows.getSize()).andReturn(0L);
+        expect(result.getColumnNames()).andReturn(new String[0]);
+        expect(result.getSelectorNames()).andReturn(new String[0]);
+        expect(rows.hasNext()).andReturn(false);
+        replay(result, rows);
+        return QueryResultSnapshot.create(result, rows, 10);
+    }
+
+    private static EventIterator createEvents(int type, String path) throws Exception {
+        EventIterator events = createMock(EventIterator.class);
+        Event event = createMock(Event.class);
+        expect(events.hasNext()).andReturn(true).andReturn(false);
+        expect(events.nextEvent()).andReturn(event);
+        expect(event.getType()).andReturn(type).anyTimes();
+        expect(event.getPath()).andReturn(path);
+        replay(events, event);
+        return events;
+    }
+}
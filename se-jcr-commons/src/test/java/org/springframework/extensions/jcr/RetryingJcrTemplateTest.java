@@ -0,0 +1,195 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.lock.LockException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class RetryingJcrTemplateTest {
+
+    private SessionFactory sessionFactory;
+
+    private Session session;
+
+    private RetryingJcrTemplate template;
+
+    @Before
+    public void setUp() {
+        sessionFactory = createMock(SessionFactory.class);
+        session = createMock(Session.class);
+        template = new RetryingJcrTemplate();
+        template.setSessionFactory(sessionFactory);
+        template.setAllowCreate(true);
+
+        JcrRetryPolicy policy = new JcrRetryPolicy();
+        policy.setInitialInterval(0);
+        template.setRetryPolicy(policy);
+    }
+
+    @Test
+    public void testConcurrencyFailureIsRetried() throws Exception {
+        JcrMetrics metrics = createNiceMock(JcrMetrics.class);
+        Workspace workspace = createNiceMock(Workspace.class);
+        template.setMetrics(metrics);
+
+        expect(sessionFactory.getSession()).andReturn(session).times(2);
+        expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+        session.save();
+        expectLastCall().andThrow(new InvalidItemStateException());
+        session.save();
+        session.logout();
+        expectLastCall().times(2);
+        metrics.incrementCounter(JcrMetrics.RETRY, JcrMetrics.TAG_OPERATION, "save", JcrMetrics.TAG_EXCEPTION,
+                "InvalidItemStateException");
+        replay(sessionFactory, session, workspace, metrics);
+
+        template.save();
+
+        verify(sessionFactory, session, metrics);
+    }
+
+    @Test
+    public void testRetriesAreBounded() throws Exception {
+        JcrMetrics metrics = createNiceMock(JcrMetrics.class);
+        Workspace workspace = createNiceMock(Workspace.class);
+        template.setMetrics(metrics);
+        template.getRetryPolicy().setMaxAttempts(2);
+
+        expect(sessionFactory.getSession()).andReturn(session).times(2);
+        expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+        session.save();
+        expectLastCall().andThrow(new LockException()).times(2);
+        session.logout();
+        expectLastCall().times(2);
+        metrics.incrementCounter(JcrMetrics.RETRY, JcrMetrics.TAG_OPERATION, "save", JcrMetrics.TAG_EXCEPTION,
+                "LockException");
+        metrics.incrementCounter(JcrMetrics.RETRY_EXHAUSTED, JcrMetrics.TAG_OPERATION, "save",
+                JcrMetrics.TAG_EXCEPTION, "LockException");
+        replay(sessionFactory, session, workspace, metrics);
+
+        try {
+            template.save();
+            fail("expected exception");
+        } catch (ConcurrencyFailureException e) {
+            // expected
+        }
+
+        verify(sessionFactory, session, metrics);
+    }
+
+    @Test
+    public void testOtherFailuresAreNotRetried() throws Exception {
+        expect(sessionFactory.getSession()).andReturn(session);
+        session.save();
+        expectLastCall().andThrow(new AccessDeniedException());
+        session.logout();
+        replay(sessionFactory, session);
+
+        try {
+            template.save();
+            fail("expected exception");
+        } catch (DataRetrievalFailureException e) {
+            // expected
+        }
+
+        verify(sessionFactory, session);
+    }
+
+    @Test
+    public void testThreadBoundSessionIsNotRetried() throws Exception {
+        session.save();
+        expectLastCall().andThrow(new InvalidItemStateException());
+        replay(sessionFactory, session);
+
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+        try {
+            template.save();
+            fail("expected exception");
+        } catch (ConcurrencyFailureException e) {
+            // expected
+        } finally {
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+        }
+
+        verify(sessionFactory, session);
+    }
+
+    @Test
+    public void testPolicyClassification() {
+        JcrRetryPolicy policy = new JcrRetryPolicy();
+        assertTrue(policy.isRetryable(new InvalidItemStateException()));
+        assertTrue(policy.isRetryable(new ConcurrencyFailureException("locked", new LockException())));
+        assertFalse(policy.isRetryable(new DataRetrievalFailureException("denied", new AccessDeniedException())));
+        assertTrue(policy.canRetry(new LockException(), 2));
+        assertFalse(policy.canRetry(new LockException(), 3));
+
+        // the JCR exception decides over the exception it has been translated to
+        Map<Class<? extends Throwable>, Boolean> exceptions = new HashMap<Class<? extends Throwable>, Boolean>();
+        exceptions.put(ConcurrencyFailureException.class, Boolean.TRUE);
+        exceptions.put(LockException.class, Boolean.FALSE);
+        policy.setRetryableExceptions(exceptions);
+        assertFalse(policy.isRetryable(new ConcurrencyFailureException("locked", new LockException())));
+        assertTrue(policy.isRetryable(new ConcurrencyFailureException("stale", new InvalidItemStateException())));
+    }
+
+    @Test
+    public void testPolicyBackOff() {
+        JcrRetryPolicy policy = new JcrRetryPolicy();
+        policy.setInitialInterval(10);
+        policy.setMultiplier(2);
+        policy.setMaxInterval(30);
+        policy.setJitter(0);
+        assertEquals(10, policy.getBackOff(1));
+        assertEquals(20, policy.getBackOff(2));
+        assertEquals(30, policy.getBackOff(3));
+        assertEquals(30, policy.getBackOff(10));
+
+        policy.setJitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long backOff = policy.getBackOff(1);
+            assertTrue(backOff >= 5 && backOff <= 10);
+        }
+    }
+}
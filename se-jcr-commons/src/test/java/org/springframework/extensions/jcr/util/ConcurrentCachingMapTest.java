@@ -0,0 +1,184 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class ConcurrentCachingMapTest {
+
+    private static class CountingMap extends ConcurrentCachingMap<String, Object> {
+
+        final AtomicInteger creations = new AtomicInteger();
+
+        CountingMap(boolean weak, int maxSize, long timeToLive) {
+            super(weak, maxSize, timeToLive, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        protected Object create(String key) {
+            creations.incrementAndGet();
+            return new Object();
+        }
+    }
+
+    @Test
+    public void testValueIsCreatedOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final ConcurrentCachingMap<String, Object> map = new ConcurrentCachingMap<String, Object>(true) {
+            @Override
+            protected Object create(String key) {
+                try {
+                    // give the other threads the chance to ask for the same key
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return new Object();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Callable<Object> lookup = new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    start.await();
+                    return map.get("key");
+                }
+            };
+            Future<?>[] results = new Future<?>[8];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executor.submit(lookup);
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                assertSame(results[0].get(), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, map.getMissCount());
+        assertEquals(7, map.getHitCount());
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testFailedCreationIsNotCached() {
+        final AtomicInteger attempts = new AtomicInteger();
+        ConcurrentCachingMap<String, String> map = new ConcurrentCachingMap<String, String>() {
+            @Override
+            protected String create(String key) {
+                if (attempts.incrementAndGet() == 1)
+                    throw new IllegalStateException();
+                return key;
+            }
+        };
+        try {
+            map.get("key");
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertFalse(map.containsKey("key"));
+        assertEquals("key", map.get("key"));
+        assertTrue(map.containsKey("key"));
+    }
+
+    @Test
+    public void testMaxSize() {
+        CountingMap map = new CountingMap(false, 2, 0);
+        map.get("a");
+        map.get("b");
+        map.get("c");
+        assertEquals(2, map.size());
+        // the eldest entry goes first
+        assertFalse(map.containsKey("a"));
+        assertEquals(1, map.getEvictionCount());
+        assertEquals(2, map.keySet().size());
+        assertTrue(map.keySet().contains("c"));
+    }
+
+    @Test
+    public void testMaxSizeCountsMappedEntriesOnly() {
+        CountingMap map = new CountingMap(false, 100, 0);
+        Object a = new Object();
+        map.put("a", a);
+        // replaced and removed entries do not take up room
+        for (int i = 0; i < 99; i++) {
+            map.put("b", new Object());
+        }
+        map.put("x", new Object());
+        map.remove("x");
+        map.put("c", new Object());
+        assertEquals(3, map.size());
+        assertSame(a, map.get("a"));
+        assertEquals(0, map.getEvictionCount());
+
+        for (int i = 0; i < 97; i++) {
+            map.put("d" + i, new Object());
+        }
+        assertEquals(100, map.size());
+        map.put("e", new Object());
+        assertEquals(100, map.size());
+        assertFalse(map.containsKey("a"));
+        assertTrue(map.containsKey("b"));
+        assertEquals(1, map.getEvictionCount());
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        CountingMap map = new CountingMap(false, 0, 20);
+        Object value = map.get("a");
+        assertSame(value, map.get("a"));
+        Thread.sleep(40);
+        assertFalse(map.containsKey("a"));
+        assertFalse(value == map.get("a"));
+        assertEquals(2, map.creations.get());
+        assertEquals(1, map.getEvictionCount());
+    }
+
+    @Test
+    public void testWeakKeysUseEquals() {
+        CountingMap map = new CountingMap(true, 0, 0);
+        // keep the key strongly reachable
+        String key = new String("key");
+        Object value = map.get(key);
+        assertSame(value, map.get(new String("key")));
+        assertSame(value, map.remove("key"));
+        assertTrue(map.isEmpty());
+        assertEquals(1, map.creations.get());
+        assertEquals("key", key);
+    }
+}
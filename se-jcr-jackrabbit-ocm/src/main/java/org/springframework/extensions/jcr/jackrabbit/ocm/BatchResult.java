@@ -0,0 +1,116 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.ocm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.dao.DataAccessException;
+
+/**
+ * Outcome of a bulk operation of {@link JcrMappingOperations}: the number of items which have been processed
+ * and saved and, for each item which could not be, the exception it caused. The failing items do not prevent
+ * the others from being saved.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ * @see JcrMappingOperations#insertAll(java.util.Collection)
+ */
+public class BatchResult {
+
+    private int successCount;
+
+    private final List<Failure> failures = new ArrayList<Failure>();
+
+    void addSuccesses(int count) {
+        successCount += count;
+    }
+
+    void addFailure(int index, Object item, DataAccessException exception) {
+        failures.add(new Failure(index, item, exception));
+    }
+
+    /**
+     * @return the number of items which have been processed and saved
+     */
+    public int getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * @return the items which could not be processed, in the order of the batch
+     */
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @return true if all the items have been processed
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult[successes=" + successCount + ", failures=" + failures.size() + "]";
+    }
+
+    /**
+     * An item which could not be processed.
+     */
+    public static class Failure {
+
+        private final int index;
+
+        private final Object item;
+
+        private final DataAccessException exception;
+
+        Failure(int index, Object item, DataAccessException exception) {
+            this.index = index;
+            this.item = item;
+            this.exception = exception;
+        }
+
+        /**
+         * @return the position of the item in the batch
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the object (or path, for removals) which could not be processed
+         */
+        public Object getItem() {
+            return item;
+        }
+
+        /**
+         * @return the cause of the failure
+         */
+        public DataAccessException getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return "Failure[index=" + index + ", item=" + item + ", exception=" + exception + "]";
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.util.Collection;
 
 import org.apache.jackrabbit.ocm.query.Query;
 import org.springframework.dao.DataAccessException;
+import org.springframework.extensions.jcr.CloseableIterator;
 
 /**
  * Interface that specifies a basic set of JCR mapping operations. Not often used, but a useful option to
@@ -57,12 +58,46 @@ public interface JcrMappingOperations {
      */
     public void remove(final java.lang.String path);
 
+    /**
+     * Inserts the given objects using a single session which is saved after each chunk of objects, so that
+     * the transient space does not grow with the size of the collection. An object which cannot be inserted
+     * is reported in the result and does not prevent the others from being saved.
+     * @param objects objects to insert
+     * @return the outcome of the batch
+     * @see org.apache.jackrabbit.ocm.manager.ObjectContentManager#insert(java.lang.Object)
+     */
+    public BatchResult insertAll(final Collection<?> objects);
+
+    /**
+     * Updates the given objects in chunks, like {@link #insertAll(Collection)}.
+     * @param objects objects to update
+     * @return the outcome of the batch
+     * @see org.apache.jackrabbit.ocm.manager.ObjectContentManager#update(java.lang.Object)
+     */
+    public BatchResult updateAll(final Collection<?> objects);
+
+    /**
+     * Removes the objects at the given paths in chunks, like {@link #insertAll(Collection)}.
+     * @param paths paths of the objects to remove
+     * @return the outcome of the batch
+     * @see org.apache.jackrabbit.ocm.manager.ObjectContentManager#remove(java.lang.String)
+     */
+    public BatchResult removeAll(final Collection<String> paths);
+
     /**
      * @param path
      * @see org.apache.jackrabbit.ocm.manager.ObjectContentManager#getObject(java.lang.String)
      */
     public Object getObject(final java.lang.String path);
 
+    /**
+     * @param clazz the class of the object (or one of its superclasses)
+     * @param path
+     * @return the object or null if the node does not exist
+     * @see org.apache.jackrabbit.ocm.manager.ObjectContentManager#getObject(java.lang.Class, java.lang.String)
+     */
+    public <T> T getObject(final Class<T> clazz, final java.lang.String path);
+
     /**
      * @param query
      * @return
@@ -70,4 +105,15 @@ public interface JcrMappingOperations {
      */
     public Collection getObjects(final Query query);
 
+    /**
+     * Returns an iterator which maps the nodes matching the query one at a time, so that large results can be
+     * processed without holding all the objects in memory. The session used by the query is kept open until
+     * the iterator is exhausted or closed, so callers have to close the iterator when they do not consume it
+     * completely.
+     * @param query
+     * @return iterator over the mapped objects
+     * @see org.apache.jackrabbit.ocm.manager.ObjectContentManager#getObjectIterator(org.apache.jackrabbit.ocm.query.Query)
+     */
+    public CloseableIterator<Object> getObjectIterator(final Query query);
+
 }
\ No newline at end of file
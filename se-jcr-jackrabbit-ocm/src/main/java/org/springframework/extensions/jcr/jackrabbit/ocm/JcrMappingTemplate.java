@@ -17,50 +17,102 @@ package org.springframework.extensions.jcr.jackrabbit.ocm;
 
 import java.io.InputStream;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.jackrabbit.ocm.exception.JcrMappingException;
+import org.apache.jackrabbit.ocm.exception.ObjectContentManagerException;
 import org.apache.jackrabbit.ocm.manager.ObjectContentManager;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.AtomicTypeConverter;
+import org.apache.jackrabbit.ocm.manager.atomictypeconverter.AtomicTypeConverterProvider;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.BinaryTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.BooleanTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.ByteArrayTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.CalendarTypeConverterImpl;
+import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.DefaultAtomicTypeConverterProvider;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.DoubleTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.IntTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.LongTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.StringTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.TimestampTypeConverterImpl;
 import org.apache.jackrabbit.ocm.manager.atomictypeconverter.impl.UtilDateTypeConverterImpl;
+import org.apache.jackrabbit.ocm.manager.cache.ObjectCache;
+import org.apache.jackrabbit.ocm.manager.cache.impl.RequestObjectCacheImpl;
 import org.apache.jackrabbit.ocm.manager.impl.ObjectContentManagerImpl;
+import org.apache.jackrabbit.ocm.manager.objectconverter.ObjectConverter;
+import org.apache.jackrabbit.ocm.manager.objectconverter.ProxyManager;
+import org.apache.jackrabbit.ocm.manager.objectconverter.impl.ObjectConverterImpl;
+import org.apache.jackrabbit.ocm.manager.objectconverter.impl.ProxyManagerImpl;
 import org.apache.jackrabbit.ocm.mapper.Mapper;
 import org.apache.jackrabbit.ocm.query.Query;
 import org.apache.jackrabbit.ocm.query.QueryManager;
 import org.apache.jackrabbit.ocm.query.impl.QueryManagerImpl;
+import org.apache.jackrabbit.value.ValueFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
+import org.springframework.extensions.jcr.CloseableIterator;
 import org.springframework.extensions.jcr.JcrCallback;
+import org.springframework.extensions.jcr.JcrNodeMapper;
 import org.springframework.extensions.jcr.JcrSystemException;
 import org.springframework.extensions.jcr.JcrTemplate;
 import org.springframework.extensions.jcr.SessionFactory;
+import org.springframework.extensions.jcr.SessionFactoryUtils;
+import org.springframework.extensions.jcr.SessionHolder;
+import org.springframework.extensions.jcr.metrics.JcrMetricsUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Template which adds mapping support for the Java Content Repository.
  * <p/>
- * For PersistenceManagers the template creates internally the set of default converters.
+ * The converters, the proxy manager and the query manager are created once per template and shared by the
+ * ObjectContentManagers; when the session is bound to the thread (by a transaction or an open session in view
+ * filter/interceptor), the ObjectContentManager itself is reused for the lifetime of the binding.
  * @author Costin Leau
  * @see org.apache.jackrabbit.ocm.manager.ObjectContentManager
  */
 public class JcrMappingTemplate extends JcrTemplate implements JcrMappingOperations {
 
+    private static final Logger LOG = LoggerFactory.getLogger(JcrMappingTemplate.class);
+
     private Mapper mapper;
 
+    /**
+     * number of objects saved at once by the bulk operations.
+     */
+    private int chunkSize = 100;
+
+    private final AtomicTypeConverterProvider converterProvider = new DefaultAtomicTypeConverterProvider();
+
+    /**
+     * copy of the provider converters - the provider creates a new map on every call.
+     */
+    private final Map<Class<?>, AtomicTypeConverter> converters = createConverterMap(converterProvider);
+
+    private final ProxyManager proxyManager = new ProxyManagerImpl();
+
+    private volatile QueryManager queryManager;
+
+    /**
+     * cache of the objects returned by getObject - optional.
+     */
+    private MappedObjectCache objectCache;
+
+    /**
+     * SessionHolder attribute under which the ObjectContentManager of this template is kept.
+     */
+    private final Object persistenceManagerKey = new Object();
+
     /**
      * Default constructor for JcrTemplate
      */
@@ -91,21 +143,32 @@ public class JcrMappingTemplate extends JcrTemplate implements JcrMappingOperati
     }
 
     /**
-     * Method for creating a query manager. It's unclear where this entity is stateless or not.
+     * Returns the query manager of this template. The query manager is stateless: it is created on the first
+     * call, with the {@link #createDefaultConverters(Session) default converters} and a value factory which
+     * does not depend on any session (it is needed only for turning the filter values into strings, and the
+     * session used to create the manager may be logged out afterwards), and returned by the following calls.
      * @return
      */
     public QueryManager createQueryManager() {
-        try {
-            Map<Class<?>, AtomicTypeConverter> atomicTypeConverters = this.createDefaultConverters(this.getSession());
-            return new QueryManagerImpl(mapper, atomicTypeConverters, this.getSession().getValueFactory());
-        } catch (RepositoryException e) {
-            throw new JcrSystemException(e);
+        QueryManager manager = queryManager;
+        if (manager == null) {
+            manager = execute(new JcrCallback<QueryManager>() {
+                @Override
+                public QueryManager doInJcr(Session session) throws RepositoryException {
+                    Map<Class<?>, AtomicTypeConverter> atomicTypeConverters = createDefaultConverters(session);
+                    return new QueryManagerImpl(mapper, Collections.unmodifiableMap(atomicTypeConverters),
+                            ValueFactoryImpl.getInstance());
+                }
+            }, true);
+            queryManager = manager;
         }
+        return manager;
     }
 
     /**
-     * Creates a persistence manager. It's unclear if this object is stateless/thread-safe or not. However
-     * because it depends on session it has to be created per session and it's not per repository.
+     * Creates a persistence manager. The manager depends on the session so it has to be created per session;
+     * the converters and the proxy manager are shared while the object cache, which is cleared after each
+     * operation, belongs to the manager.
      * @param session
      * @return
      * @throws JcrMappingException
@@ -113,11 +176,45 @@ public class JcrMappingTemplate extends JcrTemplate implements JcrMappingOperati
      */
     protected ObjectContentManager createPersistenceManager(Session session) throws RepositoryException,
             JcrMappingException {
-        return new ObjectContentManagerImpl(session, mapper);
+        ObjectCache requestObjectCache = new RequestObjectCacheImpl();
+        ObjectConverter objectConverter = createObjectConverter(requestObjectCache);
+        QueryManager sessionQueryManager = new QueryManagerImpl(mapper, converters, session.getValueFactory());
+        return new ObjectContentManagerImpl(mapper, objectConverter, sessionQueryManager, requestObjectCache,
+                session);
     }
 
     /**
-     * Due to the way the actual jcr-mapping is made we have to create the converters for each session.
+     * Creates the converter between objects and nodes, using the shared converters and proxy manager.
+     * @param requestObjectCache cache of the objects of the current operation
+     * @return
+     */
+    protected ObjectConverter createObjectConverter(ObjectCache requestObjectCache) {
+        return new ObjectConverterImpl(mapper, converterProvider, proxyManager, requestObjectCache);
+    }
+
+    /**
+     * Returns the persistence manager for the given session - the one kept on the thread-bound SessionHolder
+     * if the session belongs to it or a new one otherwise.
+     * @param session
+     * @return
+     * @throws javax.jcr.RepositoryException
+     */
+    private ObjectContentManager getPersistenceManager(Session session) throws RepositoryException {
+        SessionHolder sessionHolder = SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory());
+        if (sessionHolder == null)
+            return createPersistenceManager(session);
+        ObjectContentManager manager = (ObjectContentManager) sessionHolder.getAttribute(persistenceManagerKey);
+        // the exposed session of a holder does not change (native or logout suppressing)
+        if (manager == null || manager.getSession() != session) {
+            manager = createPersistenceManager(session);
+            sessionHolder.setAttribute(persistenceManagerKey, manager);
+        }
+        return manager;
+    }
+
+    /**
+     * Creates the default converters used by the {@link #createQueryManager() query manager}; called once per
+     * template.
      * @param session
      * @return
      * @throws javax.jcr.RepositoryException
@@ -143,19 +240,19 @@ public class JcrMappingTemplate extends JcrTemplate implements JcrMappingOperati
         return map;
     }
 
-    public <T> T execute(final JcrMappingCallback<T> action, boolean exposeNativeSession) throws DataAccessException {
-        return execute(new JcrCallback<T>() {
-
-            @Override
-            public T doInJcr(Session session) throws RepositoryException {
-                try {
-                    return action.doInJcrMapping(createPersistenceManager(session));
-                } catch (JcrMappingException e) {
-                    throw convertMappingAccessException(e);
-                }
-            }
+    public <T> T execute(JcrMappingCallback<T> action, boolean exposeNativeSession) throws DataAccessException {
+        return execute(new MappingCallbackAdapter<T>(action), exposeNativeSession);
+    }
 
-        }, exposeNativeSession);
+    /**
+     * Reports the mapping callback (and not the adapter around it) to the metrics.
+     * @see org.springframework.extensions.jcr.JcrTemplate#getOperationName(org.springframework.extensions.jcr.JcrCallback)
+     */
+    @Override
+    protected String getOperationName(JcrCallback<?> action) {
+        if (action instanceof MappingCallbackAdapter)
+            return JcrMetricsUtils.operationName(((MappingCallbackAdapter<?>) action).action);
+        return super.getOperationName(action);
     }
 
     @Override
@@ -200,16 +297,97 @@ public class JcrMappingTemplate extends JcrTemplate implements JcrMappingOperati
         }, true);
     }
 
+    @Override
+    public BatchResult insertAll(final Collection<?> objects) {
+        return executeInChunks(objects, new ChunkOperation() {
+            @Override
+            public void apply(ObjectContentManager manager, Object item) {
+                manager.insert(item);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult updateAll(final Collection<?> objects) {
+        return executeInChunks(objects, new ChunkOperation() {
+            @Override
+            public void apply(ObjectContentManager manager, Object item) {
+                manager.update(item);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult removeAll(final Collection<String> paths) {
+        return executeInChunks(paths, new ChunkOperation() {
+            @Override
+            public void apply(ObjectContentManager manager, Object item) {
+                manager.remove((String) item);
+            }
+        });
+    }
+
     @Override
     public Object getObject(final java.lang.String path) {
+        return getMappedObject(null, path);
+    }
+
+    @Override
+    public <T> T getObject(final Class<T> clazz, final java.lang.String path) {
+        if (clazz == null)
+            throw new IllegalArgumentException("clazz can't be null");
+        return clazz.cast(getMappedObject(clazz, path));
+    }
+
+    /**
+     * Loads the object at the given path, going through the object cache if one is configured.
+     * @param clazz class of the object, null if not specified
+     * @param path
+     * @return
+     */
+    private Object getMappedObject(final Class<?> clazz, final String path) {
+        final MappedObjectCache cache = objectCache;
+        // without transaction or thread-bound session the callback would get a new session without pending
+        // changes, so the cache is read before logging in
+        final boolean readAhead = cache != null && !TransactionSynchronizationManager.isActualTransactionActive()
+                && SessionFactoryUtils.getThreadBoundSessionHolder(getSessionFactory()) == null;
+        if (readAhead) {
+            Object object = cache.get(clazz, path);
+            if (object != null)
+                return object;
+        }
         return execute(new JcrMappingCallback<Object>() {
             @Override
             public Object doInJcrMapping(ObjectContentManager manager) throws JcrMappingException {
-                return manager.getObject(path);
+                if (cache == null || !isObjectCacheable(manager.getSession()))
+                    return loadObject(manager, clazz, path);
+                Object object = (readAhead ? null : cache.get(clazz, path));
+                if (object == null) {
+                    long generation = cache.getGeneration();
+                    object = loadObject(manager, clazz, path);
+                    cache.put(clazz, path, object, generation);
+                }
+                return object;
             }
         }, true);
     }
 
+    private static Object loadObject(ObjectContentManager manager, Class<?> clazz, String path) {
+        return (clazz == null ? manager.getObject(path) : manager.getObject(clazz, path));
+    }
+
+    /**
+     * Objects read inside a transaction or with pending changes might not be visible to other sessions, so they
+     * are neither taken from nor put into the object cache.
+     */
+    private static boolean isObjectCacheable(Session session) {
+        try {
+            return !TransactionSynchronizationManager.isActualTransactionActive() && !session.hasPendingChanges();
+        } catch (RepositoryException ex) {
+            throw new JcrMappingException("could not check the pending changes of the session", ex);
+        }
+    }
+
     @Override
     public Collection getObjects(final Query query) {
         return execute(new JcrMappingCallback<Collection<?>>() {
@@ -220,6 +398,127 @@ public class JcrMappingTemplate extends JcrTemplate implements JcrMappingOperati
         }, true);
     }
 
+    /**
+     * Runs the query through {@link #queryForIterator(String, String, java.util.Map, JcrNodeMapper)} and maps
+     * each node like {@link ObjectContentManager#getObjects(Query)} does, clearing the object cache after each
+     * node.
+     * @see org.springframework.extensions.jcr.jackrabbit.ocm.JcrMappingOperations#getObjectIterator(org.apache.jackrabbit.ocm.query.Query)
+     */
+    @Override
+    public CloseableIterator<Object> getObjectIterator(final Query query) {
+        if (query == null)
+            throw new IllegalArgumentException("query can't be null");
+        String statement = createQueryManager().buildJCRExpression(query);
+        return queryForIterator(statement, javax.jcr.query.Query.XPATH, null, new JcrNodeMapper<Object>() {
+
+            private final ObjectCache requestObjectCache = new RequestObjectCacheImpl();
+
+            private ObjectConverter objectConverter;
+
+            @Override
+            public Object mapNode(Node node, int nodeNum) throws RepositoryException {
+                if (objectConverter == null)
+                    objectConverter = createObjectConverter(requestObjectCache);
+                try {
+                    return objectConverter.getObject(node.getSession(), node.getPath());
+                } catch (ObjectContentManagerException ex) {
+                    throw convertMappingAccessException(ex);
+                } finally {
+                    requestObjectCache.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies the operation to the items using a single session, saved after every chunk. Changes pending
+     * before the call are saved first so that discarding the changes of a chunk does not affect them.
+     * @param items items of the batch
+     * @param operation operation applied to each item
+     * @return the outcome of the batch
+     */
+    private BatchResult executeInChunks(final Collection<?> items, final ChunkOperation operation) {
+        if (items == null)
+            throw new IllegalArgumentException("items can't be null");
+        return execute(new JcrMappingCallback<BatchResult>() {
+            @Override
+            public BatchResult doInJcrMapping(ObjectContentManager manager) throws JcrMappingException {
+                try {
+                    if (manager.getSession().hasPendingChanges())
+                        manager.save();
+                } catch (RepositoryException e) {
+                    throw convertMappingAccessException(e);
+                }
+
+                BatchResult result = new BatchResult();
+                List<Object> chunk = new ArrayList<Object>(Math.min(chunkSize, items.size()));
+                int offset = 0;
+                for (Object item : items) {
+                    chunk.add(item);
+                    if (chunk.size() == chunkSize) {
+                        processChunk(manager, operation, chunk, offset, result);
+                        offset += chunk.size();
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty())
+                    processChunk(manager, operation, chunk, offset, result);
+                return result;
+            }
+        }, true);
+    }
+
+    /**
+     * Applies the operation to a chunk and saves it. A failing item can leave partial changes behind so the
+     * chunk is discarded and replayed without it; if the save itself fails, the items are saved one by one to
+     * find the ones causing the failure.
+     */
+    private void processChunk(ObjectContentManager manager, ChunkOperation operation, List<Object> chunk,
+            int offset, BatchResult result) {
+        boolean[] failed = new boolean[chunk.size()];
+        int failures = 0;
+        boolean clean = false;
+        while (!clean) {
+            clean = true;
+            for (int i = 0; i < chunk.size(); i++) {
+                if (failed[i])
+                    continue;
+                try {
+                    operation.apply(manager, chunk.get(i));
+                } catch (RuntimeException ex) {
+                    failed[i] = true;
+                    failures++;
+                    clean = false;
+                    result.addFailure(offset + i, chunk.get(i), convertMappingAccessException(ex));
+                }
+            }
+            if (!clean) {
+                LOG.debug("discarding and replaying the chunk at " + offset + " without the failed items");
+                manager.refresh(false);
+            }
+        }
+
+        try {
+            manager.save();
+            result.addSuccesses(chunk.size() - failures);
+        } catch (RuntimeException ex) {
+            LOG.debug("saving the chunk at " + offset + " failed; saving its items one by one", ex);
+            manager.refresh(false);
+            for (int i = 0; i < chunk.size(); i++) {
+                if (failed[i])
+                    continue;
+                try {
+                    operation.apply(manager, chunk.get(i));
+                    manager.save();
+                    result.addSuccesses(1);
+                } catch (RuntimeException e) {
+                    result.addFailure(offset + i, chunk.get(i), convertMappingAccessException(e));
+                    manager.refresh(false);
+                }
+            }
+        }
+    }
+
     /**
      * Convert the given MappingException to an appropriate exception from the
      * <code>org.springframework.dao</code> hierarchy.
@@ -250,5 +549,78 @@ public class JcrMappingTemplate extends JcrTemplate implements JcrMappingOperati
      */
     public void setMapper(Mapper mapper) {
         this.mapper = mapper;
+        this.queryManager = null;
+    }
+
+    /**
+     * @return Returns the objectCache.
+     */
+    public MappedObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * Sets the cache used by {@link #getObject(String)} and {@link #getObject(Class, String)}. The cache has to
+     * be registered as an event listener of the SessionFactory, otherwise it is never invalidated. By default no
+     * objects are cached.
+     * @param objectCache The objectCache to set.
+     * @see MappedObjectCache
+     */
+    public void setObjectCache(MappedObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    /**
+     * @return Returns the chunkSize.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of objects the bulk operations ({@link #insertAll(Collection)},
+     * {@link #updateAll(Collection)} and {@link #removeAll(Collection)}) save at once; 100 by default. It bounds
+     * the size of the transient space of the session.
+     * @param chunkSize The chunkSize to set.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize has to be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Class<?>, AtomicTypeConverter> createConverterMap(AtomicTypeConverterProvider provider) {
+        return Collections.unmodifiableMap(new HashMap<Class<?>, AtomicTypeConverter>(provider
+                .getAtomicTypeConverters()));
+    }
+
+    /**
+     * Operation applied to each item of a bulk operation.
+     */
+    private interface ChunkOperation {
+
+        void apply(ObjectContentManager manager, Object item);
+    }
+
+    /**
+     * Adapts a JcrMappingCallback to a JcrCallback.
+     */
+    private class MappingCallbackAdapter<T> implements JcrCallback<T> {
+
+        private final JcrMappingCallback<T> action;
+
+        public MappingCallbackAdapter(JcrMappingCallback<T> action) {
+            this.action = action;
+        }
+
+        @Override
+        public T doInJcr(Session session) throws RepositoryException {
+            try {
+                return action.doInJcrMapping(getPersistenceManager(session));
+            } catch (JcrMappingException e) {
+                throw convertMappingAccessException(e);
+            }
+        }
     }
 }
@@ -0,0 +1,456 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.ocm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.ConfigurableObjectInputStream;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Least recently used cache of mapped objects, keyed by path and class, used by
+ * {@link JcrMappingTemplate#getObject(String)} and {@link JcrMappingTemplate#getObject(Class, String)} when
+ * configured through {@link JcrMappingTemplate#setObjectCache(MappedObjectCache)}. Like the
+ * {@link org.springframework.extensions.jcr.QueryResultCache}, the cache is kept up to date through observation
+ * and has to be registered as the listener of an
+ * {@link org.springframework.extensions.jcr.EventListenerDefinition} of the session factory:
+ * 
+ * <pre>
+ * &lt;bean id=&quot;objectCache&quot;
+ *     class=&quot;org.springframework.extensions.jcr.jackrabbit.ocm.MappedObjectCache&quot;/&gt;
+ * 
+ * &lt;bean id=&quot;sessionFactory&quot;
+ *     class=&quot;org.springframework.extensions.jcr.jackrabbit.ocm.OcmJackrabbitSessionFactory&quot;&gt;
+ *   ...
+ *   &lt;property name=&quot;eventListeners&quot;&gt;
+ *     &lt;list&gt;
+ *       &lt;bean class=&quot;org.springframework.extensions.jcr.EventListenerDefinition&quot;&gt;
+ *         &lt;property name=&quot;listener&quot; ref=&quot;objectCache&quot;/&gt;
+ *       &lt;/bean&gt;
+ *     &lt;/list&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * A node event invalidates the objects mapped from the node, its ancestors (which might hold it as a child
+ * bean or collection element) and its descendants; a property event invalidates the objects mapped from the
+ * node owning the property and its ancestors.
+ * <p/>
+ * By default the objects are kept in serialized form and every lookup returns a new copy, so callers are free
+ * to modify them; objects which are not serializable are not cached. When copyOnRead is disabled the cached
+ * instances themselves are returned, which is only safe for objects which are never modified (and which do not
+ * use lazy loading, as the proxies would outlive their session).
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class MappedObjectCache implements EventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedObjectCache.class);
+
+    private static final String ROOT = "/";
+
+    private static final int PROPERTY_EVENTS = Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    private int maxSize = 1000;
+
+    private boolean copyOnRead = true;
+
+    private String name = "objects";
+
+    /**
+     * metrics - optional.
+     */
+    private JcrMetrics metrics;
+
+    private final Map<CacheKey, Object> entries = new LinkedHashMap<CacheKey, Object>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Object> eldest) {
+            if (size() <= maxSize)
+                return false;
+            unindex(eldest.getKey());
+            return true;
+        }
+    };
+
+    // all the fields below are guarded by the cache monitor
+    /**
+     * keys of the cached objects by path, sorted so that the descendants of a path form a range.
+     */
+    private final TreeMap<String, Set<CacheKey>> paths = new TreeMap<String, Set<CacheKey>>();
+
+    private long generation = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    /**
+     * Invalidates the cached objects touched by the given events.
+     * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+     */
+    @Override
+    public void onEvent(EventIterator events) {
+        // the event details are read outside the monitor as they might need the repository
+        List<String> nodePaths = new ArrayList<String>();
+        List<String> propertyParentPaths = new ArrayList<String>();
+        while (events.hasNext()) {
+            Event event = events.nextEvent();
+            if (event.getType() == Event.PERSIST)
+                continue;
+            try {
+                String path = event.getPath();
+                if ((event.getType() & PROPERTY_EVENTS) != 0) {
+                    propertyParentPaths.add(getParentPath(path));
+                } else {
+                    nodePaths.add(path);
+                    if (event.getType() == Event.NODE_MOVED) {
+                        Object source = event.getInfo().get("srcAbsPath");
+                        if (source != null)
+                            nodePaths.add(source.toString());
+                    }
+                }
+            } catch (RepositoryException ex) {
+                LOG.warn("could not read event [" + event + "]; invalidating all the cached objects", ex);
+                nodePaths.add(ROOT);
+            }
+        }
+        if (nodePaths.isEmpty() && propertyParentPaths.isEmpty())
+            return;
+
+        synchronized (this) {
+            generation++;
+            for (String path : nodePaths) {
+                invalidate(path, true);
+            }
+            for (String path : propertyParentPaths) {
+                invalidate(path, false);
+            }
+        }
+    }
+
+    /**
+     * Removes the objects mapped from the given node, its ancestors and its descendants, for changes the cache
+     * is not notified about.
+     * @param path absolute path of the node
+     */
+    public synchronized void evict(String path) {
+        if (path == null)
+            throw new IllegalArgumentException("path can't be null");
+        generation++;
+        invalidate(path, true);
+    }
+
+    /**
+     * Removes all the cached objects.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        paths.clear();
+        // objects loading right now have to be discarded as well
+        generation++;
+    }
+
+    /**
+     * Returns the object cached for the given class and path, or a copy of it.
+     * @param clazz class the object was requested as, null if not specified
+     * @param path path of the object
+     * @return the object or null if not cached
+     */
+    Object get(Class<?> clazz, String path) {
+        Object value;
+        synchronized (this) {
+            value = entries.get(new CacheKey(clazz, path));
+            if (value == null)
+                missCount++;
+            else
+                hitCount++;
+        }
+        if (metrics != null)
+            metrics.incrementCounter(value == null ? JcrMetrics.CACHE_MISSES : JcrMetrics.CACHE_HITS,
+                    JcrMetrics.TAG_CACHE, name);
+        if (value instanceof SerializedObject)
+            return ((SerializedObject) value).copy();
+        return value;
+    }
+
+    /**
+     * @return a marker to be passed to {@link #put(Class, String, Object, long)} and taken before loading the
+     *         object.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches the given object unless an invalidation happened while it was loading.
+     * @param clazz class the object was requested as, null if not specified
+     * @param path path of the object
+     * @param object the loaded object, not cached if null
+     * @param generation generation taken before the object was loaded
+     */
+    void put(Class<?> clazz, String path, Object object, long generation) {
+        if (object == null)
+            return;
+        Object value = object;
+        if (copyOnRead) {
+            if (!(object instanceof Serializable)) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("not caching object at " + path + "; " + object.getClass() + " is not serializable");
+                return;
+            }
+            // serialized before locking and before the caller gets a chance to modify the object
+            try {
+                value = new SerializedObject(object);
+            } catch (IOException ex) {
+                LOG.debug("not caching object at " + path + "; could not serialize it", ex);
+                return;
+            }
+        }
+        synchronized (this) {
+            if (generation != this.generation)
+                return;
+            CacheKey key = new CacheKey(clazz, path);
+            Set<CacheKey> keys = paths.get(path);
+            if (keys == null) {
+                keys = new HashSet<CacheKey>(2);
+                paths.put(path, keys);
+            }
+            keys.add(key);
+            entries.put(key, value);
+        }
+    }
+
+    /**
+     * Removes the objects of the given path and of its ancestors, and of its descendants if requested.
+     */
+    private void invalidate(String path, boolean descendants) {
+        for (String current = path; current != null; current = getParentPath(current)) {
+            remove(paths.remove(current));
+        }
+        if (!descendants)
+            return;
+        SortedMap<String, Set<CacheKey>> range = (ROOT.equals(path) ? paths : paths.subMap(path + "/", path + "0"));
+        for (Iterator<Set<CacheKey>> it = range.values().iterator(); it.hasNext();) {
+            remove(it.next());
+            it.remove();
+        }
+    }
+
+    private void remove(Set<CacheKey> keys) {
+        if (keys == null)
+            return;
+        for (CacheKey key : keys) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("invalidating cached object " + key);
+            entries.remove(key);
+        }
+    }
+
+    private void unindex(CacheKey key) {
+        Set<CacheKey> keys = paths.get(key.path);
+        if (keys != null && keys.remove(key) && keys.isEmpty())
+            paths.remove(key.path);
+    }
+
+    /**
+     * @return the parent path or null for the root node.
+     */
+    private static String getParentPath(String path) {
+        int index = path.lastIndexOf('/');
+        if (index < 0 || ROOT.equals(path))
+            return null;
+        return (index == 0 ? ROOT : path.substring(0, index));
+    }
+
+    /**
+     * @return the number of cached objects.
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of lookups served from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of lookups which missed the cache.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return Returns the maxSize.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize The maximum number of cached objects (1000 by default).
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize has to be positive");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return Returns the copyOnRead.
+     */
+    public boolean isCopyOnRead() {
+        return copyOnRead;
+    }
+
+    /**
+     * Indicates whether every lookup returns a copy of the cached object (the default) or the cached instance
+     * itself. Changing it only affects the objects cached afterwards.
+     * @param copyOnRead The copyOnRead to set.
+     */
+    public void setCopyOnRead(boolean copyOnRead) {
+        this.copyOnRead = copyOnRead;
+    }
+
+    /**
+     * @return Returns the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name used as metrics tag ("objects" by default).
+     * @param name The name to set.
+     */
+    public void setName(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("name can't be null");
+        this.name = name;
+    }
+
+    /**
+     * @return Returns the metrics.
+     */
+    public JcrMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics The metrics to set.
+     */
+    public void setMetrics(JcrMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Serialized form of a cached object, deserialized through the class loader of the object class.
+     */
+    private static class SerializedObject {
+
+        private final byte[] bytes;
+
+        private final ClassLoader classLoader;
+
+        SerializedObject(Object object) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+            ObjectOutputStream out = new ObjectOutputStream(buffer);
+            out.writeObject(object);
+            out.close();
+            this.bytes = buffer.toByteArray();
+            this.classLoader = object.getClass().getClassLoader();
+        }
+
+        Object copy() {
+            try {
+                ObjectInputStream in = new ConfigurableObjectInputStream(new ByteArrayInputStream(bytes),
+                        classLoader);
+                try {
+                    return in.readObject();
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException("could not copy cached object", ex);
+            } catch (ClassNotFoundException ex) {
+                throw new IllegalStateException("could not copy cached object", ex);
+            }
+        }
+    }
+
+    private static class CacheKey {
+
+        /**
+         * null if the object was requested without class.
+         */
+        final Class<?> clazz;
+
+        final String path;
+
+        CacheKey(Class<?> clazz, String path) {
+            this.clazz = clazz;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof CacheKey))
+                return false;
+            CacheKey other = (CacheKey) obj;
+            return path.equals(other.path) && clazz == other.clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + ObjectUtils.nullSafeHashCode(clazz);
+        }
+
+        @Override
+        public String toString() {
+            return path + (clazz == null ? "" : " as " + clazz.getName());
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.ocm;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.QueryResult;
+
+import org.apache.jackrabbit.ocm.exception.JcrMappingException;
+import org.apache.jackrabbit.ocm.exception.ObjectContentManagerException;
+import org.apache.jackrabbit.ocm.manager.ObjectContentManager;
+import org.apache.jackrabbit.ocm.manager.cache.ObjectCache;
+import org.apache.jackrabbit.ocm.manager.objectconverter.ObjectConverter;
+import org.apache.jackrabbit.ocm.mapper.Mapper;
+import org.apache.jackrabbit.ocm.query.Query;
+import org.apache.jackrabbit.ocm.query.QueryManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.jcr.CloseableIterator;
+import org.springframework.extensions.jcr.SessionFactory;
+import org.springframework.extensions.jcr.SessionHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class JcrMappingTemplateTest {
+
+    private SessionFactory sessionFactory;
+
+    private Session session;
+
+    private JcrMappingTemplate template;
+
+    @Before
+    public void setUp() {
+        sessionFactory = createMock(SessionFactory.class);
+        session = createNiceMock(Session.class);
+        template = new JcrMappingTemplate(sessionFactory, createNiceMock(Mapper.class));
+        template.setAllowCreate(true);
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.hasResource(sessionFactory))
+            TransactionSynchronizationManager.unbindResource(sessionFactory);
+    }
+
+    @Test
+    public void testQueryManagerIsCreatedOnce() throws Exception {
+        expect(sessionFactory.getSession()).andReturn(session);
+        // the manager outlives the session, so it must not use the value factory of the session
+        expect(session.getValueFactory()).andThrow(new IllegalStateException("not to be used")).anyTimes();
+        session.logout();
+        replay(sessionFactory, session);
+
+        assertSame(template.createQueryManager(), template.createQueryManager());
+
+        verify(sessionFactory, session);
+    }
+
+    @Test
+    public void testPersistenceManagerIsReusedForBoundSession() throws Exception {
+        replay(sessionFactory, session);
+        TransactionSynchronizationManager.bindResource(sessionFactory, new SessionHolder(session));
+
+        List<ObjectContentManager> managers = collectManagers(2);
+        assertSame(managers.get(0), managers.get(1));
+        assertSame(session, managers.get(0).getSession());
+
+        verify(sessionFactory, session);
+    }
+
+    @Test
+    public void testPersistenceManagerIsCreatedPerSession() throws Exception {
+        expect(sessionFactory.getSession()).andReturn(session).times(2);
+        replay(sessionFactory, session);
+
+        List<ObjectContentManager> managers = collectManagers(2);
+        assertNotSame(managers.get(0), managers.get(1));
+
+        verify(sessionFactory, session);
+    }
+
+    @Test
+    public void testInsertAllSavesInChunks() throws Exception {
+        ObjectContentManager manager = createStrictMock(ObjectContentManager.class);
+        expect(manager.getSession()).andReturn(session);
+        manager.insert("a");
+        manager.insert("b");
+        manager.save();
+        manager.insert("c");
+        manager.save();
+        expect(sessionFactory.getSession()).andReturn(session);
+        replay(sessionFactory, session, manager);
+
+        template = createTemplate(manager);
+        template.setChunkSize(2);
+        BatchResult result = template.insertAll(Arrays.asList("a", "b", "c"));
+        assertEquals(3, result.getSuccessCount());
+        assertTrue(result.isSuccessful());
+
+        verify(sessionFactory, session, manager);
+    }
+
+    @Test
+    public void testFailingItemIsSkipped() throws Exception {
+        ObjectContentManager manager = createStrictMock(ObjectContentManager.class);
+        expect(manager.getSession()).andReturn(session);
+        manager.update("a");
+        manager.update("b");
+        expectLastCall().andThrow(new ObjectContentManagerException("expected"));
+        manager.update("c");
+        // the chunk is replayed without the failed item
+        manager.refresh(false);
+        manager.update("a");
+        manager.update("c");
+        manager.save();
+        expect(sessionFactory.getSession()).andReturn(session);
+        replay(sessionFactory, session, manager);
+
+        BatchResult result = createTemplate(manager).updateAll(Arrays.asList("a", "b", "c"));
+        assertEquals(2, result.getSuccessCount());
+        assertEquals(1, result.getFailures().size());
+        assertEquals(1, result.getFailures().get(0).getIndex());
+        assertEquals("b", result.getFailures().get(0).getItem());
+
+        verify(sessionFactory, session, manager);
+    }
+
+    @Test
+    public void testFailingSaveIsRetriedPerItem() throws Exception {
+        ObjectContentManager manager = createStrictMock(ObjectContentManager.class);
+        expect(manager.getSession()).andReturn(session);
+        manager.remove("/a");
+        manager.remove("/b");
+        manager.save();
+        expectLastCall().andThrow(new ObjectContentManagerException("expected"));
+        manager.refresh(false);
+        manager.remove("/a");
+        manager.save();
+        manager.remove("/b");
+        manager.save();
+        expectLastCall().andThrow(new ObjectContentManagerException("expected"));
+        manager.refresh(false);
+        expect(sessionFactory.getSession()).andReturn(session);
+        replay(sessionFactory, session, manager);
+
+        BatchResult result = createTemplate(manager).removeAll(Arrays.asList("/a", "/b"));
+        assertEquals(1, result.getSuccessCount());
+        assertFalse(result.isSuccessful());
+        assertEquals("/b", result.getFailures().get(0).getItem());
+
+        verify(sessionFactory, session, manager);
+    }
+
+    @Test
+    public void testGetObjectIteratorMapsLazily() throws Exception {
+        String statement = "//element(*, ocm:article)";
+        final Query query = createMock(Query.class);
+        final QueryManager queryManager = createMock(QueryManager.class);
+        expect(queryManager.buildJCRExpression(query)).andReturn(statement);
+
+        Workspace workspace = createMock(Workspace.class);
+        javax.jcr.query.QueryManager jcrQueryManager = createMock(javax.jcr.query.QueryManager.class);
+        javax.jcr.query.Query jcrQuery = createMock(javax.jcr.query.Query.class);
+        QueryResult result = createMock(QueryResult.class);
+        NodeIterator nodes = createMock(NodeIterator.class);
+        Node first = createMock(Node.class);
+        Node second = createMock(Node.class);
+        final ObjectConverter converter = createStrictMock(ObjectConverter.class);
+
+        expect(sessionFactory.getSession()).andReturn(session);
+        expect(session.getWorkspace()).andReturn(workspace);
+        expect(workspace.getQueryManager()).andReturn(jcrQueryManager);
+        expect(jcrQueryManager.createQuery(statement, javax.jcr.query.Query.XPATH)).andReturn(jcrQuery);
+        expect(jcrQuery.execute()).andReturn(result);
+        expect(result.getNodes()).andReturn(nodes);
+        expect(nodes.hasNext()).andReturn(true).times(2).andReturn(false);
+        expect(nodes.nextNode()).andReturn(first).andReturn(second);
+        expect(first.getSession()).andReturn(session);
+        expect(first.getPath()).andReturn("/first");
+        expect(second.getSession()).andReturn(session);
+        expect(second.getPath()).andReturn("/second");
+        // objects are hydrated one at a time
+        expect(converter.getObject(session, "/first")).andReturn("first");
+        expect(converter.getObject(session, "/second")).andReturn("second");
+        session.logout();
+        replay(sessionFactory, session, query, queryManager, workspace, jcrQueryManager, jcrQuery, result, nodes,
+                first, second, converter);
+
+        JcrMappingTemplate mappingTemplate = new JcrMappingTemplate(sessionFactory, createNiceMock(Mapper.class)) {
+            @Override
+            public QueryManager createQueryManager() {
+                return queryManager;
+            }
+
+            @Override
+            protected ObjectConverter createObjectConverter(ObjectCache requestObjectCache) {
+                return converter;
+            }
+        };
+        mappingTemplate.setAllowCreate(true);
+
+        CloseableIterator<Object> iterator = mappingTemplate.getObjectIterator(query);
+        assertEquals("first", iterator.next());
+        assertEquals("second", iterator.next());
+        // exhausting the iterator releases the session
+        assertFalse(iterator.hasNext());
+
+        verify(sessionFactory, session, queryManager, jcrQueryManager, jcrQuery, result, nodes, first, second,
+                converter);
+    }
+
+    @Test
+    public void testGetObjectUsesCache() throws Exception {
+        ObjectContentManager manager = createStrictMock(ObjectContentManager.class);
+        expect(manager.getSession()).andReturn(session);
+        expect(manager.getObject(String.class, "/a")).andReturn("a");
+        // only the first lookup opens a session
+        expect(sessionFactory.getSession()).andReturn(session);
+        replay(sessionFactory, session, manager);
+
+        MappedObjectCache cache = new MappedObjectCache();
+        template = createTemplate(manager);
+        template.setObjectCache(cache);
+        assertEquals("a", template.getObject(String.class, "/a"));
+        assertEquals("a", template.getObject(String.class, "/a"));
+        assertEquals(1, cache.getHitCount());
+
+        verify(sessionFactory, session, manager);
+    }
+
+    private JcrMappingTemplate createTemplate(final ObjectContentManager manager) {
+        JcrMappingTemplate mappingTemplate = new JcrMappingTemplate(sessionFactory, createNiceMock(Mapper.class)) {
+            @Override
+            protected ObjectContentManager createPersistenceManager(Session session) {
+                return manager;
+            }
+        };
+        mappingTemplate.setAllowCreate(true);
+        return mappingTemplate;
+    }
+
+    private List<ObjectContentManager> collectManagers(int calls) {
+        final List<ObjectContentManager> managers = new ArrayList<ObjectContentManager>();
+        for (int i = 0; i < calls; i++) {
+            template.execute(new JcrMappingCallback<Void>() {
+                @Override
+                public Void doInJcrMapping(ObjectContentManager manager) throws JcrMappingException {
+                    managers.add(manager);
+                    return null;
+                }
+            }, true);
+        }
+        return managers;
+    }
+}
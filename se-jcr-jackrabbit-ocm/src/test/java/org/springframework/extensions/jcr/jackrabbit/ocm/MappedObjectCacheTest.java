@@ -0,0 +1,190 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.ocm;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class MappedObjectCacheTest {
+
+    private MappedObjectCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new MappedObjectCache();
+    }
+
+    @Test
+    public void testHitsReturnCopies() {
+        List<String> object = new ArrayList<String>(Arrays.asList("a", "b"));
+        assertNull(cache.get(null, "/a"));
+        cache.put(null, "/a", object, cache.getGeneration());
+        // the cached state is not affected by later changes
+        object.add("c");
+
+        Object first = cache.get(null, "/a");
+        assertEquals(Arrays.asList("a", "b"), first);
+        assertNotSame(first, cache.get(null, "/a"));
+        // the class is part of the key
+        assertNull(cache.get(List.class, "/a"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testCopyOnReadDisabled() {
+        Object object = new Object();
+        cache.put(null, "/a", object, cache.getGeneration());
+        // not serializable
+        assertNull(cache.get(null, "/a"));
+
+        cache.setCopyOnRead(false);
+        cache.put(null, "/a", object, cache.getGeneration());
+        assertSame(object, cache.get(null, "/a"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.setMaxSize(2);
+        cache.put(null, "/a", "a", cache.getGeneration());
+        cache.put(null, "/b", "b", cache.getGeneration());
+        cache.get(null, "/a");
+        cache.put(null, "/c", "c", cache.getGeneration());
+
+        assertEquals(2, cache.getSize());
+        assertNull(cache.get(null, "/b"));
+        assertNotNull(cache.get(null, "/a"));
+        assertNotNull(cache.get(null, "/c"));
+    }
+
+    @Test
+    public void testNodeEventInvalidatesBranch() throws Exception {
+        putAll("/a", "/a/b", "/a/b/c", "/ab", "/x");
+        cache.put(String.class, "/a/b/c", "typed", cache.getGeneration());
+
+        cache.onEvent(events(createEvent(Event.NODE_REMOVED, "/a/b")));
+
+        assertCached("/ab", "/x");
+        assertNull(cache.get(String.class, "/a/b/c"));
+    }
+
+    @Test
+    public void testPropertyEventInvalidatesOwningNodeAndAncestors() throws Exception {
+        putAll("/a", "/a/b", "/a/b/c");
+
+        cache.onEvent(events(createEvent(Event.PROPERTY_CHANGED, "/a/b/title")));
+
+        assertCached("/a/b/c");
+    }
+
+    @Test
+    public void testMoveInvalidatesSource() throws Exception {
+        putAll("/a/b", "/c");
+        Event event = createMock(Event.class);
+        expect(event.getType()).andReturn(Event.NODE_MOVED).anyTimes();
+        expect(event.getPath()).andReturn("/c/b");
+        expect(event.getInfo()).andReturn(Collections.singletonMap("srcAbsPath", "/a/b"));
+        replay(event);
+
+        cache.onEvent(events(event));
+
+        assertCached();
+    }
+
+    @Test
+    public void testObjectLoadedDuringInvalidationIsNotCached() throws Exception {
+        long generation = cache.getGeneration();
+        cache.onEvent(events(createEvent(Event.NODE_ADDED, "/other")));
+        cache.put(null, "/a", "a", generation);
+        assertEquals(0, cache.getSize());
+
+        cache.put(null, "/a", "a", cache.getGeneration());
+        cache.evict("/");
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testMetrics() {
+        JcrMetrics metrics = createMock(JcrMetrics.class);
+        metrics.incrementCounter(JcrMetrics.CACHE_MISSES, JcrMetrics.TAG_CACHE, "navigation");
+        metrics.incrementCounter(JcrMetrics.CACHE_HITS, JcrMetrics.TAG_CACHE, "navigation");
+        replay(metrics);
+
+        cache.setMetrics(metrics);
+        cache.setName("navigation");
+        cache.get(null, "/a");
+        cache.put(null, "/a", "a", cache.getGeneration());
+        cache.get(null, "/a");
+
+        verify(metrics);
+    }
+
+    private void putAll(String... paths) {
+        for (String path : paths) {
+            cache.put(null, path, path, cache.getGeneration());
+        }
+    }
+
+    private void assertCached(String... paths) {
+        assertEquals(paths.length, cache.getSize());
+        for (String path : paths) {
+            assertEquals(path, cache.get(null, path));
+        }
+    }
+
+    private static Event createEvent(int type, String path) throws Exception {
+        Event event = createMock(Event.class);
+        expect(event.getType()).andReturn(type).anyTimes();
+        expect(event.getPath()).andReturn(path);
+        replay(event);
+        return event;
+    }
+
+    private static EventIterator events(Event... events) {
+        EventIterator iterator = createMock(EventIterator.class);
+        for (Event event : events) {
+            expect(iterator.hasNext()).andReturn(true);
+            expect(iterator.nextEvent()).andReturn(event);
+        }
+        expect(iterator.hasNext()).andReturn(false);
+        replay(iterator);
+        return iterator;
+    }
+}
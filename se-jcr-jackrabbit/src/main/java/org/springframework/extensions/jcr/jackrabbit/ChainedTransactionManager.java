@@ -0,0 +1,291 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.transaction.HeuristicCompletionException;
+import org.springframework.transaction.IllegalTransactionStateException;
+import org.springframework.transaction.NestedTransactionNotSupportedException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.UnexpectedRollbackException;
+
+/**
+ * PlatformTransactionManager that coordinates several local transaction managers without XA, for example a
+ * {@link LocalTransactionManager} for the content and a DataSourceTransactionManager for the metadata kept in
+ * a database:
+ * 
+ * <pre>
+ * &lt;bean id=&quot;transactionManager&quot;
+ *     class=&quot;org.springframework.extensions.jcr.jackrabbit.ChainedTransactionManager&quot;&gt;
+ *   &lt;constructor-arg&gt;
+ *     &lt;list&gt;
+ *       &lt;ref bean=&quot;jcrTransactionManager&quot;/&gt;
+ *       &lt;ref bean=&quot;dataSourceTransactionManager&quot;/&gt;
+ *     &lt;/list&gt;
+ *   &lt;/constructor-arg&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * The transactions are started in the given order and committed in the reverse order, each one in a single
+ * phase (the JCR transaction through the one-phase commit of LocalTransactionManager): with the configuration
+ * above the database transaction is committed first and the content last. If a commit fails before anything
+ * has been committed, the remaining transactions are rolled back and the failure is rethrown unchanged. If a
+ * commit fails after others succeeded, the remaining transactions are rolled back as well but the outcome is
+ * mixed: a {@link HeuristicCompletionException} is thrown and the managers that did commit are logged.
+ * <p>
+ * This is a best-effort strategy: it avoids the latency and the transaction log of a JTA transaction manager
+ * but gives no atomicity guarantee when a commit fails after another one succeeded. The window is small, as
+ * all the work has been done before the first commit; order the managers so that the resource most likely to
+ * fail on commit comes last (and is committed first).
+ * <p>
+ * Transaction synchronizations are initialized by the first manager and are therefore triggered around its
+ * commit or rollback, i.e. after the other transactions have completed. Savepoints (nested transactions) are
+ * not supported.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class ChainedTransactionManager implements PlatformTransactionManager, InitializingBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChainedTransactionManager.class);
+
+    private List<PlatformTransactionManager> transactionManagers = Collections.emptyList();
+
+    /**
+     * Create a new ChainedTransactionManager instance.
+     */
+    public ChainedTransactionManager() {
+    }
+
+    /**
+     * Create a new ChainedTransactionManager instance.
+     * @param transactionManagers transaction managers, in the order the transactions are started
+     */
+    public ChainedTransactionManager(PlatformTransactionManager... transactionManagers) {
+        setTransactionManagers(Arrays.asList(transactionManagers));
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (transactionManagers.isEmpty())
+            throw new IllegalArgumentException("transactionManagers is required");
+    }
+
+    /**
+     * @see org.springframework.transaction.PlatformTransactionManager#getTransaction(
+     *      org.springframework.transaction.TransactionDefinition)
+     */
+    @Override
+    public TransactionStatus getTransaction(TransactionDefinition definition) throws TransactionException {
+        List<TransactionStatus> statuses = new ArrayList<TransactionStatus>(transactionManagers.size());
+        for (PlatformTransactionManager transactionManager : transactionManagers) {
+            try {
+                statuses.add(transactionManager.getTransaction(definition));
+            } catch (RuntimeException ex) {
+                rollback(statuses, statuses.size() - 1);
+                throw ex;
+            }
+        }
+        return new ChainedTransactionStatus(statuses);
+    }
+
+    /**
+     * @see org.springframework.transaction.PlatformTransactionManager#commit(
+     *      org.springframework.transaction.TransactionStatus)
+     */
+    @Override
+    public void commit(TransactionStatus status) throws TransactionException {
+        ChainedTransactionStatus chainedStatus = getChainedStatus(status);
+        if (chainedStatus.isRollbackOnly()) {
+            // do not commit anything if one of the transactions is going to roll back
+            boolean localRollbackOnly = chainedStatus.isLocalRollbackOnly();
+            rollback(chainedStatus);
+            if (!localRollbackOnly)
+                throw new UnexpectedRollbackException(
+                        "Transaction rolled back because it has been marked as rollback-only");
+            return;
+        }
+
+        chainedStatus.setCompleted();
+        List<TransactionStatus> statuses = chainedStatus.getStatuses();
+        List<PlatformTransactionManager> committed = new ArrayList<PlatformTransactionManager>(statuses.size());
+        for (int i = statuses.size() - 1; i >= 0; i--) {
+            PlatformTransactionManager transactionManager = transactionManagers.get(i);
+            try {
+                transactionManager.commit(statuses.get(i));
+            } catch (RuntimeException ex) {
+                rollback(statuses, i - 1);
+                if (committed.isEmpty())
+                    throw ex;
+                LOG.error("Commit of " + transactionManager + " failed after " + committed
+                        + " committed; the transaction outcome is mixed", ex);
+                throw new HeuristicCompletionException(HeuristicCompletionException.STATE_MIXED, ex);
+            }
+            committed.add(transactionManager);
+        }
+    }
+
+    /**
+     * @see org.springframework.transaction.PlatformTransactionManager#rollback(
+     *      org.springframework.transaction.TransactionStatus)
+     */
+    @Override
+    public void rollback(TransactionStatus status) throws TransactionException {
+        ChainedTransactionStatus chainedStatus = getChainedStatus(status);
+        chainedStatus.setCompleted();
+        List<TransactionStatus> statuses = chainedStatus.getStatuses();
+        RuntimeException failure = rollback(statuses, statuses.size() - 1);
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Rolls back the given transactions, from the last index down to the first transaction, even if some of
+     * the rollbacks fail.
+     * @return the first rollback failure or null if all transactions have been rolled back
+     */
+    private RuntimeException rollback(List<TransactionStatus> statuses, int last) {
+        RuntimeException failure = null;
+        for (int i = last; i >= 0; i--) {
+            try {
+                transactionManagers.get(i).rollback(statuses.get(i));
+            } catch (RuntimeException ex) {
+                LOG.error("Rollback of " + transactionManagers.get(i) + " failed", ex);
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+        return failure;
+    }
+
+    private static ChainedTransactionStatus getChainedStatus(TransactionStatus status) {
+        if (!(status instanceof ChainedTransactionStatus))
+            throw new IllegalArgumentException("status has not been created by a ChainedTransactionManager");
+        ChainedTransactionStatus chainedStatus = (ChainedTransactionStatus) status;
+        if (chainedStatus.isCompleted())
+            throw new IllegalTransactionStateException(
+                    "Transaction is already completed - do not call commit or rollback more than once per transaction");
+        return chainedStatus;
+    }
+
+    /**
+     * @return Returns the transactionManagers.
+     */
+    public List<PlatformTransactionManager> getTransactionManagers() {
+        return transactionManagers;
+    }
+
+    /**
+     * @param transactionManagers The transactionManagers to set, in the order the transactions are started.
+     */
+    public void setTransactionManagers(List<PlatformTransactionManager> transactionManagers) {
+        if (transactionManagers == null)
+            throw new IllegalArgumentException("transactionManagers can't be null");
+        this.transactionManagers = new ArrayList<PlatformTransactionManager>(transactionManagers);
+    }
+
+    /**
+     * Status of a chained transaction - wraps the statuses of the transactions of every manager.
+     */
+    private static class ChainedTransactionStatus implements TransactionStatus {
+
+        private final List<TransactionStatus> statuses;
+
+        private boolean rollbackOnly;
+
+        private boolean completed;
+
+        public ChainedTransactionStatus(List<TransactionStatus> statuses) {
+            this.statuses = statuses;
+        }
+
+        public List<TransactionStatus> getStatuses() {
+            return statuses;
+        }
+
+        @Override
+        public boolean isNewTransaction() {
+            return statuses.get(0).isNewTransaction();
+        }
+
+        @Override
+        public boolean hasSavepoint() {
+            return false;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            rollbackOnly = true;
+            for (TransactionStatus status : statuses)
+                status.setRollbackOnly();
+        }
+
+        public boolean isLocalRollbackOnly() {
+            return rollbackOnly;
+        }
+
+        @Override
+        public boolean isRollbackOnly() {
+            if (rollbackOnly)
+                return true;
+            for (TransactionStatus status : statuses) {
+                if (status.isRollbackOnly())
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void flush() {
+            for (TransactionStatus status : statuses)
+                status.flush();
+        }
+
+        public void setCompleted() {
+            completed = true;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        @Override
+        public Object createSavepoint() throws TransactionException {
+            throw new NestedTransactionNotSupportedException("ChainedTransactionManager does not support savepoints");
+        }
+
+        @Override
+        public void rollbackToSavepoint(Object savepoint) throws TransactionException {
+            throw new NestedTransactionNotSupportedException("ChainedTransactionManager does not support savepoints");
+        }
+
+        @Override
+        public void releaseSavepoint(Object savepoint) throws TransactionException {
+            throw new NestedTransactionNotSupportedException("ChainedTransactionManager does not support savepoints");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.observation.EventImpl;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.AdditionalEventInfo;
+import org.apache.jackrabbit.spi.commons.conversion.NamePathResolver;
+import org.springframework.extensions.jcr.EventListenerDefinition;
+import org.springframework.extensions.jcr.MultiplexingEventListener;
+
+/**
+ * Jackrabbit specific {@link MultiplexingEventListener} which takes the identifier and the node types of the
+ * node associated with an event from the event itself, so that routing does not read the node and works for
+ * nodes that have been removed in the meantime. Events of other implementations are handled by the default
+ * lookups.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class JackrabbitMultiplexingEventListener extends MultiplexingEventListener {
+
+    /**
+     * @param session session used for resolving names and for events not created by Jackrabbit
+     * @param definitions listener definitions
+     */
+    public JackrabbitMultiplexingEventListener(Session session, EventListenerDefinition[] definitions) {
+        super(session, definitions);
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.MultiplexingEventListener#getParentIdentifier(javax.jcr.observation.Event,
+     *      java.lang.String)
+     */
+    @Override
+    protected String getParentIdentifier(Event event, String parentPath) throws RepositoryException {
+        if (event instanceof EventImpl) {
+            NodeId parentId = ((EventImpl) event).getParentId();
+            if (parentId != null)
+                return parentId.toString();
+        }
+        return super.getParentIdentifier(event, parentPath);
+    }
+
+    /**
+     * @see org.springframework.extensions.jcr.MultiplexingEventListener#getNodeTypeNames(javax.jcr.observation.Event,
+     *      java.lang.String)
+     */
+    @Override
+    protected Collection<String> getNodeTypeNames(Event event, String parentPath) throws RepositoryException {
+        if (event instanceof AdditionalEventInfo && getSession() instanceof NamePathResolver) {
+            AdditionalEventInfo info = (AdditionalEventInfo) event;
+            NamePathResolver resolver = (NamePathResolver) getSession();
+            Name primaryType = info.getPrimaryNodeTypeName();
+            if (primaryType != null) {
+                List<String> names = new ArrayList<String>();
+                names.add(resolver.getJCRName(primaryType));
+                for (Name mixin : info.getMixinTypeNames())
+                    names.add(resolver.getJCRName(mixin));
+                return names;
+            }
+        }
+        return super.getNodeTypeNames(event, parentPath);
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.AdditionalEventInfo;
+import org.springframework.extensions.jcr.QueryResultCache;
+
+/**
+ * Jackrabbit specific QueryResultCache which reads the node types of the property events from the
+ * additional information attached to the Jackrabbit events, so that changes of properties only invalidate the
+ * queries selecting nodes of that type.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class JackrabbitQueryResultCache extends QueryResultCache {
+
+    /**
+     * @see org.springframework.extensions.jcr.QueryResultCache#getNodeTypes(javax.jcr.observation.Event)
+     */
+    @Override
+    protected Set<String> getNodeTypes(Event event) throws RepositoryException {
+        if (!(event instanceof AdditionalEventInfo))
+            return null;
+        AdditionalEventInfo info = (AdditionalEventInfo) event;
+        Set<String> nodeTypes = new HashSet<String>();
+        // Name#toString() returns the expanded form
+        nodeTypes.add(info.getPrimaryNodeTypeName().toString());
+        for (Name mixin : info.getMixinTypeNames()) {
+            nodeTypes.add(mixin.toString());
+        }
+        return nodeTypes;
+    }
+}
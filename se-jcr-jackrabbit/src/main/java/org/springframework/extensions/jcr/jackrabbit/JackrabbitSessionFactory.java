@@ -23,7 +23,9 @@ import org.apache.jackrabbit.core.nodetype.NodeTypeManagerImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
+import org.springframework.extensions.jcr.EventListenerDefinition;
 import org.springframework.extensions.jcr.JcrSessionFactory;
+import org.springframework.extensions.jcr.MultiplexingEventListener;
 import org.springframework.util.Assert;
 import org.springframework.util.ObjectUtils;
 
@@ -77,6 +79,16 @@ public class JackrabbitSessionFactory extends JcrSessionFactory {
         }
     }
 
+    /**
+     * @see org.springframework.extensions.jcr.JcrSessionFactory#createMultiplexingEventListener(javax.jcr.Session,
+     *      org.springframework.extensions.jcr.EventListenerDefinition[])
+     */
+    @Override
+    protected MultiplexingEventListener createMultiplexingEventListener(Session session,
+            EventListenerDefinition[] definitions) {
+        return new JackrabbitMultiplexingEventListener(session, definitions);
+    }
+
     /**
      * @param nodeDefinitions The nodeDefinitions to set.
      */
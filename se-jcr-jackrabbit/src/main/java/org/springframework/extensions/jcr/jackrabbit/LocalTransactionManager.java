@@ -17,20 +17,31 @@ package org.springframework.extensions.jcr.jackrabbit;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.UserTransaction;
 import javax.transaction.xa.XAResource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.jcr.PooledJcrSessionFactory;
 import org.springframework.extensions.jcr.SessionFactory;
 import org.springframework.extensions.jcr.SessionFactoryUtils;
 import org.springframework.extensions.jcr.SessionHolder;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.extensions.jcr.metrics.JcrMetricsUtils;
+import org.springframework.extensions.jcr.jackrabbit.support.JackRabbitUserTransaction;
+import org.springframework.extensions.jcr.jackrabbit.support.TransactionReaper;
 import org.springframework.extensions.jcr.jackrabbit.support.UserTxSessionHolder;
 import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.transaction.InvalidIsolationLevelException;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionException;
 import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.UnexpectedRollbackException;
 import org.springframework.transaction.support.AbstractPlatformTransactionManager;
 import org.springframework.transaction.support.DefaultTransactionStatus;
 import org.springframework.transaction.support.SmartTransactionObject;
@@ -49,6 +60,23 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
  * <p>
  * This transaction strategy will typically be used in combination with a single JCR Repository for all JCR
  * access to save resources, typically in a standalone application.
+ * <p>
+ * Every transaction opens a new session by default. Configure a {@link PooledJcrSessionFactory} as the
+ * session factory (of both the transaction manager and the JcrTemplates) to reuse XA capable sessions
+ * instead: they are borrowed when the transaction begins and returned, refreshed and without lock tokens,
+ * after commit or rollback. Sessions left in an unknown transactional state are not returned to the pool.
+ * <p>
+ * As a local transaction only ever enlists the session of the configured SessionFactory, the XA resource is
+ * committed through the one-phase optimization by default (see {@link #setOnePhaseCommit(boolean)}).
+ * Read-only transactions (see {@link TransactionDefinition#isReadOnly()}) do not start an XA transaction at
+ * all; the thread-bound session is simply refreshed (discarding any transient changes) on completion. Note
+ * that, as a consequence, content saved within a read-only transaction is not rolled back.
+ * <p>
+ * Transaction timeouts are enforced: JcrTemplate refuses to run callbacks once the deadline of the
+ * thread-bound transaction has passed and a {@link TransactionReaper} aborts the transactions which exceed
+ * their timeout: their session is invalidated and the XA branch is rolled back, so that a stuck thread does
+ * not hold the locks of the transaction forever. Unless a reaper is configured, the manager creates its own
+ * one, which is stopped when the manager is destroyed.
  * @see org.apache.jackrabbit.api.XASession
  * @see javax.jcr.RepositoryException
  * @see org.springframework.transaction.support.AbstractPlatformTransactionManager
@@ -57,7 +85,8 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
  * @author Sergio Bossa
  * @author Salvatore Incandela
  */
-public class LocalTransactionManager extends AbstractPlatformTransactionManager implements InitializingBean {
+public class LocalTransactionManager extends AbstractPlatformTransactionManager implements InitializingBean,
+        DisposableBean {
 
     private static final long serialVersionUID = 7373391682297806187L;
 
@@ -65,6 +94,23 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
 
     private SessionFactory sessionFactory;
 
+    /**
+     * metrics - optional.
+     */
+    private JcrMetrics metrics;
+
+    private boolean onePhaseCommit = true;
+
+    /**
+     * reaper for timed out transactions - created by the manager if none is set.
+     */
+    private TransactionReaper transactionReaper;
+
+    /**
+     * reaper created (and destroyed) by the manager itself.
+     */
+    private transient TransactionReaper ownReaper;
+
     /**
      * @return Returns the sessionFactory.
      */
@@ -119,14 +165,13 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
             throw new InvalidIsolationLevelException("JCR does not support an isolation level concept");
         }
 
-        //        XASession session = null;
-        XAResource session = null;
+        JcrTransactionObject txObject = (JcrTransactionObject) transaction;
+        Session newSession = null;
 
         try {
-            JcrTransactionObject txObject = (JcrTransactionObject) transaction;
             if (txObject.getSessionHolder() == null) {
                 // get the new session
-                Session newSession = sessionFactory.getSession();
+                newSession = sessionFactory.getSession();
 
                 // make sure we have an XASession
                 //                if (!(newSession instanceof XASession))
@@ -142,8 +187,6 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
             UserTxSessionHolder sessionHolder = txObject.getSessionHolder();
 
             sessionHolder.setSynchronizedWithTransaction(true);
-            //            session = (XASession) sessionHolder.getSession();
-            session = (XAResource) sessionHolder.getSession();
 
             /*
              * We have no notion of flushing inside a JCR session if (transactionDefinition.isReadOnly() &&
@@ -152,12 +195,27 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
              * (sessionHolder.isReadOnly()) { sessionHolder.setReadOnly(false); } }
              */
 
-            // start the transaction
-            sessionHolder.getTransaction().begin();
+            int timeout = determineTimeout(transactionDefinition);
+            UserTransaction userTransaction = sessionHolder.getTransaction();
+
+            // read-only transactions do not need the XA protocol; the session is refreshed on completion
+            if (transactionDefinition.isReadOnly()) {
+                txObject.setReadOnly(true);
+            } else {
+                if (userTransaction instanceof JackRabbitUserTransaction) {
+                    ((JackRabbitUserTransaction) userTransaction).setOnePhaseCommit(onePhaseCommit);
+                }
+                if (timeout != TransactionDefinition.TIMEOUT_DEFAULT) {
+                    userTransaction.setTransactionTimeout(timeout);
+                }
+                // start the transaction
+                userTransaction.begin();
+            }
 
             // Register transaction timeout.
-            if (transactionDefinition.getTimeout() != TransactionDefinition.TIMEOUT_DEFAULT) {
-                txObject.getSessionHolder().setTimeoutInSeconds(transactionDefinition.getTimeout());
+            if (timeout != TransactionDefinition.TIMEOUT_DEFAULT) {
+                sessionHolder.setTimeoutInSeconds(timeout);
+                getReaper().register(sessionHolder, userTransaction);
             }
 
             // Bind the session holder to the thread.
@@ -167,7 +225,14 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
         }
 
         catch (Exception ex) {
-            SessionFactoryUtils.releaseSession((Session) session, getSessionFactory());
+            // only the session opened for this transaction is released; its XA state is unknown
+            if (newSession != null) {
+                if (txObject.getSessionHolder() != null) {
+                    getReaper().unregister(txObject.getSessionHolder());
+                    txObject.setSessionHolder(null, false);
+                }
+                releaseSession(newSession, false);
+            }
             throw new CannotCreateTransactionException("Could not open JCR session for transaction", ex);
         }
     }
@@ -200,11 +265,25 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
         if (status.isDebug()) {
             LOG.debug("Committing JCR transaction on session [" + txObject.getSessionHolder().getSession() + "]");
         }
+        long start = (metrics != null ? System.nanoTime() : 0);
+        Exception failure = null;
         try {
-            txObject.getSessionHolder().getTransaction().commit();
+            if (txObject.isReadOnly()) {
+                txObject.getSessionHolder().getSession().refresh(false);
+            } else {
+                txObject.getSessionHolder().getTransaction().commit();
+            }
+        } catch (RollbackException ex) {
+            failure = ex;
+            // the transaction has been aborted (e.g. after its timeout)
+            throw new UnexpectedRollbackException("JCR transaction has been rolled back", ex);
         } catch (Exception ex) {
+            failure = ex;
             // assumably from commit call to the underlying JCR repository
             throw new TransactionSystemException("Could not commit JCR transaction", ex);
+        } finally {
+            if (metrics != null)
+                recordTime(JcrMetrics.TRANSACTION_COMMIT, "commit", start, txObject, failure);
         }
     }
 
@@ -214,12 +293,21 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
         if (status.isDebug()) {
             LOG.debug("Rolling back JCR transaction on session [" + txObject.getSessionHolder().getSession() + "]");
         }
+        long start = (metrics != null ? System.nanoTime() : 0);
+        Exception failure = null;
         try {
-            txObject.getSessionHolder().getTransaction().rollback();
+            if (txObject.isReadOnly()) {
+                txObject.getSessionHolder().getSession().refresh(false);
+            } else {
+                txObject.getSessionHolder().getTransaction().rollback();
+            }
         } catch (Exception ex) {
+            failure = ex;
             throw new TransactionSystemException("Could not roll back JCR transaction", ex);
         } finally {
-            if (!txObject.isNewSessionHolder()) {
+            if (metrics != null)
+                recordTime(JcrMetrics.TRANSACTION_ROLLBACK, "rollback", start, txObject, failure);
+            if (!txObject.isNewSessionHolder() && !txObject.isReadOnly()) {
                 // Clear all pending inserts/updates/deletes in the Session.
                 // Necessary for pre-bound Sessions, to avoid inconsistent
                 // state.
@@ -232,6 +320,13 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
         }
     }
 
+    private void recordTime(String name, String operation, long start, JcrTransactionObject txObject,
+            Exception failure) {
+        metrics.recordTime(name, System.nanoTime() - start, JcrMetrics.TAG_WORKSPACE,
+                JcrMetricsUtils.workspaceName(txObject.getSessionHolder().getSession()), JcrMetrics.TAG_OPERATION,
+                operation, JcrMetrics.TAG_EXCEPTION, JcrMetricsUtils.exceptionName(failure));
+    }
+
     @Override
     protected void doSetRollbackOnly(DefaultTransactionStatus status) {
         JcrTransactionObject txObject = (JcrTransactionObject) status.getTransaction();
@@ -246,17 +341,26 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
     protected void doCleanupAfterCompletion(Object transaction) {
         JcrTransactionObject txObject = (JcrTransactionObject) transaction;
 
+        // the transaction does not need to be watched anymore
+        if (txObject.getSessionHolder().hasTimeout()) {
+            getReaper().unregister(txObject.getSessionHolder());
+        }
+
         // Remove the session holder from the thread.
         if (txObject.isNewSessionHolder()) {
             TransactionSynchronizationManager.unbindResource(getSessionFactory());
         }
 
         Session session = txObject.getSessionHolder().getSession();
-        if (txObject.isNewSessionHolder()) {
+        if (isAborted(txObject.getSessionHolder().getTransaction())) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("JCR session [" + session + "] has been closed by the transaction reaper");
+            }
+        } else if (txObject.isNewSessionHolder()) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Closing JCR session [" + session + "] after transaction");
             }
-            SessionFactoryUtils.releaseSession(session, sessionFactory);
+            releaseSession(session, isCompleted(txObject.getSessionHolder().getTransaction()));
         } else {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Not closing pre-bound JCR session [" + session + "] after transaction");
@@ -275,11 +379,24 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
 
         private boolean newSessionHolder;
 
+        private boolean readOnly;
+
         public void setSessionHolder(UserTxSessionHolder sessionHolder, boolean newSessionHolder) {
             this.sessionHolder = sessionHolder;
             this.newSessionHolder = newSessionHolder;
         }
 
+        public void setReadOnly(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+
+        /**
+         * @return true if no XA transaction has been started for this (read-only) transaction
+         */
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
         public UserTxSessionHolder getSessionHolder() {
             return sessionHolder;
         }
@@ -329,4 +446,107 @@ public class LocalTransactionManager extends AbstractPlatformTransactionManager
     public void setSessionFactory(SessionFactory sessionFactory) {
         this.sessionFactory = sessionFactory;
     }
+
+    /**
+     * @return Returns the metrics.
+     */
+    public JcrMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the (optional) metrics used for publishing the commit and rollback latency. No metrics are
+     * collected by default.
+     * @param metrics The metrics to set.
+     */
+    public void setMetrics(JcrMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Releases a session opened by this transaction manager. Pooled sessions (see
+     * {@link PooledJcrSessionFactory}) go back to the pool unless they are left in an unknown transactional
+     * state, in which case they are closed.
+     * @param session
+     * @param reusable
+     */
+    private void releaseSession(Session session, boolean reusable) {
+        if (!reusable && sessionFactory instanceof PooledJcrSessionFactory) {
+            ((PooledJcrSessionFactory) sessionFactory).invalidateSession(session);
+        }
+        SessionFactoryUtils.releaseSession(session, sessionFactory);
+    }
+
+    private static boolean isCompleted(UserTransaction transaction) {
+        if (transaction == null)
+            return true;
+        try {
+            int status = transaction.getStatus();
+            return (status == Status.STATUS_NO_TRANSACTION || status == Status.STATUS_COMMITTED
+                    || status == Status.STATUS_ROLLEDBACK);
+        } catch (SystemException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isAborted(UserTransaction transaction) {
+        return (transaction instanceof JackRabbitUserTransaction && ((JackRabbitUserTransaction) transaction)
+                .isTimedOut());
+    }
+
+    private TransactionReaper getReaper() {
+        if (transactionReaper != null)
+            return transactionReaper;
+        synchronized (this) {
+            if (ownReaper == null)
+                ownReaper = new TransactionReaper();
+            return ownReaper;
+        }
+    }
+
+    /**
+     * Stops the reaper created by the manager, if any. A configured reaper is left to its owner.
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    @Override
+    public synchronized void destroy() {
+        if (ownReaper != null) {
+            ownReaper.destroy();
+            ownReaper = null;
+        }
+    }
+
+    /**
+     * @return Returns the transactionReaper.
+     */
+    public TransactionReaper getTransactionReaper() {
+        return transactionReaper;
+    }
+
+    /**
+     * Sets the reaper rolling back the transactions which exceed their timeout. If none is set, the manager
+     * creates its own reaper, which is stopped by {@link #destroy()}; a reaper set here is not stopped by the
+     * manager, so that it can be shared.
+     * @param transactionReaper The transactionReaper to set.
+     */
+    public void setTransactionReaper(TransactionReaper transactionReaper) {
+        this.transactionReaper = transactionReaper;
+    }
+
+    /**
+     * @return Returns the onePhaseCommit.
+     */
+    public boolean isOnePhaseCommit() {
+        return onePhaseCommit;
+    }
+
+    /**
+     * Indicates whether the session is committed through the XA one-phase optimization, skipping the prepare
+     * round-trip. As only the session of the configured SessionFactory takes part in the transaction, this
+     * is safe and is the default; set it to false to always go through prepare and commit.
+     * @param onePhaseCommit The onePhaseCommit to set.
+     */
+    public void setOnePhaseCommit(boolean onePhaseCommit) {
+        this.onePhaseCommit = onePhaseCommit;
+    }
 }
@@ -15,6 +15,8 @@
  */
 package org.springframework.extensions.jcr.jackrabbit.support;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.jcr.Session;
 import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
@@ -25,6 +27,8 @@ import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
+import org.springframework.extensions.jcr.PooledJcrSessionFactory;
+
 /**
  * JackRabbit User transaction (based on the XA Resource returned by JackRabbit).
  * <p/>
@@ -32,13 +36,26 @@ import javax.transaction.xa.Xid;
  */
 public class JackRabbitUserTransaction implements UserTransaction {
 
-    private static byte counter = 0;
+    private final Session session;
 
     private final XAResource xares;
 
+    private final XidGenerator xidGenerator;
+
     private Xid xid;
 
-    private int status = Status.STATUS_NO_TRANSACTION;
+    private boolean onePhaseCommit = false;
+
+    private int timeout = 0;
+
+    private volatile boolean timedOut = false;
+
+    private volatile int status = Status.STATUS_NO_TRANSACTION;
+
+    /**
+     * guards the status transitions as the transaction can be aborted from another thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
 
     /**
      * Create a new instance of this class. Takes a session as parameter.
@@ -46,6 +63,20 @@ public class JackRabbitUserTransaction implements UserTransaction {
      *            <code>IllegalArgumentException</code> is thrown
      */
     public JackRabbitUserTransaction(Session session) {
+        this(session, XidGenerator.getDefault());
+    }
+
+    /**
+     * Create a new instance of this class using the given generator for the transaction ids.
+     * @param session session. If session is not of type {@link XAResource}, an
+     *            <code>IllegalArgumentException</code> is thrown
+     * @param xidGenerator transaction id generator
+     */
+    public JackRabbitUserTransaction(Session session, XidGenerator xidGenerator) {
+        if (xidGenerator == null)
+            throw new IllegalArgumentException("xidGenerator can't be null");
+        this.xidGenerator = xidGenerator;
+        this.session = session;
         //        if (session instanceof XASession) {
         //            xares = ((XASession) session).getXAResource();
         if (session instanceof XAResource) {
@@ -60,12 +91,16 @@ public class JackRabbitUserTransaction implements UserTransaction {
      */
     @Override
     public void begin() throws NotSupportedException, SystemException {
-        if (status != Status.STATUS_NO_TRANSACTION) {
-            throw new IllegalStateException("Transaction already active");
-        }
-
+        lock.lock();
         try {
-            xid = new XidImpl(counter++);
+            if (status != Status.STATUS_NO_TRANSACTION) {
+                throw new IllegalStateException("Transaction already active");
+            }
+
+            xid = xidGenerator.generate();
+            if (timeout > 0) {
+                xares.setTransactionTimeout(timeout);
+            }
             xares.start(xid, XAResource.TMNOFLAGS);
             status = Status.STATUS_ACTIVE;
 
@@ -74,6 +109,8 @@ public class JackRabbitUserTransaction implements UserTransaction {
                     + e.errorCode);
             systemException.initCause(e);
             throw systemException;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -82,20 +119,36 @@ public class JackRabbitUserTransaction implements UserTransaction {
      */
     @Override
     public void commit() throws IllegalStateException, RollbackException, SecurityException, SystemException {
-
-        if (status != Status.STATUS_ACTIVE) {
-            throw new IllegalStateException("Transaction not active");
-        }
-
+        lock.lock();
         try {
-            xares.end(xid, XAResource.TMSUCCESS);
+            if (timedOut) {
+                throw new RollbackException("Transaction has been rolled back after the timeout of " + timeout
+                        + " seconds");
+            }
+            if (status == Status.STATUS_MARKED_ROLLBACK) {
+                doRollback();
+                throw new RollbackException("Transaction has been marked rollback-only");
+            }
+            if (status != Status.STATUS_ACTIVE) {
+                throw new IllegalStateException("Transaction not active");
+            }
 
-            status = Status.STATUS_PREPARING;
-            xares.prepare(xid);
-            status = Status.STATUS_PREPARED;
+            xares.end(xid, XAResource.TMSUCCESS);
 
-            status = Status.STATUS_COMMITTING;
-            xares.commit(xid, false);
+            if (onePhaseCommit) {
+                status = Status.STATUS_COMMITTING;
+                xares.commit(xid, true);
+            } else {
+                status = Status.STATUS_PREPARING;
+                int vote = xares.prepare(xid);
+                status = Status.STATUS_PREPARED;
+
+                // nothing left to commit if the resource did not change any content
+                if (vote != XAResource.XA_RDONLY) {
+                    status = Status.STATUS_COMMITTING;
+                    xares.commit(xid, false);
+                }
+            }
             status = Status.STATUS_COMMITTED;
 
         } catch (XAException e) {
@@ -110,6 +163,8 @@ public class JackRabbitUserTransaction implements UserTransaction {
                     + e.errorCode);
             systemException.initCause(e);
             throw systemException;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -122,11 +177,57 @@ public class JackRabbitUserTransaction implements UserTransaction {
     }
 
     /**
+     * Rolls back the transaction. Rolling back a transaction which has already been rolled back has no effect.
      * @see javax.transaction.UserTransaction#rollback
      */
     @Override
     public void rollback() throws IllegalStateException, SecurityException, SystemException {
+        lock.lock();
+        try {
+            if (status == Status.STATUS_ROLLEDBACK) {
+                return;
+            }
+            doRollback();
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    /**
+     * Rolls back the transaction from any thread, typically once it has exceeded its timeout. The XA branch is
+     * ended and rolled back, releasing the locks it holds, and the session is then invalidated (closed, and
+     * not returned if it belongs to a {@link PooledJcrSessionFactory}) so that the owning thread can not save
+     * anything outside the transaction and fails on its next call. Committing a transaction aborted this way
+     * fails with a {@link RollbackException} while rolling it back has no effect.
+     * <p/>
+     * Unlike {@link #rollback()}, this method never waits: if the owning thread is beginning, committing or
+     * rolling back the transaction at the same time, nothing happens and false is returned.
+     * @return false if the transaction is busy and the call has to be repeated, true otherwise (including when
+     *         the transaction is not active anymore)
+     * @throws SystemException if the XA branch can not be rolled back
+     */
+    public boolean abort() throws SystemException {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+                return true;
+            }
+            timedOut = true;
+            try {
+                doRollback();
+            } finally {
+                PooledJcrSessionFactory.invalidatePooledSession(session);
+                session.logout();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doRollback() throws SystemException {
         if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
 
             throw new IllegalStateException("Transaction not active");
@@ -152,71 +253,94 @@ public class JackRabbitUserTransaction implements UserTransaction {
      */
     @Override
     public void setRollbackOnly() throws IllegalStateException, SystemException {
-        if (status != Status.STATUS_ACTIVE) {
-            throw new IllegalStateException("Transaction not active");
+        lock.lock();
+        try {
+            if (status != Status.STATUS_ACTIVE) {
+                throw new IllegalStateException("Transaction not active");
+            }
+            status = Status.STATUS_MARKED_ROLLBACK;
+        } finally {
+            lock.unlock();
         }
-        status = Status.STATUS_MARKED_ROLLBACK;
     }
 
     /**
+     * Sets the timeout passed to the XA resource when the transaction begins. Note that the timeout is not
+     * enforced by this class; see {@link TransactionReaper}.
      * @see javax.transaction.UserTransaction#setTransactionTimeout
      */
     @Override
     public void setTransactionTimeout(int seconds) throws SystemException {
+        if (seconds < 0) {
+            throw new SystemException("transaction timeout can't be negative");
+        }
+        this.timeout = seconds;
     }
 
     /**
-     * Internal {@link Xid} implementation.
+     * @return the transaction timeout in seconds, 0 if none has been set.
      */
-    class XidImpl implements Xid {
+    public int getTransactionTimeout() {
+        return timeout;
+    }
 
-        /** Global transaction id */
-        private final byte[] globalTxId;
+    /**
+     * @return true if the transaction has been rolled back through {@link #abort()}.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
 
-        /**
-         * Create a new instance of this class. Takes a global transaction number as parameter
-         * @param globalTxNumber global transaction number
-         */
-        public XidImpl(byte globalTxNumber) {
-            this.globalTxId = new byte[] { globalTxNumber };
-        }
+    /**
+     * @return Returns the onePhaseCommit.
+     */
+    public boolean isOnePhaseCommit() {
+        return onePhaseCommit;
+    }
 
-        /**
-         * @see javax.transaction.xa.Xid#getFormatId()
-         */
-        @Override
-        public int getFormatId() {
-            return 0;
-        }
+    /**
+     * Indicates whether the transaction is committed through the XA one-phase optimization (a single
+     * <code>commit(xid, true)</code> instead of <code>prepare</code> followed by <code>commit</code>). As this
+     * transaction only ever enlists one resource, no other participant can be affected by skipping the
+     * prepare vote. Default is false.
+     * @param onePhaseCommit The onePhaseCommit to set.
+     */
+    public void setOnePhaseCommit(boolean onePhaseCommit) {
+        this.onePhaseCommit = onePhaseCommit;
+    }
 
-        /**
-         * @see javax.transaction.xa.Xid#getBranchQualifier()
-         */
-        @Override
-        public byte[] getBranchQualifier() {
-            return new byte[0];
-        }
+    /**
+     * @return the id of the current (or last) transaction.
+     */
+    public Xid getXid() {
+        return xid;
+    }
 
-        /**
-         * @see javax.transaction.xa.Xid#getGlobalTransactionId()
-         */
-        @Override
-        public byte[] getGlobalTransactionId() {
-            return globalTxId;
-        }
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "JackRabbitUserTransaction[xid=" + xid + ", status=" + status + "]";
     }
 
     /**
-     * @return Returns the counter.
+     * @return always 0
+     * @deprecated the transaction ids are created by an {@link XidGenerator} and are not based on a byte counter
+     *             anymore
      */
+    @Deprecated
     public byte getCounter() {
-        return counter;
+        return 0;
     }
 
     /**
-     * @param counter The counter to set.
+     * Does nothing.
+     * @param counter ignored
+     * @deprecated the transaction ids are created by an {@link XidGenerator} and are not based on a byte counter
+     *             anymore
      */
+    @Deprecated
     public void setCounter(byte counter) {
-        JackRabbitUserTransaction.counter = counter;
     }
 }
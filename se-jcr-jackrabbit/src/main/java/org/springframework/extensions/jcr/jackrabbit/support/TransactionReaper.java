@@ -0,0 +1,199 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.support;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.transaction.support.ResourceHolderSupport;
+
+/**
+ * Enforces the timeout of the transactions registered with it. A background (daemon) thread periodically
+ * looks for transactions whose deadline has passed, marks their holder rollback-only and aborts them (see
+ * {@link JackRabbitUserTransaction#abort()}): the session is invalidated and the XA branch is ended and
+ * rolled back through the XAResource, releasing the locks it holds even if the owning thread is stuck. The
+ * owning thread fails on its next call and can not commit anymore. Other transactions are only marked
+ * rollback-only.
+ * <p/>
+ * The background thread is only started once the first transaction is registered and stopped by
+ * {@link #destroy()}; a LocalTransactionManager without a configured reaper creates and destroys its own.
+ * @see org.springframework.extensions.jcr.jackrabbit.LocalTransactionManager
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class TransactionReaper implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransactionReaper.class);
+
+    private final long interval;
+
+    private final Map<ResourceHolderSupport, UserTransaction> transactions = new ConcurrentHashMap<ResourceHolderSupport, UserTransaction>();
+
+    private ScheduledExecutorService executor;
+
+    private boolean destroyed = false;
+
+    /**
+     * Create a new reaper checking the registered transactions every second.
+     */
+    public TransactionReaper() {
+        this(1000);
+    }
+
+    /**
+     * Create a new reaper.
+     * @param interval how often (in milliseconds) the registered transactions are checked
+     */
+    public TransactionReaper(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval has to be positive");
+        this.interval = interval;
+    }
+
+    /**
+     * Starts watching the given transaction. The deadline is read from the holder (see
+     * {@link ResourceHolderSupport#setTimeoutInSeconds(int)}); holders without a timeout are ignored.
+     * @param holder resource holder carrying the deadline
+     * @param transaction transaction to abort once the deadline has passed
+     */
+    public void register(ResourceHolderSupport holder, UserTransaction transaction) {
+        if (holder == null)
+            throw new IllegalArgumentException("holder can't be null");
+        if (transaction == null)
+            throw new IllegalArgumentException("transaction can't be null");
+        if (!holder.hasTimeout())
+            return;
+        transactions.put(holder, transaction);
+        start();
+    }
+
+    /**
+     * Stops watching the transaction of the given holder; called once the transaction has completed.
+     * @param holder
+     */
+    public void unregister(ResourceHolderSupport holder) {
+        transactions.remove(holder);
+    }
+
+    /**
+     * @return the number of transactions currently watched.
+     */
+    public int getSize() {
+        return transactions.size();
+    }
+
+    /**
+     * @return Returns the interval.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    private synchronized void start() {
+        if (executor != null || destroyed)
+            return;
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jcr-transaction-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reap();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        executor = scheduler;
+    }
+
+    /**
+     * Aborts all the registered transactions whose deadline has passed. Transactions which are busy are kept
+     * and aborted on the next run.
+     * @return the number of aborted transactions
+     */
+    int reap() {
+        long now = System.currentTimeMillis();
+        int aborted = 0;
+        for (Iterator<Map.Entry<ResourceHolderSupport, UserTransaction>> it = transactions.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<ResourceHolderSupport, UserTransaction> entry = it.next();
+            ResourceHolderSupport holder = entry.getKey();
+            if (!holder.hasTimeout() || holder.getDeadline().getTime() > now)
+                continue;
+
+            UserTransaction transaction = entry.getValue();
+            holder.setRollbackOnly();
+            try {
+                if (!abort(transaction))
+                    continue;
+                // the transaction might have completed in the meantime
+                if (isAborted(transaction)) {
+                    aborted++;
+                    LOG.warn("Aborted transaction [" + transaction + "] after its deadline " + holder.getDeadline());
+                }
+            } catch (Exception ex) {
+                LOG.warn("Could not abort transaction [" + transaction + "] after its deadline", ex);
+            }
+            it.remove();
+        }
+        return aborted;
+    }
+
+    /**
+     * @return false if the transaction is busy and has to be aborted later
+     */
+    private boolean abort(UserTransaction transaction) throws Exception {
+        if (transaction instanceof JackRabbitUserTransaction)
+            return ((JackRabbitUserTransaction) transaction).abort();
+        transaction.setRollbackOnly();
+        return true;
+    }
+
+    private boolean isAborted(UserTransaction transaction) throws Exception {
+        if (transaction instanceof JackRabbitUserTransaction)
+            return ((JackRabbitUserTransaction) transaction).isTimedOut();
+        return transaction.getStatus() == Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    /**
+     * Stops the background thread. Registered transactions are not aborted anymore.
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    @Override
+    public synchronized void destroy() {
+        destroyed = true;
+        transactions.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
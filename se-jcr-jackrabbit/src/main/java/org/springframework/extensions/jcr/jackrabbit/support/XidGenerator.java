@@ -0,0 +1,179 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.support;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * Lock-free generator of globally unique transaction ids. The global transaction id is made of a node id
+ * (random, unless given, so that several JVMs using the same repository do not collide) followed by a
+ * sequence number taken from an AtomicLong; the branch qualifier holds the branch number.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class XidGenerator {
+
+    /**
+     * Format id of the generated Xids ('SEJR').
+     */
+    public static final int FORMAT_ID = 0x53454A52;
+
+    private static final XidGenerator DEFAULT = new XidGenerator(createNodeId());
+
+    private final byte[] nodeId;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param nodeId id of this generator, unique among the processes using the same resources; at most 56
+     *            bytes long
+     */
+    public XidGenerator(byte[] nodeId) {
+        if (nodeId == null)
+            throw new IllegalArgumentException("nodeId can't be null");
+        if (nodeId.length + 8 > Xid.MAXGTRIDSIZE)
+            throw new IllegalArgumentException("nodeId can't be longer than " + (Xid.MAXGTRIDSIZE - 8) + " bytes");
+        this.nodeId = nodeId.clone();
+    }
+
+    /**
+     * @return the generator shared inside this JVM (or rather class loader).
+     */
+    public static XidGenerator getDefault() {
+        return DEFAULT;
+    }
+
+    private static byte[] createNodeId() {
+        byte[] nodeId = new byte[8];
+        new SecureRandom().nextBytes(nodeId);
+        return nodeId;
+    }
+
+    /**
+     * @return a new Xid for the first branch of a new global transaction
+     */
+    public Xid generate() {
+        return generate(1);
+    }
+
+    /**
+     * @param branch branch number
+     * @return a new Xid for the given branch of a new global transaction
+     */
+    public Xid generate(int branch) {
+        long number = sequence.incrementAndGet();
+        byte[] globalTxId = Arrays.copyOf(nodeId, nodeId.length + 8);
+        writeLong(globalTxId, nodeId.length, number);
+        byte[] branchQualifier = new byte[4];
+        writeInt(branchQualifier, 0, branch);
+        return new XidImpl(FORMAT_ID, globalTxId, branchQualifier);
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Immutable {@link Xid} implementation, comparable by value.
+     */
+    static class XidImpl implements Xid {
+
+        private final int formatId;
+
+        private final byte[] globalTxId;
+
+        private final byte[] branchQualifier;
+
+        private final int hashCode;
+
+        XidImpl(int formatId, byte[] globalTxId, byte[] branchQualifier) {
+            this.formatId = formatId;
+            this.globalTxId = globalTxId;
+            this.branchQualifier = branchQualifier;
+            this.hashCode = (formatId * 31 + Arrays.hashCode(globalTxId)) * 31 + Arrays.hashCode(branchQualifier);
+        }
+
+        /**
+         * @see javax.transaction.xa.Xid#getFormatId()
+         */
+        @Override
+        public int getFormatId() {
+            return formatId;
+        }
+
+        /**
+         * @see javax.transaction.xa.Xid#getGlobalTransactionId()
+         */
+        @Override
+        public byte[] getGlobalTransactionId() {
+            return globalTxId.clone();
+        }
+
+        /**
+         * @see javax.transaction.xa.Xid#getBranchQualifier()
+         */
+        @Override
+        public byte[] getBranchQualifier() {
+            return branchQualifier.clone();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Xid))
+                return false;
+            Xid other = (Xid) obj;
+            return formatId == other.getFormatId() && Arrays.equals(globalTxId, other.getGlobalTransactionId())
+                    && Arrays.equals(branchQualifier, other.getBranchQualifier());
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buffer = new StringBuilder("Xid[").append(Integer.toHexString(formatId)).append(':');
+            appendHex(buffer, globalTxId);
+            buffer.append(':');
+            appendHex(buffer, branchQualifier);
+            return buffer.append(']').toString();
+        }
+
+        private static void appendHex(StringBuilder buffer, byte[] bytes) {
+            for (byte b : bytes) {
+                buffer.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.HeuristicCompletionException;
+import org.springframework.transaction.IllegalTransactionStateException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.UnexpectedRollbackException;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class ChainedTransactionManagerTest {
+
+    private final PlatformTransactionManager jcrTransactionManager = Mockito.mock(PlatformTransactionManager.class);
+
+    private final PlatformTransactionManager jdbcTransactionManager = Mockito.mock(PlatformTransactionManager.class);
+
+    private final TransactionStatus jcrStatus = Mockito.mock(TransactionStatus.class);
+
+    private final TransactionStatus jdbcStatus = Mockito.mock(TransactionStatus.class);
+
+    private final TransactionDefinition definition = new DefaultTransactionDefinition();
+
+    private ChainedTransactionManager transactionManager;
+
+    @Before
+    public void setUp() throws Exception {
+        Mockito.when(jcrTransactionManager.getTransaction(definition)).thenReturn(jcrStatus);
+        Mockito.when(jdbcTransactionManager.getTransaction(definition)).thenReturn(jdbcStatus);
+        transactionManager = new ChainedTransactionManager(jcrTransactionManager, jdbcTransactionManager);
+        transactionManager.afterPropertiesSet();
+    }
+
+    @Test
+    public void testCommitInReverseOrder() {
+        transactionManager.commit(transactionManager.getTransaction(definition));
+
+        InOrder inOrder = Mockito.inOrder(jcrTransactionManager, jdbcTransactionManager);
+        inOrder.verify(jcrTransactionManager).getTransaction(definition);
+        inOrder.verify(jdbcTransactionManager).getTransaction(definition);
+        inOrder.verify(jdbcTransactionManager).commit(jdbcStatus);
+        inOrder.verify(jcrTransactionManager).commit(jcrStatus);
+    }
+
+    @Test
+    public void testFailedFirstCommitRollsBack() {
+        UnexpectedRollbackException failure = new UnexpectedRollbackException("failed");
+        Mockito.doThrow(failure).when(jdbcTransactionManager).commit(jdbcStatus);
+
+        try {
+            transactionManager.commit(transactionManager.getTransaction(definition));
+            fail("expected exception");
+        } catch (UnexpectedRollbackException e) {
+            assertSame(failure, e);
+        }
+        Mockito.verify(jcrTransactionManager).rollback(jcrStatus);
+        Mockito.verify(jcrTransactionManager, Mockito.never()).commit(jcrStatus);
+    }
+
+    @Test
+    public void testFailedLastCommitIsMixed() {
+        Mockito.doThrow(new TransactionSystemException("failed")).when(jcrTransactionManager).commit(jcrStatus);
+
+        try {
+            transactionManager.commit(transactionManager.getTransaction(definition));
+            fail("expected exception");
+        } catch (HeuristicCompletionException e) {
+            assertEquals(HeuristicCompletionException.STATE_MIXED, e.getOutcomeState());
+        }
+        Mockito.verify(jdbcTransactionManager).commit(jdbcStatus);
+        Mockito.verify(jcrTransactionManager, Mockito.never()).rollback(jcrStatus);
+    }
+
+    @Test
+    public void testRollbackOnlyIsRolledBack() {
+        TransactionStatus status = transactionManager.getTransaction(definition);
+        status.setRollbackOnly();
+        transactionManager.commit(status);
+
+        Mockito.verify(jcrStatus).setRollbackOnly();
+        Mockito.verify(jdbcStatus).setRollbackOnly();
+        Mockito.verify(jdbcTransactionManager).rollback(jdbcStatus);
+        Mockito.verify(jcrTransactionManager).rollback(jcrStatus);
+        Mockito.verify(jcrTransactionManager, Mockito.never()).commit(jcrStatus);
+        Mockito.verify(jdbcTransactionManager, Mockito.never()).commit(jdbcStatus);
+    }
+
+    @Test
+    public void testGlobalRollbackOnlyCommitsNothing() {
+        Mockito.when(jcrStatus.isRollbackOnly()).thenReturn(true);
+
+        try {
+            transactionManager.commit(transactionManager.getTransaction(definition));
+            fail("expected exception");
+        } catch (UnexpectedRollbackException e) {
+            // expected
+        }
+        Mockito.verify(jdbcTransactionManager).rollback(jdbcStatus);
+        Mockito.verify(jcrTransactionManager).rollback(jcrStatus);
+        Mockito.verify(jdbcTransactionManager, Mockito.never()).commit(jdbcStatus);
+    }
+
+    @Test
+    public void testFailedBeginRollsBackStartedTransactions() {
+        Mockito.when(jdbcTransactionManager.getTransaction(definition)).thenThrow(
+                new CannotCreateTransactionException("failed"));
+
+        try {
+            transactionManager.getTransaction(definition);
+            fail("expected exception");
+        } catch (CannotCreateTransactionException e) {
+            // expected
+        }
+        Mockito.verify(jcrTransactionManager).rollback(jcrStatus);
+    }
+
+    @Test
+    public void testRollbackContinuesAfterFailure() {
+        TransactionSystemException failure = new TransactionSystemException("failed");
+        Mockito.doThrow(failure).when(jdbcTransactionManager).rollback(jdbcStatus);
+        TransactionStatus status = transactionManager.getTransaction(definition);
+
+        try {
+            transactionManager.rollback(status);
+            fail("expected exception");
+        } catch (TransactionSystemException e) {
+            assertSame(failure, e);
+        }
+        Mockito.verify(jcrTransactionManager).rollback(jcrStatus);
+
+        try {
+            transactionManager.commit(status);
+            fail("expected exception");
+        } catch (IllegalTransactionStateException e) {
+            // expected
+        }
+    }
+}
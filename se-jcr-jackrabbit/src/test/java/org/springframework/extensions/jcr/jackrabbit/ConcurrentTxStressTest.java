@@ -0,0 +1,137 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.extensions.jcr.JcrCallback;
+import org.springframework.extensions.jcr.JcrTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Commits from several threads at once through the LocalTransactionManager; every transaction needs its own
+ * Xid so colliding ids show up as failed commits. The commit throughput is logged for each thread count.
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+@ContextConfiguration(locations = {"classpath:txStressTestApplicationContext.xml"})
+public class ConcurrentTxStressTest extends AbstractJUnit4SpringContextTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentTxStressTest.class);
+
+    private static final int COMMITS_PER_THREAD = 50;
+
+    private JcrTemplate template;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            long start = System.nanoTime();
+            int commits = runCommits(threads);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(threads * COMMITS_PER_THREAD, commits);
+            LOG.info(threads + " thread(s): " + (commits * 1000000000L / elapsed) + " commits/s");
+        }
+    }
+
+    private int runCommits(final int threads) throws Exception {
+        final String run = "concurrent-" + threads + "-" + System.nanoTime();
+        // every thread works below its own node to avoid conflicting changes
+        template.execute(new JcrCallback<Void>() {
+            @Override
+            public Void doInJcr(Session session) throws RepositoryException {
+                Node parent = session.getRootNode().addNode(run);
+                for (int t = 0; t < threads; t++) {
+                    parent.addNode("thread-" + t);
+                }
+                session.save();
+                return null;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final String parentPath = "/" + run + "/thread-" + t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int commits = 0;
+                        for (int i = 0; i < COMMITS_PER_THREAD; i++) {
+                            final String name = "node-" + i;
+                            transactionTemplate.execute(new TransactionCallback<Void>() {
+                                @Override
+                                public Void doInTransaction(TransactionStatus status) {
+                                    return template.execute(new JcrCallback<Void>() {
+                                        @Override
+                                        public Void doInJcr(Session session) throws RepositoryException {
+                                            session.getNode(parentPath).addNode(name).setProperty("commit", true);
+                                            session.save();
+                                            return null;
+                                        }
+                                    });
+                                }
+                            });
+                            commits++;
+                        }
+                        return commits;
+                    }
+                }));
+            }
+            int commits = 0;
+            for (Future<Integer> result : results) {
+                commits += result.get();
+            }
+            return commits;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Autowired
+    public void setTemplate(JcrTemplate template) {
+        this.template = template;
+    }
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+}
@@ -15,11 +15,14 @@
  */
 package org.springframework.extensions.jcr.jackrabbit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.lock.LockManager;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
@@ -29,12 +32,17 @@ import org.junit.Test;
 import org.mockito.Mockito;
 import org.springframework.extensions.jcr.JcrCallback;
 import org.springframework.extensions.jcr.JcrTemplate;
+import org.springframework.extensions.jcr.PooledJcrSessionFactory;
 import org.springframework.extensions.jcr.SessionFactory;
+import org.springframework.extensions.jcr.jackrabbit.support.TransactionReaper;
 import org.springframework.extensions.jcr.jackrabbit.support.UserTxSessionHolder;
+import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.transaction.InvalidIsolationLevelException;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.TransactionTimedOutException;
 import org.springframework.transaction.UnexpectedRollbackException;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
@@ -85,6 +93,214 @@ public class LocalTransactionManager2Test {
         });
     }
 
+    @Test
+    public void testTransactionCommitUsesOnePhase() throws Exception {
+        XAResource xaResource = (XAResource) session;
+
+        TransactionTemplate tt = new TransactionTemplate(new LocalTransactionManager(sessionFactory));
+        tt.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                new JcrTemplate(sessionFactory).save();
+            }
+        });
+
+        Mockito.verify(xaResource).start(Mockito.any(Xid.class), Mockito.eq(XAResource.TMNOFLAGS));
+        Mockito.verify(xaResource).end(Mockito.any(Xid.class), Mockito.eq(XAResource.TMSUCCESS));
+        Mockito.verify(xaResource).commit(Mockito.any(Xid.class), Mockito.eq(true));
+        Mockito.verify(xaResource, Mockito.never()).prepare(Mockito.any(Xid.class));
+    }
+
+    @Test
+    public void testTransactionCommitWithTwoPhases() throws Exception {
+        XAResource xaResource = (XAResource) session;
+        Mockito.when(xaResource.prepare(Mockito.any(Xid.class))).thenReturn(XAResource.XA_OK);
+
+        LocalTransactionManager tm = new LocalTransactionManager(sessionFactory);
+        tm.setOnePhaseCommit(false);
+        new TransactionTemplate(tm).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                new JcrTemplate(sessionFactory).save();
+            }
+        });
+
+        Mockito.verify(xaResource).prepare(Mockito.any(Xid.class));
+        Mockito.verify(xaResource).commit(Mockito.any(Xid.class), Mockito.eq(false));
+    }
+
+    @Test
+    public void testReadOnlyTransactionSkipsXA() throws Exception {
+        XAResource xaResource = (XAResource) session;
+
+        TransactionTemplate tt = new TransactionTemplate(new LocalTransactionManager(sessionFactory));
+        tt.setReadOnly(true);
+        tt.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                assertTrue("Has thread session", TransactionSynchronizationManager.hasResource(sessionFactory));
+                new JcrTemplate(sessionFactory).execute(new JcrCallback<Object>() {
+                    @Override
+                    public Object doInJcr(Session se) throws RepositoryException {
+                        return se.getRootNode();
+                    }
+                });
+            }
+        });
+
+        assertTrue("Hasn't thread session", !TransactionSynchronizationManager.hasResource(sessionFactory));
+        Mockito.verify(session).refresh(false);
+        Mockito.verify(session).logout();
+        Mockito.verify(xaResource, Mockito.never()).start(Mockito.any(Xid.class), Mockito.anyInt());
+        Mockito.verify(xaResource, Mockito.never()).commit(Mockito.any(Xid.class), Mockito.anyBoolean());
+    }
+
+    @Test
+    public void testTransactionTimeout() throws Exception {
+        XAResource xaResource = (XAResource) session;
+        TransactionReaper reaper = new TransactionReaper(50);
+
+        LocalTransactionManager tm = new LocalTransactionManager(sessionFactory);
+        tm.setTransactionReaper(reaper);
+        TransactionTemplate tt = new TransactionTemplate(tm);
+        tt.setTimeout(1);
+        try {
+            tt.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    JcrTemplate template = new JcrTemplate(sessionFactory);
+                    template.save();
+                    try {
+                        Thread.sleep(1200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    template.save();
+                }
+            });
+            fail("expected exception");
+        } catch (TransactionTimedOutException e) {
+            // expected
+        } finally {
+            reaper.destroy();
+        }
+
+        Mockito.verify(xaResource).setTransactionTimeout(1);
+        // rolled back once, by the reaper
+        Mockito.verify(xaResource).end(Mockito.any(Xid.class), Mockito.eq(XAResource.TMFAIL));
+        Mockito.verify(xaResource).rollback(Mockito.any(Xid.class));
+        Mockito.verify(session, Mockito.times(1)).save();
+        assertEquals(0, reaper.getSize());
+        assertTrue("Hasn't thread session", !TransactionSynchronizationManager.hasResource(sessionFactory));
+    }
+
+    @Test
+    public void testOwnReaperIsDestroyed() throws Exception {
+        int reapers = countReaperThreads();
+        LocalTransactionManager tm = new LocalTransactionManager(sessionFactory);
+        TransactionTemplate tt = new TransactionTemplate(tm);
+        tt.setTimeout(60);
+        tt.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                new JcrTemplate(sessionFactory).save();
+            }
+        });
+        assertEquals(reapers + 1, countReaperThreads());
+
+        tm.destroy();
+        for (int i = 0; i < 100 && countReaperThreads() > reapers; i++)
+            Thread.sleep(50);
+        assertEquals(reapers, countReaperThreads());
+    }
+
+    private static int countReaperThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && "jcr-transaction-reaper".equals(thread.getName()))
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testSessionIsReleasedWhenBeginFails() throws Exception {
+        Session plainSession = Mockito.mock(Session.class);
+        SessionFactory plainSessionFactory = Mockito.mock(SessionFactory.class);
+        Mockito.when(plainSessionFactory.getSession()).thenReturn(plainSession);
+
+        TransactionTemplate tt = new TransactionTemplate(new LocalTransactionManager(plainSessionFactory));
+        try {
+            tt.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    fail("transaction should not begin");
+                }
+            });
+            fail("expected exception");
+        } catch (CannotCreateTransactionException e) {
+            // expected
+        }
+
+        Mockito.verify(plainSession).logout();
+        assertTrue("Hasn't thread session", !TransactionSynchronizationManager.hasResource(plainSessionFactory));
+    }
+
+    @Test
+    public void testPooledSessionIsReused() throws Exception {
+        Mockito.when(session.isLive()).thenReturn(true);
+        Workspace workspace = Mockito.mock(Workspace.class);
+        LockManager lockManager = Mockito.mock(LockManager.class);
+        Mockito.when(session.getWorkspace()).thenReturn(workspace);
+        Mockito.when(workspace.getLockManager()).thenReturn(lockManager);
+        Mockito.when(lockManager.getLockTokens()).thenReturn(new String[0]);
+        final PooledJcrSessionFactory pool = new PooledJcrSessionFactory(sessionFactory);
+        pool.afterPropertiesSet();
+        TransactionTemplate tt = new TransactionTemplate(new LocalTransactionManager(pool));
+
+        for (int i = 0; i < 2; i++) {
+            tt.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    new JcrTemplate(pool).save();
+                }
+            });
+        }
+
+        Mockito.verify(sessionFactory, Mockito.times(1)).getSession();
+        Mockito.verify(session, Mockito.times(2)).refresh(false);
+        Mockito.verify(session, Mockito.never()).logout();
+        Mockito.verify((XAResource) session, Mockito.times(2)).commit(Mockito.any(Xid.class), Mockito.eq(true));
+        assertEquals(1, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+    }
+
+    @Test
+    public void testPooledSessionIsDiscardedAfterFailedCommit() throws Exception {
+        Mockito.doThrow(new XAException(XAException.XAER_RMERR)).when((XAResource) session)
+                .commit(Mockito.any(Xid.class), Mockito.anyBoolean());
+        Mockito.when(session.isLive()).thenReturn(true);
+        final PooledJcrSessionFactory pool = new PooledJcrSessionFactory(sessionFactory);
+        pool.afterPropertiesSet();
+        TransactionTemplate tt = new TransactionTemplate(new LocalTransactionManager(pool));
+
+        try {
+            tt.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    new JcrTemplate(pool).save();
+                }
+            });
+            fail("expected exception");
+        } catch (TransactionSystemException e) {
+            // expected
+        }
+
+        Mockito.verify(session).logout();
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+    }
+
     @Test
     public void testTransactionRollback() throws RepositoryException, XAException {
         //do not know why the following two methods on session are called, it is a mock, nobody cares
@@ -15,15 +15,24 @@
  */
 package org.springframework.extensions.jcr.jackrabbit;
 
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 
+import javax.jcr.Repository;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.extensions.jcr.SessionHolderProvider;
 import org.springframework.extensions.jcr.jackrabbit.support.JackRabbitSessionHolderProvider;
+import org.springframework.extensions.jcr.support.GenericSessionHolderProvider;
 import org.springframework.extensions.jcr.support.ServiceSessionHolderProviderManager;
 
 /**
@@ -52,4 +61,36 @@ public class ServiceSessionHolderProviderManagerTest {
         assertTrue(providers.get(0) instanceof JackRabbitSessionHolderProvider);
     }
 
+    @Test
+    public void testProvidersAreDiscoveredOnce() {
+        List<SessionHolderProvider> providers = providerManager.getProviders();
+        assertSame(providers, providerManager.getProviders());
+        // registries are shared between managers
+        ServiceSessionHolderProviderManager otherManager = new ServiceSessionHolderProviderManager();
+        assertSame(providers, otherManager.getProviders());
+
+        providerManager.refresh();
+        assertNotSame(providers, providerManager.getProviders());
+        assertTrue(providerManager.getProviders().get(0) instanceof JackRabbitSessionHolderProvider);
+        assertSame(providerManager.getProviders(), otherManager.getProviders());
+    }
+
+    @Test
+    public void testGetSessionProvider() {
+        Repository jackrabbit = createMock(Repository.class);
+        Repository other = createMock(Repository.class);
+        // the provider is resolved once per repository
+        expect(jackrabbit.getDescriptor(Repository.REP_NAME_DESC)).andReturn("Jackrabbit");
+        expect(other.getDescriptor(Repository.REP_NAME_DESC)).andReturn("bogus");
+        replay(jackrabbit, other);
+
+        SessionHolderProvider provider = providerManager.getSessionProvider(jackrabbit);
+        assertTrue(provider instanceof JackRabbitSessionHolderProvider);
+        assertSame(provider, providerManager.getSessionProvider(jackrabbit));
+        assertSame(GenericSessionHolderProvider.class, providerManager.getSessionProvider(other).getClass());
+        assertSame(GenericSessionHolderProvider.class, providerManager.getSessionProvider(other).getClass());
+
+        verify(jackrabbit, other);
+    }
+
 }
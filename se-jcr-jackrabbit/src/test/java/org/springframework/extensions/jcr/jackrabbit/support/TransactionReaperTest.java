@@ -0,0 +1,166 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+
+import javax.jcr.Session;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.support.ResourceHolderSupport;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class TransactionReaperTest {
+
+    private final Session session = Mockito.mock(Session.class, Mockito.withSettings().extraInterfaces(
+            XAResource.class));
+
+    private TransactionReaper reaper;
+
+    private JackRabbitUserTransaction transaction;
+
+    @Before
+    public void setUp() throws Exception {
+        reaper = new TransactionReaper(60000);
+        transaction = new JackRabbitUserTransaction(session);
+        transaction.begin();
+    }
+
+    @After
+    public void tearDown() {
+        reaper.destroy();
+    }
+
+    @Test
+    public void testOverdueTransactionIsAborted() throws Exception {
+        ResourceHolderSupport holder = new ResourceHolderSupport() {
+        };
+        holder.setTimeoutInMillis(1);
+        reaper.register(holder, transaction);
+        assertEquals(1, reaper.getSize());
+        Thread.sleep(10);
+
+        assertEquals(1, reaper.reap());
+        assertEquals(0, reaper.getSize());
+        assertTrue(holder.isRollbackOnly());
+        assertTrue(transaction.isTimedOut());
+        assertEquals(Status.STATUS_ROLLEDBACK, transaction.getStatus());
+
+        // the XA branch is rolled back and the session invalidated
+        XAResource xares = (XAResource) session;
+        InOrder order = Mockito.inOrder(session, xares);
+        order.verify(xares).end(Mockito.any(Xid.class), Mockito.eq(XAResource.TMFAIL));
+        order.verify(xares).rollback(Mockito.any(Xid.class));
+        order.verify(session).logout();
+
+        // the owning thread can not commit anymore
+        try {
+            transaction.commit();
+            fail("expected exception");
+        } catch (RollbackException ex) {
+            // expected
+        }
+        Mockito.verify(xares, Mockito.never()).commit(Mockito.any(Xid.class), Mockito.anyBoolean());
+
+        // rollback is idempotent
+        transaction.rollback();
+        Mockito.verify(xares).rollback(Mockito.any(Xid.class));
+    }
+
+    @Test
+    public void testBusyTransactionIsAbortedLater() throws Exception {
+        final CountDownLatch committing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        XAResource xares = (XAResource) session;
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                committing.countDown();
+                release.await();
+                throw new XAException(XAException.XAER_RMERR);
+            }
+        }).when(xares).prepare(Mockito.any(Xid.class));
+        ResourceHolderSupport holder = new ResourceHolderSupport() {
+        };
+        holder.setTimeoutInMillis(1);
+        reaper.register(holder, transaction);
+        Thread.sleep(10);
+
+        Thread owner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    transaction.commit();
+                } catch (Exception ex) {
+                    // expected
+                }
+            }
+        };
+        owner.start();
+        committing.await();
+        // the owning thread holds the transaction
+        assertEquals(0, reaper.reap());
+        assertEquals(1, reaper.getSize());
+
+        release.countDown();
+        owner.join(5000);
+        assertEquals(0, reaper.reap());
+        assertEquals(0, reaper.getSize());
+    }
+
+    @Test
+    public void testTransactionWithinDeadlineIsKept() throws Exception {
+        ResourceHolderSupport holder = new ResourceHolderSupport() {
+        };
+        holder.setTimeoutInSeconds(60);
+        reaper.register(holder, transaction);
+
+        assertEquals(0, reaper.reap());
+        assertEquals(1, reaper.getSize());
+        assertFalse(holder.isRollbackOnly());
+        assertEquals(Status.STATUS_ACTIVE, transaction.getStatus());
+
+        reaper.unregister(holder);
+        assertEquals(0, reaper.getSize());
+    }
+
+    @Test
+    public void testHolderWithoutTimeoutIsIgnored() throws Exception {
+        reaper.register(new ResourceHolderSupport() {
+        }, transaction);
+        assertEquals(0, reaper.getSize());
+    }
+}
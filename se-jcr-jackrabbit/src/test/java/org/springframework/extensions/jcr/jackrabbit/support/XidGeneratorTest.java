@@ -0,0 +1,91 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.jackrabbit.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.transaction.xa.Xid;
+
+import org.junit.Test;
+
+/**
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class XidGeneratorTest {
+
+    @Test
+    public void testXidLayout() {
+        XidGenerator generator = new XidGenerator(new byte[] { 1, 2 });
+        Xid xid = generator.generate(7);
+        assertEquals(XidGenerator.FORMAT_ID, xid.getFormatId());
+        assertArrayEquals(new byte[] { 1, 2, 0, 0, 0, 0, 0, 0, 0, 1 }, xid.getGlobalTransactionId());
+        assertArrayEquals(new byte[] { 0, 0, 0, 7 }, xid.getBranchQualifier());
+        assertFalse(xid.equals(generator.generate(7)));
+    }
+
+    @Test
+    public void testNodeIdIsBounded() {
+        try {
+            new XidGenerator(new byte[Xid.MAXGTRIDSIZE]);
+            fail("expected exception");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testXidsAreUniqueAcrossThreads() throws Exception {
+        final XidGenerator generator = XidGenerator.getDefault();
+        final int perThread = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Xid>>> results = new ArrayList<Future<List<Xid>>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<List<Xid>>() {
+                    @Override
+                    public List<Xid> call() {
+                        List<Xid> xids = new ArrayList<Xid>(perThread);
+                        for (int j = 0; j < perThread; j++) {
+                            xids.add(generator.generate());
+                        }
+                        return xids;
+                    }
+                }));
+            }
+            Set<Xid> unique = new HashSet<Xid>();
+            for (Future<List<Xid>> result : results) {
+                unique.addAll(result.get());
+            }
+            assertEquals(8 * perThread, unique.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.micrometer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+import org.springframework.util.Assert;
+
+/**
+ * {@link JcrMetrics} implementation publishing to a Micrometer {@link MeterRegistry}. Meters are looked up
+ * once per name/tags combination and cached afterwards.
+ * <p/>
+ * Usage:
+ * 
+ * <pre>
+ * &lt;bean id=&quot;jcrMetrics&quot; class=&quot;org.springframework.extensions.jcr.micrometer.MicrometerJcrMetrics&quot;&gt;
+ *     &lt;constructor-arg ref=&quot;meterRegistry&quot;/&gt;
+ * &lt;/bean&gt;
+ * 
+ * &lt;bean id=&quot;sessionFactory&quot; class=&quot;org.springframework.extensions.jcr.JcrSessionFactory&quot;&gt;
+ *     ...
+ *     &lt;property name=&quot;metrics&quot; ref=&quot;jcrMetrics&quot;/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * @author Costin Leau
+ * @author Sergio Bossa
+ * @author Salvatore Incandela
+ */
+public class MicrometerJcrMetrics implements JcrMetrics {
+
+    private final MeterRegistry registry;
+
+    private final ConcurrentMap<MeterKey, Timer> timers = new ConcurrentHashMap<MeterKey, Timer>();
+
+    private final ConcurrentMap<MeterKey, Counter> counters = new ConcurrentHashMap<MeterKey, Counter>();
+
+    /**
+     * @param registry
+     */
+    public MicrometerJcrMetrics(MeterRegistry registry) {
+        Assert.notNull(registry, "registry is required");
+        this.registry = registry;
+    }
+
+    @Override
+    public void recordTime(String name, long durationNanos, String... tags) {
+        MeterKey key = new MeterKey(name, tags);
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            timer = Timer.builder(name).tags(Tags.of(tags)).register(registry);
+            timers.putIfAbsent(key, timer);
+        }
+        timer.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void incrementCounter(String name, String... tags) {
+        MeterKey key = new MeterKey(name, tags);
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = Counter.builder(name).tags(Tags.of(tags)).register(registry);
+            counters.putIfAbsent(key, counter);
+        }
+        counter.increment();
+    }
+
+    @Override
+    public void registerGauge(String name, JcrMetrics.Gauge gauge, String... tags) {
+        // Gauge resolves to JcrMetrics.Gauge inside this class; the gauge is usually an anonymous class
+        // only referenced by the registry, hence the strong reference
+        io.micrometer.core.instrument.Gauge.builder(name, gauge, JcrMetrics.Gauge::value).tags(Tags.of(tags))
+                .strongReference(true).register(registry);
+    }
+
+    /**
+     * @return Returns the registry.
+     */
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Cache key - meter name plus tags.
+     */
+    private static final class MeterKey {
+
+        private final String name;
+
+        private final String[] tags;
+
+        private final int hash;
+
+        MeterKey(String name, String[] tags) {
+            this.name = name;
+            this.tags = tags;
+            this.hash = 31 * name.hashCode() + Arrays.hashCode(tags);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof MeterKey))
+                return false;
+            MeterKey other = (MeterKey) obj;
+            return name.equals(other.name) && Arrays.equals(tags, other.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2009-2012 the original author or authors
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.springframework.extensions.jcr.micrometer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.jcr.metrics.JcrMetrics;
+
+public class MicrometerJcrMetricsTest {
+
+    private SimpleMeterRegistry registry;
+
+    private MicrometerJcrMetrics metrics;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        metrics = new MicrometerJcrMetrics(registry);
+    }
+
+    @Test
+    public void testRecordTime() {
+        metrics.recordTime(JcrMetrics.TEMPLATE_EXECUTE, 1000, JcrMetrics.TAG_WORKSPACE, "default",
+                JcrMetrics.TAG_OPERATION, "query");
+        metrics.recordTime(JcrMetrics.TEMPLATE_EXECUTE, 3000, JcrMetrics.TAG_WORKSPACE, "default",
+                JcrMetrics.TAG_OPERATION, "query");
+        metrics.recordTime(JcrMetrics.TEMPLATE_EXECUTE, 5000, JcrMetrics.TAG_WORKSPACE, "default",
+                JcrMetrics.TAG_OPERATION, "save");
+
+        Timer query = registry.get(JcrMetrics.TEMPLATE_EXECUTE).tag(JcrMetrics.TAG_OPERATION, "query").timer();
+        assertEquals(2, query.count());
+        assertEquals(4000, query.totalTime(TimeUnit.NANOSECONDS), 0);
+        assertEquals(1, registry.get(JcrMetrics.TEMPLATE_EXECUTE).tag(JcrMetrics.TAG_OPERATION, "save").timer()
+                .count());
+    }
+
+    @Test
+    public void testIncrementCounter() {
+        metrics.incrementCounter("jcr.test", "a", "b");
+        metrics.incrementCounter("jcr.test", "a", "b");
+        assertEquals(2, registry.get("jcr.test").tag("a", "b").counter().count(), 0);
+    }
+
+    @Test
+    public void testRegisterGauge() {
+        final AtomicInteger value = new AtomicInteger(3);
+        metrics.registerGauge(JcrMetrics.SESSIONS_OPEN, new JcrMetrics.Gauge() {
+            @Override
+            public double value() {
+                return value.get();
+            }
+        }, JcrMetrics.TAG_WORKSPACE, "default");
+
+        assertEquals(3, registry.get(JcrMetrics.SESSIONS_OPEN).gauge().value(), 0);
+        value.set(5);
+        assertEquals(5, registry.get(JcrMetrics.SESSIONS_OPEN).gauge().value(), 0);
+    }
+}